@@ -0,0 +1,36 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.Socket;
+
+/**
+ * A Socket which "reads" from a byte array instead of from a SocketChannel, so that HttpMessageReader can be
+ * benchmarked without the cost of system calls. Like a real socket read, a read stops when the section of the
+ * message is full.
+ */
+class ByteArraySocket extends Socket {
+
+    private byte[] data = null;
+    private int readIndex = 0;
+
+    void setData(byte[] data) {
+        this.data = data;
+        this.readIndex = 0;
+    }
+
+    boolean hasData() {
+        return this.readIndex < this.data.length;
+    }
+
+    @Override
+    public int read(Message message) {
+        int bytesToRead = Math.min(this.data.length - this.readIndex, message.capacity - message.length);
+        if(bytesToRead <= 0){
+            return 0;
+        }
+        message.writeToMessage(this.data, this.readIndex, bytesToRead);
+        this.readIndex += bytesToRead;
+        return bytesToRead;
+    }
+
+}
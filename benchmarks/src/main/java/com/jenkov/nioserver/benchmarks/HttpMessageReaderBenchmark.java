@@ -0,0 +1,100 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.http.HttpMessageReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpMessageReader.read 读取 ByteArraySocket 中的全部数据：100 个流水线请求（结果是每个请求的耗时），以及消息体分段交给
+ * IMessageProcessor 的 4MB 请求（结果是每 KB 消息体的耗时）。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HttpMessageReaderBenchmark {
+
+    private static final int PIPELINE_DEPTH = 100;
+    private static final int BODY_KB        = 4 * 1024;
+
+    @State(Scope.Thread)
+    public static class Reader {
+
+        HttpMessageReader messageReader;
+        ByteArraySocket   socket;
+
+        @Setup
+        public void setup() {
+            this.messageReader = new HttpMessageReader();
+            this.messageReader.init(new MessageBuffer());
+            this.socket = new ByteArraySocket();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pipelined {
+        byte[] requestBytes = Requests.pipelined(PIPELINE_DEPTH).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Body {
+        byte[] requestBytes = Requests.postWithBody(BODY_KB * 1024).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChunkedBody {
+        byte[] requestBytes = Requests.chunkedPost(BODY_KB * 1024, 8 * 1024).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public long readPipelined(Reader reader, Pipelined requests) throws IOException {
+        return read(reader, requests.requestBytes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BODY_KB)
+    public long readBodyPerKB(Reader reader, Body request) throws IOException {
+        return read(reader, request.requestBytes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BODY_KB)
+    public long readChunkedBodyPerKB(Reader reader, ChunkedBody request) throws IOException {
+        return read(reader, request.requestBytes);
+    }
+
+    // 读取 requestBytes 中的全部请求，释放读到的每一个消息
+    private static long read(Reader reader, byte[] requestBytes) throws IOException {
+        reader.socket.setData(requestBytes);
+        long count = 0;
+        while(reader.socket.hasData()){
+            reader.messageReader.read(reader.socket, null);
+            List<Message> messages = reader.messageReader.getMessages();
+            for(int i=0; i<messages.size(); i++){
+                count += messages.get(i).length;
+                messages.get(i).release();
+            }
+            messages.clear();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.http.HttpHeaders;
+import com.jenkov.nioserver.http.HttpUtil;
+import com.jenkov.nioserver.http.StaticResponseCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpUtil.parseHttpRequest 解析真实的请求头部，一次到达或者分成多个 TCP 包到达；以及在解析好的请求中不区分大小写地查找请求头部
+ * 和静态响应，都不创建任何对象。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HttpUtilBenchmark {
+
+    @State(Scope.Thread)
+    public static class Request {
+
+        @Param({"browserGet", "apiPost", "headers500", "headers4K"})
+        public String request;
+
+        // 请求在 heap 或者 direct ByteBuffer 中
+        @Param({"false", "true"})
+        public boolean direct;
+
+        ByteBuffer  src;
+        int         length;
+        HttpHeaders httpHeaders;
+
+        @Setup
+        public void setup() {
+            byte[] requestBytes = Requests.byName(this.request).getBytes(StandardCharsets.UTF_8);
+            this.src = this.direct ? ByteBuffer.allocateDirect(requestBytes.length) : ByteBuffer.allocate(requestBytes.length);
+            this.src.put(requestBytes);
+            this.length = requestBytes.length;
+            this.httpHeaders = new HttpHeaders();
+            // 没有完整解析的请求会让 httpHeaders 停在消息体阶段，之后每次调用都不再解析请求头部
+            if(HttpUtil.parseHttpRequest(this.src, 0, this.length, this.httpHeaders) != this.length){
+                throw new IllegalStateException("Incomplete request: " + this.request);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SegmentedRequest {
+
+        // headers4K：4KB 的请求头部分成 64 字节的 TCP 包到达；body64K：64KB 的消息体分成 1KB 的 TCP 包到达。
+        // 每到达一个包就解析一次
+        @Param({"headers4K", "body64K"})
+        public String request;
+
+        ByteBuffer src;
+        int        length;
+        int        segmentSize;
+
+        @Setup
+        public void setup() {
+            boolean headers = "headers4K".equals(this.request);
+            byte[] requestBytes = (headers ? Requests.headerBlock(4096) : Requests.postWithBody(64 * 1024)).getBytes(StandardCharsets.UTF_8);
+            this.src = ByteBuffer.wrap(requestBytes);
+            this.length = requestBytes.length;
+            this.segmentSize = headers ? 64 : 1024;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ParsedBrowserGet {
+
+        ByteBuffer  src;
+        HttpHeaders httpHeaders;
+        StaticResponseCache responseCache;
+
+        @Setup
+        public void setup() {
+            byte[] requestBytes = Requests.BROWSER_GET.getBytes(StandardCharsets.UTF_8);
+            this.src = ByteBuffer.wrap(requestBytes);
+            this.httpHeaders = new HttpHeaders();
+            HttpUtil.parseHttpRequest(this.src, 0, requestBytes.length, this.httpHeaders);
+
+            byte[] responseBytes = Requests.LOAD_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            this.responseCache = new StaticResponseCache();
+            for(int i=0; i<32; i++){
+                this.responseCache.register("GET", "/static/" + i + ".html", responseBytes);
+            }
+            this.responseCache.register("GET", "/articles/java-nio/index.html", responseBytes);
+        }
+    }
+
+    @Benchmark
+    public int parseHttpRequest(Request request) {
+        return HttpUtil.parseHttpRequest(request.src, 0, request.length, request.httpHeaders);
+    }
+
+    @Benchmark
+    public int parseHttpRequestInSegments(SegmentedRequest request) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        int endIndex = 0;
+        int result = -1;
+        while(result == -1){
+            endIndex = Math.min(endIndex + request.segmentSize, request.length);
+            result = HttpUtil.parseHttpRequest(request.src, 0, endIndex, httpHeaders);
+        }
+        return result;
+    }
+
+    // 浏览器请求中的最后一个请求头部
+    @Benchmark
+    public int findHeader(ParsedBrowserGet request) {
+        return request.httpHeaders.findHeader(request.src, "cookie");
+    }
+
+    @Benchmark
+    public long staticResponseCacheFind(ParsedBrowserGet request) {
+        return request.responseCache.find(request.src, request.httpHeaders).length;
+    }
+
+}
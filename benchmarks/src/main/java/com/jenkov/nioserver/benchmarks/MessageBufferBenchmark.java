@@ -0,0 +1,88 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.MessageBufferConfig;
+import com.jenkov.nioserver.http.StaticResponseCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageBuffer 的分配、扩展和释放，以及两种生成响应的方式：为每个请求分配 section 并拷贝响应的字节，或者使用共享的预先编码好的
+ * 响应（WriteProxy.enqueueShared 的 slice）。都包括 MessageWriter 写完之后的 release。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageBufferBenchmark {
+
+    // heap 或者 direct 的 MessageBuffer
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private MessageBuffer messageBuffer;
+    private byte[] fourKB;
+    private byte[] responseBytes;
+    private Message sharedResponse;
+
+    @Setup
+    public void setup() {
+        this.messageBuffer  = new MessageBuffer(MessageBufferConfig.defaultConfig().setDirect(this.direct));
+        this.fourKB         = new byte[4 * MessageBuffer.KB];
+        this.responseBytes  = Requests.LOAD_RESPONSE.getBytes(StandardCharsets.UTF_8);
+        this.sharedResponse = StaticResponseCache.encode(this.responseBytes, this.direct);
+    }
+
+    // 分配一个最小的 section，然后释放
+    @Benchmark
+    public long getMessageRelease() {
+        Message message = this.messageBuffer.getMessage();
+        long offset = message.offset;
+        message.release();
+        return offset;
+    }
+
+    // 分配一个写满了的 4KB section，扩展到 128KB 的 section（包含 4KB 的拷贝），然后释放
+    @Benchmark
+    public long expandMessage() {
+        Message message = this.messageBuffer.getMessage();
+        message.writeToMessage(this.fourKB);
+        this.messageBuffer.expandMessage(message);
+        long capacity = message.capacity;
+        message.release();
+        return capacity;
+    }
+
+    @Benchmark
+    public long responseCopy() {
+        Message response = this.messageBuffer.getMessage();
+        response.writeToMessage(this.responseBytes);
+        long length = response.length;
+        response.release();
+        return length;
+    }
+
+    @Benchmark
+    public long responseShared() {
+        Message response = this.sharedResponse.slice(0, this.sharedResponse.length);
+        long length = response.length;
+        response.release();
+        return length;
+    }
+
+}
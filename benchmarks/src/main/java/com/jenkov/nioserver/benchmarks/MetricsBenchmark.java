@@ -0,0 +1,79 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.EventLog;
+import com.jenkov.nioserver.ProcessorMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个请求在 SocketProcessor 中更新的 5 个计数器（读取的字节数和 message 数、入队的响应、写出的字节数和响应），与 LongAdder 对比；
+ * 以及 EventLog 记录一个事件（后台线程把事件写给一个空的 sink）和被级别过滤掉的事件。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+    private ProcessorMetrics metrics;
+    private LongAdder[] adders;
+    private EventLog eventLog;
+
+    @Setup
+    public void setup() {
+        this.metrics = new ProcessorMetrics();
+        this.adders  = new LongAdder[5];
+        for(int i=0; i<this.adders.length; i++){
+            this.adders[i] = new LongAdder();
+        }
+        this.eventLog = new EventLog(event -> {}, EventLog.INFO, 64 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.eventLog.close();
+    }
+
+    @Benchmark
+    public void processorMetrics() {
+        this.metrics.add(ProcessorMetrics.BYTES_READ, 78);
+        this.metrics.increment(ProcessorMetrics.MESSAGES_READ);
+        this.metrics.increment(ProcessorMetrics.MESSAGES_QUEUED);
+        this.metrics.add(ProcessorMetrics.BYTES_WRITTEN, 82);
+        this.metrics.increment(ProcessorMetrics.MESSAGES_WRITTEN);
+    }
+
+    @Benchmark
+    public void longAdder() {
+        this.adders[0].add(78);
+        this.adders[1].increment();
+        this.adders[2].increment();
+        this.adders[3].add(82);
+        this.adders[4].increment();
+    }
+
+    @Benchmark
+    public boolean eventLog() {
+        return this.eventLog.log(EventLog.INFO, EventLog.SOCKET_CLOSED, 16384);
+    }
+
+    @Benchmark
+    public boolean eventLogLevelDisabled() {
+        return this.eventLog.log(EventLog.DEBUG, EventLog.SOCKET_CLOSED, 16384);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.QueueIntFlip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueueIntFlip：一个 int 环形队列，take 和 put 都不分配对象。队列保持半满，每次操作取出一个元素再放回去。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class QueueIntFlipBenchmark {
+
+    private QueueIntFlip queue;
+
+    @Setup
+    public void setup() {
+        this.queue = new QueueIntFlip(1024);
+        for(int i=0; i<512; i++){
+            this.queue.put(i);
+        }
+    }
+
+    @Benchmark
+    public int takePut() {
+        int element = this.queue.take();
+        this.queue.put(element);
+        return element;
+    }
+
+}
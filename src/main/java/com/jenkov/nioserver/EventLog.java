@@ -0,0 +1,287 @@
+package com.jenkov.nioserver;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous event log for the SocketAccepter, the SocketProcessors and the message processors. Logging an event
+ * never blocks and never allocates: the event is copied into a preallocated record of a bounded, lock-free ring buffer
+ * and written to the IEventSink by a background thread. If the ring buffer is full, the event is dropped and counted
+ * (see getDroppedEvents()), so a slow sink can never slow down a reactor thread.
+ *
+ * Events below the level of the log are discarded before they touch the ring buffer, with a single volatile read.
+ *
+ * 环形缓冲区是一个多生产者、单消费者的有界队列（Dmitry Vyukov 的算法）：每个槽位有一个序号，生产者通过 CAS 推进 tail 来占用一个
+ * 槽位，写入 event 的字段之后再发布序号；后台线程按顺序读取已经发布的槽位，写给 sink 之后再把槽位归还给生产者。
+ */
+public class EventLog {
+
+    public static final int DEBUG = 0;
+    public static final int INFO  = 1;
+    public static final int WARN  = 2;
+    public static final int ERROR = 3;
+    public static final int OFF   = 4;
+
+    // 事件类型
+    public static final int SOCKET_ACCEPTED   = 0;
+    public static final int SOCKET_REJECTED   = 1;
+    public static final int SOCKET_CLOSED     = 2;
+    public static final int SOCKET_TIMED_OUT  = 3;
+    public static final int MESSAGE_RECEIVED  = 4;
+    public static final int ACCEPT_FAILED     = 5;
+    public static final int PROCESSOR_FAILED  = 6;
+    public static final int MESSAGE_PROCESSOR_FAILED = 7;
+    // MessageBuffer 可用的 section 低于 low watermark，SocketProcessor 暂停读取新的请求，以及回到 high watermark 以上之后恢复读取
+    public static final int READING_PAUSED    = 8;
+    public static final int READING_RESUMED   = 9;
+    // 配置了 ServerConfig.reusePort，但是平台不支持 SO_REUSEPORT，Server 退回到一个监听端口。不是 accept 失败
+    public static final int REUSE_PORT_UNSUPPORTED = 10;
+
+    private static final String[] LEVEL_NAMES = { "DEBUG", "INFO", "WARN", "ERROR" };
+    private static final String[] TYPE_NAMES  = {
+        "socket accepted", "socket rejected, inbound socket queue full", "socket closed", "socket timed out",
+        "message received", "accept failed", "socket processor failed", "message processor failed",
+        "message buffers low, reading new requests paused", "message buffers recovered, reading resumed",
+        "SO_REUSEPORT is not supported, using a single listener"
+    };
+
+    /**
+     * A logged event. The records are preallocated by the EventLog and reused.
+     */
+    public static class Event {
+        public long      timeMillis = 0;
+        public int       level      = 0;
+        public int       type       = 0;
+        // 事件所属的 socket，0 表示不属于任何 socket
+        public long      socketId   = 0;
+        // 记录事件的线程，以及和事件相关的对象（比如 SocketChannel），由 sink 在后台线程中转换成字符串
+        public Thread    thread     = null;
+        public Object    subject    = null;
+        public Throwable throwable  = null;
+
+        public String getLevelName() {
+            return LEVEL_NAMES[this.level];
+        }
+
+        public String getTypeName() {
+            return this.type >= 0 && this.type < TYPE_NAMES.length ? TYPE_NAMES[this.type] : "event " + this.type;
+        }
+
+        void clear() {
+            this.thread    = null;
+            this.subject   = null;
+            this.throwable = null;
+        }
+    }
+
+    private static final long DRAIN_INTERVAL_NANOS = 10L * 1000L * 1000L;
+
+    private static EventLog defaultLog = null;
+
+    private final IEventSink sink;
+    private volatile int level;
+
+    private final Event[] events;
+    // sequences[i] 等于 position 时，槽位 i 可以被 tail 为 position 的生产者占用；等于 position + 1 时，其中的 event 已经发布
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // 只由后台线程访问
+    private long head = 0;
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile boolean closed = false;
+    private final Thread drainThread;
+
+    /**
+     * @param capacity the number of events the ring buffer holds - rounded up to a power of 2.
+     */
+    public EventLog(IEventSink sink, int level, int capacity) {
+        this(sink, level, capacity, true);
+    }
+
+    // startThread 为 false 时不启动后台线程，由调用者（比如单元测试）调用 drain
+    EventLog(IEventSink sink, int level, int capacity, boolean startThread) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.sink   = sink;
+        this.level  = level;
+        this.mask   = size - 1;
+        this.events = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        for(int i=0; i<size; i++){
+            this.events[i] = new Event();
+            this.sequences.set(i, i);
+        }
+        if(startThread){
+            this.drainThread = new Thread(this::run, "EventLog");
+            this.drainThread.setDaemon(true);
+            this.drainThread.start();
+        } else {
+            this.drainThread = null;
+        }
+    }
+
+    /**
+     * @return the EventLog used when ServerConfig.eventLog is not set: INFO and above, written to System.out.
+     */
+    public static synchronized EventLog getDefault() {
+        if(defaultLog == null){
+            defaultLog = new EventLog(printTo(System.out), INFO, 4096);
+        }
+        return defaultLog;
+    }
+
+    /**
+     * @return a sink writing one line per event, and the stack trace of its throwable, to the given stream.
+     */
+    public static IEventSink printTo(PrintStream out) {
+        return new IEventSink() {
+            private final StringBuilder line = new StringBuilder(128);
+
+            @Override
+            public void write(Event event) {
+                this.line.setLength(0);
+                this.line.append(event.timeMillis).append(' ').append(event.getLevelName())
+                         .append(" [").append(event.thread != null ? event.thread.getName() : "").append("] ")
+                         .append(event.getTypeName());
+                if(event.socketId != 0){
+                    this.line.append(": ").append(event.socketId);
+                }
+                if(event.subject != null){
+                    this.line.append(' ').append(event.subject);
+                }
+                out.println(this.line);
+                if(event.throwable != null){
+                    event.throwable.printStackTrace(out);
+                }
+            }
+
+            @Override
+            public void flush() {
+                out.flush();
+            }
+        };
+    }
+
+    public boolean isEnabled(int level) {
+        return level >= this.level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public boolean log(int level, int type, long socketId) {
+        return log(level, type, socketId, null, null);
+    }
+
+    /**
+     * Logs an event, if its level is enabled. Never blocks and never allocates; may be called from any thread.
+     *
+     * @param subject   an object describing the event further, e.g. a SocketChannel. It is converted to a String by
+     *                  the background thread, so it should not be modified afterwards.
+     * @return false if the event was discarded, because its level is disabled or because the ring buffer is full.
+     */
+    public boolean log(int level, int type, long socketId, Object subject, Throwable throwable) {
+        if(level < this.level){
+            return false;
+        }
+        for(;;){
+            long position = this.tail.get();
+            int index = (int) (position & this.mask);
+            long available = this.sequences.get(index) - position;
+            if(available == 0){
+                if(this.tail.compareAndSet(position, position + 1)){
+                    Event event = this.events[index];
+                    event.timeMillis = System.currentTimeMillis();
+                    event.level      = level;
+                    event.type       = type;
+                    event.socketId   = socketId;
+                    event.thread     = Thread.currentThread();
+                    event.subject    = subject;
+                    event.throwable  = throwable;
+                    this.sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if(available < 0){
+                // 后台线程还没有处理完这个槽位上一圈的 event，缓冲区已满
+                this.droppedEvents.incrementAndGet();
+                return false;
+            }
+            // available > 0：另一个生产者已经占用了这个槽位，重新读取 tail
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the ring buffer was full.
+     */
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+
+    /**
+     * Stops the background thread after it has written the events logged so far.
+     */
+    public void close() {
+        this.closed = true;
+        if(this.drainThread != null){
+            LockSupport.unpark(this.drainThread);
+            try{
+                this.drainThread.join();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        while(!this.closed){
+            if(drain() == 0){
+                // 生产者不唤醒后台线程（那需要一次系统调用），后台线程定期检查缓冲区
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Writes all published events to the sink. Must only be called by one thread at a time - the background thread.
+     *
+     * @return the number of events written.
+     */
+    int drain() {
+        int drained = 0;
+        for(;;){
+            int index = (int) (this.head & this.mask);
+            if(this.sequences.get(index) != this.head + 1){
+                break;
+            }
+            Event event = this.events[index];
+            try{
+                this.sink.write(event);
+            } catch(RuntimeException e){
+                // sink 的异常不能让后台线程退出
+                e.printStackTrace();
+            }
+            event.clear();
+            this.sequences.lazySet(index, this.head + this.events.length);
+            this.head++;
+            drained++;
+        }
+        if(drained > 0){
+            try{
+                this.sink.flush();
+            } catch(RuntimeException e){
+                e.printStackTrace();
+            }
+        }
+        return drained;
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.jenkov.nioserver;
+
+/**
+ * Receives the events of an EventLog, e.g. to write them to a file or hand them to a logging framework. Called by the
+ * background thread of the EventLog only, never by the threads that log the events, so it may block and allocate.
+ */
+public interface IEventSink {
+
+    /**
+     * Writes an event. The event is reused for later events once this method returns - copy the fields to keep them.
+     */
+    public void write(EventLog.Event event);
+
+    /**
+     * Called after a batch of events has been written, e.g. to flush a buffered stream.
+     */
+    public default void flush() {
+    }
+
+}
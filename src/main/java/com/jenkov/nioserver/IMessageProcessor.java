@@ -5,6 +5,19 @@ package com.jenkov.nioserver;
  */
 public interface IMessageProcessor {
 
+    /**
+     * Processes a request message. The request is released when this method returns - call message.retain() to
+     * keep it longer, and message.release() when done with it. Responses obtained from writeProxy.getMessage() are
+     * released by the MessageWriter once they are fully written.
+     *
+     * Without ServerConfig.messageProcessorExecutor this method is called by the SocketProcessor thread and must not
+     * block. With an executor it is called by the executor's threads and may block; requests of the same socket are
+     * then processed one at a time, in order. To keep responses in request order, enqueue the response before
+     * returning from this method.
+     *
+     * A message does not have to be a whole request: HttpMessageReader hands over the body of large or chunked requests
+     * as separate messages following the request (see HttpBodyPart), so that it is never buffered as a whole.
+     */
     public void process(Message message, WriteProxy writeProxy);
 
 }
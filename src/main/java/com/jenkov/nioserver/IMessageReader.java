@@ -15,6 +15,18 @@ public interface IMessageReader {
 
     public List<Message> getMessages();
 
+    /**
+     * @return true if part of a message has been read, but not the whole message yet. The SocketProcessor closes the
+     * socket if no more data arrives for such a message within ServerConfig.readTimeoutMillis.
+     */
+    public boolean isMessageInProgress();
+
+    /**
+     * Releases the messages this reader still holds (e.g. a partially received message). Called when the socket
+     * the reader belongs to is closed.
+     */
+    public void dispose();
+
 
 
 }
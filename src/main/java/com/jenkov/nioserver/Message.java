@@ -1,6 +1,9 @@
 package com.jenkov.nioserver;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Created by jjenkov on 16-10-2015.
@@ -11,17 +14,205 @@ public class Message {
 
     public long socketId = 0; // the id of source socket or destination socket, depending on whether is going in or out.
 
-    public byte[] sharedArray = null;
+    // sharedBuffer 是 message 所在 slab 的 ByteBuffer，对于 heap 类型的 MessageBuffer，它包装的就是 sharedArray；
+    // 对于 direct 类型的 MessageBuffer，它是一个堆外内存的 ByteBuffer，此时 sharedArray 为 null。
+    // socket 直接通过 section 的视图 sectionView 读写 message，不再经过中间的 ByteBuffer。
+    public ByteBuffer sharedBuffer = null;
+    public byte[] sharedArray = null; //only set for heap MessageBuffers.
+
+    // sectionView 是 message 所在 section 的视图，index 0 对应 offset。只由拥有 MessageBuffer 的 SocketProcessor 线程
+    // 在 socket 读写时修改其 position 和 limit。slice 的视图在第一次使用时才创建，见 sectionView()
+    ByteBuffer sectionView = null;
     public int    offset      = 0; //offset into sharedArray where this message data starts.
     public int    capacity    = 0; //the size of the section in the sharedArray allocated to this message.
     public int    length      = 0; //the number of bytes used of the allocated section.
 
     public Object metaData    = null;
 
+    // 不为 null 时，message 的数据由 section 中的 length 个字节（比如响应头）以及之后文件中从 filePosition 开始的 fileCount 个字节
+    // 组成。文件部分由 MessageWriter 通过 FileChannel.transferTo 直接写入 socket，不经过 section，见 attachFile()
+    FileChannel fileChannel   = null;
+    long        filePosition  = 0;
+    long        fileCount     = 0;
+    boolean     closeFileOnRelease = false;
+
+    // 由 MessageBuffer 使用：message 所在的 size class，以及 section 在这个 size class 中的编号
+    int sizeClassIndex = -1;
+    int sectionId      = -1;
+
+    // 不为 null 时，这个 message 是 parent 的一个 slice：它和 parent 共享同一个 section，并且持有 parent 的一个引用，
+    // 直到这个 slice 被 release
+    private Message parent = null;
+
+    private static final AtomicIntegerFieldUpdater<Message> REFERENCE_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "referenceCount");
+
+    // referenceCount 表示当前有多少个使用者持有这个 message，降为 0 时 message 占用的 section 会被归还给 MessageBuffer
+    private volatile int referenceCount = 1;
+
     public Message(MessageBuffer messageBuffer) {
         this.messageBuffer = messageBuffer;
     }
 
+    /**
+     * Wraps the remaining bytes of the given ByteBuffer in an immutable message which is not part of any MessageBuffer,
+     * e.g. a pre-encoded response that is sent to many sockets. The message cannot grow, and it is not reference
+     * counted: it stays valid as long as it is reachable, and its slices do not hold references to it. Enqueue it to
+     * a socket with WriteProxy.enqueueShared(), which hands each socket its own slice. The ByteBuffer may be a
+     * read-only or direct buffer shared by all SocketProcessors - its position and limit are never changed.
+     */
+    public static Message wrap(ByteBuffer byteBuffer) {
+        Message message = new Message(null);
+        message.sharedBuffer = byteBuffer;
+        if(byteBuffer.hasArray() && byteBuffer.arrayOffset() == 0){
+            message.sharedArray = byteBuffer.array();
+        }
+        message.offset   = byteBuffer.position();
+        message.capacity = byteBuffer.remaining();
+        message.length   = byteBuffer.remaining();
+        return message;
+    }
+
+    /**
+     * Appends count bytes of the given file, starting at position, to the data of this message. The bytes in the
+     * section of the message (e.g. the status line and headers of a response) are written first, then the file bytes
+     * are transferred from the FileChannel straight to the SocketChannel with FileChannel.transferTo() - on Linux
+     * with sendfile - without passing through a section or the Java heap. A file response is thus not limited by
+     * the largest section size of the MessageBuffer.
+     *
+     * Only positional reads are done on the FileChannel, so the same FileChannel may be attached to many messages at
+     * the same time. Slices of this message do not include the file bytes.
+     *
+     * @param closeOnRelease if true, the FileChannel is closed when this message is released.
+     * @return this message.
+     */
+    public Message attachFile(FileChannel fileChannel, long position, long count, boolean closeOnRelease) {
+        if(position < 0 || count < 0){
+            throw new IllegalArgumentException("position: " + position + ", count: " + count);
+        }
+        if(this.fileChannel != null){
+            throw new IllegalStateException("A file is already attached to this message");
+        }
+        this.fileChannel        = fileChannel;
+        this.filePosition       = position;
+        this.fileCount          = count;
+        this.closeFileOnRelease = closeOnRelease;
+        return this;
+    }
+
+    /**
+     * @return the number of file bytes written after the bytes of this message - see attachFile().
+     */
+    public long fileCount() {
+        return this.fileChannel != null ? this.fileCount : 0;
+    }
+
+    /**
+     * Increments the reference count of this message. Call this when the message is kept beyond the call it was
+     * handed to, e.g. a request kept by an IMessageProcessor after process() returns, or a response enqueued to
+     * more than one socket.
+     *
+     * @return this message.
+     */
+    public Message retain() {
+        for(;;){
+            int count = this.referenceCount;
+            if(count <= 0){
+                throw new IllegalStateException("Message already released");
+            }
+            if(REFERENCE_COUNT_UPDATER.compareAndSet(this, count, count + 1)){
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Decrements the reference count of this message. When the count reaches 0 the section of the MessageBuffer
+     * backing this message is returned to the MessageBuffer, and the message must not be used any more.
+     *
+     * @return true if this call released the section backing the message.
+     */
+    public boolean release() {
+        int count = REFERENCE_COUNT_UPDATER.decrementAndGet(this);
+        if(count > 0){
+            return false;
+        }
+        if(count < 0){
+            throw new IllegalStateException("Message released more times than retained");
+        }
+        if(this.fileChannel != null){
+            releaseFile();
+        }
+        // Message.wrap 创建的 message 不属于任何 MessageBuffer，也不会被其它线程上仍在使用的 slice 影响，不需要归还
+        if(this.messageBuffer == null && this.parent == null){
+            return true;
+        }
+        if(this.parent != null){
+            Message parent = this.parent;
+            this.parent       = null;
+            this.sharedArray  = null;
+            this.sharedBuffer = null;
+            this.sectionView  = null;
+            this.capacity     = 0;
+            this.length       = 0;
+            this.metaData     = null;
+            if(parent.messageBuffer != null){
+                parent.release();
+            }
+            return true;
+        }
+        this.messageBuffer.free(this);
+        return true;
+    }
+
+    /**
+     * Returns a read-only view of length bytes of this message, starting at index, without copying them. The slice
+     * shares the section of this message and holds a reference to it, so the section stays allocated until both this
+     * message and all of its slices are released. A slice cannot grow: writing more data into it fails.
+     *
+     * 例如 HttpMessageReader 在一次读取到多个流水线请求时，为每一个完整的请求返回接收缓冲区的一个 slice，而不是把请求拷贝到新的 message 中。
+     *
+     * @param index  the index relative to the start of this message where the slice starts.
+     * @param length the number of bytes in the slice.
+     */
+    public Message slice(int index, int length){
+        if(index < 0 || length < 0 || index + length > this.length){
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length + ", message length: " + this.length);
+        }
+        Message root = this.parent != null ? this.parent : this;
+        // Message.wrap 创建的 message 没有引用计数，所有 SocketProcessor 线程共享它时不需要在同一个计数器上竞争
+        if(root.messageBuffer != null){
+            root.retain();
+        }
+
+        Message slice = new Message(this.messageBuffer);
+        slice.parent       = root;
+        slice.socketId     = this.socketId;
+        slice.sharedBuffer = this.sharedBuffer;
+        slice.sharedArray  = this.sharedArray;
+        slice.offset       = this.offset + index;
+        slice.capacity     = length;
+        slice.length       = length;
+        return slice;
+    }
+
+    private void releaseFile() {
+        FileChannel fileChannel = this.fileChannel;
+        this.fileChannel = null;
+        this.fileCount   = 0;
+        if(this.closeFileOnRelease){
+            try{
+                fileChannel.close();
+            } catch(IOException e){
+                // 文件只被读取，关闭失败不会丢失数据
+            }
+        }
+    }
+
+    public int referenceCount() {
+        return this.referenceCount;
+    }
+
     /**
      * Writes data from the ByteBuffer into this message - meaning into the buffer backing this message.
      * 将 byteBuffer 中的字节数据保存到 message 中，其实是保存到其 MessageBuffer 中
@@ -37,19 +228,23 @@ public class Message {
         // this.capacity 表示 messageBuffer 分配给这个 message 空间的大小
         // 如果 length 与 remaining 之和大于 capacity，那么说明当前 message 的空间大小需要进行扩展
         // 注意，扩展使用 while 循环，是因为需要扩展多次才能满足新的数据空间要求
-        while(this.length + remaining > capacity){
-            if(!this.messageBuffer.expandMessage(this)) {
-                return -1;
-            }
+        if(!ensureCapacity(remaining)){
+            return -1;
         }
 
-        // todo remaining 似乎一定小于 capacity - length（根据上面 while 循环的条件判断），这个是否可以去掉？
-        int bytesToCopy = Math.min(remaining, this.capacity - this.length);
-        // 将 byteBuffer 中的全部数据（bytesToCopy 个字节）保存到 sharedArray 中
-        byteBuffer.get(this.sharedArray, this.offset + this.length, bytesToCopy);
-        this.length += bytesToCopy;
+        if(this.sharedArray != null){
+            // 将 byteBuffer 中的全部数据（remaining 个字节）保存到 sharedArray 中
+            byteBuffer.get(this.sharedArray, this.offset + this.length, remaining);
+        } else {
+            // 通过 duplicate 写入，不改变 sharedBuffer 的 position 和 limit，其他线程也可以安全地写入各自的 message
+            ByteBuffer target = this.sharedBuffer.duplicate();
+            target.clear();
+            target.position(this.offset + this.length);
+            target.put(byteBuffer);
+        }
+        this.length += remaining;
 
-        return bytesToCopy;
+        return remaining;
     }
 
     /**
@@ -70,18 +265,108 @@ public class Message {
      * @return
      */
     public int writeToMessage(byte[] byteArray, int offset, int length){
-        int remaining = length;
+        if(!ensureCapacity(length)){
+            return -1;
+        }
+
+        if(this.sharedArray != null){
+            System.arraycopy(byteArray, offset, this.sharedArray, this.offset + this.length, length);
+        } else {
+            ByteBuffer target = this.sharedBuffer.duplicate();
+            target.clear();
+            target.position(this.offset + this.length);
+            target.put(byteArray, offset, length);
+        }
+        this.length += length;
+        return length;
+    }
+
+    /**
+     * Returns the byte at the given index of this message. Works with both heap and direct MessageBuffers.
+     *
+     * @param index The index relative to the start of this message, from 0 to length - 1.
+     */
+    public byte getByte(int index){
+        if(index < 0 || index >= this.length){
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + this.length);
+        }
+        if(this.sharedArray != null){
+            return this.sharedArray[this.offset + index];
+        }
+        return this.sharedBuffer.get(this.offset + index);
+    }
+
+    /**
+     * Copies bytes of this message into the given byte array. Works with both heap and direct MessageBuffers.
+     *
+     * @param index     The index relative to the start of this message to start copying from.
+     * @param byteArray The byte array to copy into.
+     * @param offset    The offset into the byte array to copy to.
+     * @param length    The maximum number of bytes to copy.
+     * @return the number of bytes copied.
+     */
+    public int readFromMessage(int index, byte[] byteArray, int offset, int length){
+        int bytesToCopy = Math.min(length, this.length - index);
+        if(bytesToCopy <= 0){
+            return 0;
+        }
+        if(this.sharedArray != null){
+            System.arraycopy(this.sharedArray, this.offset + index, byteArray, offset, bytesToCopy);
+        } else {
+            ByteBuffer source = this.sharedBuffer.duplicate();
+            source.clear();
+            source.position(this.offset + index);
+            source.get(byteArray, offset, bytesToCopy);
+        }
+        return bytesToCopy;
+    }
 
-        while(this.length + remaining > capacity){
+    // 通过 expandMessage 扩展 message 的 section，直到 section 中能再放下 bytesToWrite 个字节。slice 不能扩展
+    private boolean ensureCapacity(int bytesToWrite){
+        while(this.length + bytesToWrite > this.capacity){
+            if(this.parent != null || this.messageBuffer == null){
+                return false;
+            }
             if(!this.messageBuffer.expandMessage(this)) {
-                return -1;
+                return false;
             }
         }
+        return true;
+    }
 
-        int bytesToCopy = Math.min(remaining, this.capacity - this.length);
-        System.arraycopy(byteArray, offset, this.sharedArray, this.offset + this.length, bytesToCopy);
-        this.length += bytesToCopy;
-        return bytesToCopy;
+    // 当 message 的 section 已满时，由 Socket.read 调用，将 message 移动到更大的 section 中。如果 section 还被其它 slice
+    // 或者 retain 的使用者引用，就不能移动（移动之后旧的 section 会被归还给 MessageBuffer），返回 false
+    boolean expand(){
+        if(this.parent != null || this.messageBuffer == null || this.referenceCount > 1){
+            return false;
+        }
+        return this.messageBuffer.expandMessage(this);
+    }
+
+    // 返回 section 的视图，index 0 对应 offset。slice 的视图在第一次调用时创建
+    ByteBuffer sectionView(){
+        if(this.sectionView == null && (this.parent != null || this.messageBuffer == null)){
+            ByteBuffer view = this.sharedBuffer.duplicate();
+            view.limit(this.offset + this.capacity).position(this.offset);
+            this.sectionView = view.slice();
+        }
+        return this.sectionView;
+    }
+
+    /**
+     * Discards the first index bytes of this message by moving the remaining bytes to the start of its section. Must
+     * only be called while no slice of this message is in use.
+     *
+     * @param index The index relative to the start of this message of the first byte to keep.
+     */
+    public void compact(int index){
+        if(this.parent != null || this.messageBuffer == null || this.referenceCount > 1){
+            throw new IllegalStateException("Cannot compact a message which is shared with slices or other users");
+        }
+        ByteBuffer section = sectionView();
+        section.limit(this.length).position(index);
+        section.compact();
+        this.length -= index;
     }
 
     /**
@@ -92,14 +377,44 @@ public class Message {
      * @param endIndex  The end index of the first message in the buffer of the message given as parameter.
      */
     public void writePartialMessageToMessage(Message message, int endIndex){
-        int startIndexOfPartialMessage = message.offset + endIndex;
+        // endIndex 是 message.sharedArray 中的绝对位置（HttpUtil.parseHttpRequest 的返回值），不需要再加上 message.offset
+        int startIndexOfPartialMessage = endIndex;
         int lengthOfPartialMessage = (message.offset + message.length) - endIndex;
 
-        System.arraycopy(message.sharedArray, startIndexOfPartialMessage, this.sharedArray, this.offset, lengthOfPartialMessage);
+        this.length = 0;
+        if(!ensureCapacity(lengthOfPartialMessage)){
+            throw new IllegalStateException("Partial message too large for MessageBuffer: " + lengthOfPartialMessage);
+        }
+        if(message.sharedArray != null && this.sharedArray != null){
+            System.arraycopy(message.sharedArray, startIndexOfPartialMessage, this.sharedArray, this.offset, lengthOfPartialMessage);
+        } else {
+            ByteBuffer source = message.sharedBuffer.duplicate();
+            source.clear();
+            source.limit(startIndexOfPartialMessage + lengthOfPartialMessage).position(startIndexOfPartialMessage);
+            ByteBuffer target = this.sharedBuffer.duplicate();
+            target.clear();
+            target.position(this.offset);
+            target.put(source);
+        }
+        this.length = lengthOfPartialMessage;
     }
 
+    /**
+     * Copies as many bytes of this message as fit into the given ByteBuffer.
+     *
+     * @return the number of bytes copied.
+     */
     public int writeToByteBuffer(ByteBuffer byteBuffer){
-        return 0;
+        int bytesToCopy = Math.min(byteBuffer.remaining(), this.length);
+        if(this.sharedArray != null){
+            byteBuffer.put(this.sharedArray, this.offset, bytesToCopy);
+        } else {
+            ByteBuffer source = this.sharedBuffer.duplicate();
+            source.clear();
+            source.limit(this.offset + bytesToCopy).position(this.offset);
+            byteBuffer.put(source);
+        }
+        return bytesToCopy;
     }
 
 }
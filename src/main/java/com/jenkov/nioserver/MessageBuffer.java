@@ -1,97 +1,497 @@
 package com.jenkov.nioserver;
 
+import java.nio.ByteBuffer;
+
 /**
  * A shared buffer which can contain many messages inside. A message gets a section of the buffer to use. If the
  * message outgrows the section in size, the message requests a larger section and the message is copied to that
  * larger section. The smaller section is then freed again.
  *
- * 在这个 NIO Server 中 MessageBuffer 是真正用来存储客户端发送过来的消息，它把发送过来的消息分为 small、medium 以及 large 三个
- * 层次，分别表示 4KB、128KB、1MB 大小。给 small 类的消息分配了 1024 个 section，给 medium 类的消息分配了 128 个 section，
- * 给 large 类的消息分配了 16 个 section。
+ * 在这个 NIO Server 中 MessageBuffer 是真正用来存储客户端发送过来的消息，它把消息按照 MessageBufferConfig 中配置的 size class
+ * 分为多个层次，默认是 small、medium 以及 large 三个层次，分别表示 4KB、128KB、1MB 大小。
+ *
+ * 在分配具体的消息块时，都是先分配一个最小 size class 的 section 块，当接收到的消息字节数超过这个 section 的大小时，就会分配一个
+ * 更大的 size class 的 section 块，然后将原来 section 中的内容保存到新的 section 中，如果已经是最大的 size class，直接返回 false。
+ *
+ * 每一个 size class 的 section 以 slab 为单位分配，一个 slab 就是一个字节数组，里面包含 sectionsPerSlab 个 section。
+ * 一个 section 使用一个 int 类型的 section 编号来表示：sectionId = slabIndex * sectionsPerSlab + slab 内的 section 序号。
+ * 空闲的 section 编号保存在每个 size class 的一个栈中：当有 message 到达需要分配一个 section 进行存储时，就从栈顶取出一个
+ * 空闲的 section 编号，当 message 被 release 之后，再把它放回栈顶。后进先出使得刚刚释放的 section 马上被重新使用，它还在 CPU
+ * 缓存中；同时 section 集中在少数几个 slab 中，负载下降之后其余的 slab 可以完全空闲下来被释放。HttpMessageReader 在每个请求
+ * 解析完之后都会归还接收缓冲区，下一次读取时再分配，这一点尤其重要。
+ *
+ * 当某个 size class 没有空闲的 section 时，会再分配一个新的 slab（最多 maxSlabs 个），而超过 initialSlabs 的 slab 如果在
+ * slabIdleTimeout 时间内都没有被使用，就会在 releaseIdleSlabs 中被释放，交给 GC 回收。
  *
- * 在分配具体的消息块时，都是先分配一个 small 类型的 section 块，当接收到的消息字节数超过 CAPACITY_SMALL 时，就会分配一个新的
- * medium 类型的 section 块，然后将 small section 中的内容保存到 medium section 中，如果字节数超过 CAPACITY_MEDIUM 时，就
- * 会分配 large section 块，如果再超过，直接返回 false。
+ * slab 可以是 heap 上的字节数组，也可以是 direct ByteBuffer（MessageBufferConfig.setDirect）。使用 direct ByteBuffer 时，
+ * socket 可以直接把数据读入到 message 的 section 中，或者直接从 section 写出到 socket，JDK 不需要再经过一个临时的
+ * direct buffer 进行拷贝。
  *
- * 在分配每一类的 section 时，需要对已经分配出去的内存块进行记录。这里使用的是 QueueIntFlip 类来保存已经分配出去的 section 的起始
- * 地址。QueueIntFlip 内部有一个 int 数组 elements 来进行记录，这个 QueueIntFlip 使用类似于生产者消费者的模式。在其初始化时，就
- * 会填充满所有 section 的地址，当有 message 到达需要分配一个 section 进行存储时，就会从 QueueIntFlip 中 take 一个 freeBlock
- * Address（消费者），当 message 处理完成之后，就调用 put 方法将其归还到 QueueIntFlip 中（生产者）。
+ * 分配和释放 section 的方法都是 synchronized 的：使用 ServerConfig.messageProcessorExecutor 时，IMessageProcessor 在工作线程中
+ * 调用 WriteProxy.getMessage() 分配响应消息，并且在工作线程中 release 请求消息。锁基本上没有竞争，开销很小。
  */
-@SuppressWarnings("PointlessArithmeticExpression")
 public class MessageBuffer {
 
     public static int KB = 1024;
     public static int MB = 1024 * 1024;
 
-    private static final int CAPACITY_SMALL = 4 * KB;
-    private static final int CAPACITY_MEDIUM = 128 * KB;
-    private static final int CAPACITY_LARGE = 1024 * KB;
+    private final SizeClass[] sizeClasses;
+    private final long maxBytes;
+    private final long slabIdleTimeoutNanos;
+    private final boolean direct;
 
-    //package scope (default) - so they can be accessed from unit tests.
-    byte[] smallMessageBuffer = new byte[1024 * 4 * KB];   //1024 x   4KB messages =  4MB.
-    byte[] mediumMessageBuffer = new byte[128 * 128 * KB];   // 128 x 128KB messages = 16MB.
-    byte[] largeMessageBuffer = new byte[16 * 1 * MB];   //  16 *   1MB messages = 16MB.
+    // 用于检测 section 泄漏：allocatedCount - freedCount 就是当前仍在使用中的 message 数量
+    private long allocatedCount = 0;
+    private long freedCount     = 0;
+
+    // expandMessage 把 message 移动到更大的 section 中的次数，以及因为已经是最大的 size class 或者 section 已经用完而失败的次数
+    private long expandCount       = 0;
+    private long expandFailedCount = 0;
 
-    QueueIntFlip smallMessageBufferFreeBlocks = new QueueIntFlip(1024); // 1024 free sections
-    QueueIntFlip mediumMessageBufferFreeBlocks = new QueueIntFlip(128);  // 128  free sections
-    QueueIntFlip largeMessageBufferFreeBlocks = new QueueIntFlip(16);   // 16   free sections
+    private long slabsAllocated = 0;
+    private long slabsReleased  = 0;
+    // 当前所有 size class 已经分配的 slab 的总字节数，不超过 maxBytes
+    private long slabBytes      = 0;
+    // allocateSlab 因为 OutOfMemoryError 失败的次数
+    private long slabAllocationFailures = 0;
 
     public MessageBuffer() {
-        // 分别初始化 small、medium、large 这三个层次对应的 QueueIntFlip，即它们 section 对应的初始地址
-        // add all free sections to all free section queues.
-        for(int i=0; i<smallMessageBuffer.length; i+= CAPACITY_SMALL){
-            this.smallMessageBufferFreeBlocks.put(i);
+        this(MessageBufferConfig.defaultConfig());
+    }
+
+    public MessageBuffer(MessageBufferConfig config) {
+        if(config.getSizeClassCount() == 0){
+            throw new IllegalArgumentException("MessageBufferConfig contains no size classes");
         }
-        for(int i=0; i<mediumMessageBuffer.length; i+= CAPACITY_MEDIUM){
-            this.mediumMessageBufferFreeBlocks.put(i);
+
+        long initialBytes = 0;
+        for(int i=0; i<config.getSizeClassCount(); i++){
+            long slabSize = (long) config.sectionSizes[i] * config.sectionsPerSlab[i];
+            if(slabSize > config.maxBytes){
+                throw new IllegalArgumentException("A slab of " + slabSize + " bytes does not fit into maxBytes " + config.maxBytes);
+            }
+            initialBytes += slabSize * config.initialSlabs[i];
         }
-        for(int i=0; i<largeMessageBuffer.length; i+= CAPACITY_LARGE){
-            this.largeMessageBufferFreeBlocks.put(i);
+        if(initialBytes > config.maxBytes){
+            throw new IllegalArgumentException("The initial slabs (" + initialBytes + " bytes) do not fit into maxBytes " + config.maxBytes);
         }
+
+        this.direct = config.direct;
+        this.maxBytes = config.maxBytes;
+        this.sizeClasses = new SizeClass[config.getSizeClassCount()];
+        for(int i=0; i<this.sizeClasses.length; i++){
+            this.sizeClasses[i] = new SizeClass(config.sectionSizes[i], config.sectionsPerSlab[i], config.initialSlabs[i], config.maxSlabs[i]);
+
+            // 预先分配 initialSlabs 个 slab，并且将它们的 section 编号放入空闲 section 的栈中
+            for(int slab=0; slab<this.sizeClasses[i].initialSlabs; slab++){
+                allocateSlab(this.sizeClasses[i]);
+            }
+        }
+        this.slabIdleTimeoutNanos = config.slabIdleTimeoutMillis * 1000L * 1000L;
     }
 
-    // 分配字节数组，创建一个 Message 对象，分配时，先从 small 类型的内存开始
+    // 分配字节数组，创建一个 Message 对象，分配时，先从最小的 size class 开始
     public Message getMessage() {
-        // 获取 small section 的内存地址，即 small section 位于 smallMessageBuffer 数组上的位置
-        int nextFreeSmallBlock = this.smallMessageBufferFreeBlocks.take();
+        return getMessage(0);
+    }
 
-        if(nextFreeSmallBlock == -1) return null;
+    /**
+     * Allocates a message in the smallest size class whose sections hold at least minCapacity bytes, or in the largest
+     * size class. If that size class is exhausted, the smaller size classes are tried in turn - the message is then
+     * expanded once it actually needs the space.
+     *
+     * @return the message, or null if no size class up to the requested one has a free section.
+     */
+    public synchronized Message getMessage(int minCapacity) {
+        for(int sizeClassIndex = getSizeClassIndex(minCapacity); sizeClassIndex >= 0; sizeClassIndex--){
+            int sectionId = takeSection(this.sizeClasses[sizeClassIndex]);
+            if(sectionId == -1){
+                continue;
+            }
 
-        Message message = new Message(this);
-        // sharedArray 指向 smallMessageBuffer 数组，分配在这个数组上进行
-        message.sharedArray = this.smallMessageBuffer;
-        // capacity 表示分配的空间大小
-        message.capacity    = CAPACITY_SMALL;
-        // offset 表示消息被分配的起始位置
-        message.offset      = nextFreeSmallBlock;
-        message.length      = 0;
+            Message message = new Message(this);
+            assignSection(message, sizeClassIndex, sectionId);
+            message.length = 0;
 
-        return message;
+            this.allocatedCount++;
+            return message;
+        }
+        return null;
     }
 
-    public boolean expandMessage(Message message){
-        if(message.capacity == CAPACITY_SMALL){
-            return moveMessage(message, this.smallMessageBufferFreeBlocks, this.mediumMessageBufferFreeBlocks, this.mediumMessageBuffer, CAPACITY_MEDIUM);
-        } else if(message.capacity == CAPACITY_MEDIUM){
-            return moveMessage(message, this.mediumMessageBufferFreeBlocks, this.largeMessageBufferFreeBlocks, this.largeMessageBuffer, CAPACITY_LARGE);
-        } else {
+    public synchronized boolean expandMessage(Message message){
+        int sizeClassIndex = message.sizeClassIndex;
+        if(sizeClassIndex + 1 >= this.sizeClasses.length){
+            this.expandFailedCount++;
+            return false;
+        }
+
+        SizeClass destClass = this.sizeClasses[sizeClassIndex + 1];
+        int sectionId = takeSection(destClass);
+        if(sectionId == -1) {
+            this.expandFailedCount++;
             return false;
         }
+        this.expandCount++;
+
+        int destSlab   = sectionId / destClass.sectionsPerSlab;
+        int destOffset = (sectionId % destClass.sectionsPerSlab) * destClass.sectionSize;
+        if(message.sharedArray != null){
+            System.arraycopy(message.sharedArray, message.offset, destClass.slabArrays[destSlab], destOffset, message.length);
+        } else {
+            // 通过两个 section 各自的视图进行拷贝，不改变 slab 的 position 和 limit
+            ByteBuffer src  = message.sectionView;
+            ByteBuffer dest = destClass.sectionViews[sectionId];
+            src.clear();
+            src.limit(message.length);
+            dest.clear();
+            dest.put(src);
+        }
+
+        //free smaller section after copy
+        putSection(this.sizeClasses[sizeClassIndex], message.sectionId);
+
+        assignSection(message, sizeClassIndex + 1, sectionId);
+        return true;
+    }
+
+    /**
+     * Returns the section backing the given message to the free section queue of its size class. Called by
+     * Message.release() when the reference count of the message drops to 0.
+     */
+    synchronized void free(Message message) {
+        if(message.sizeClassIndex < 0 || message.sizeClassIndex >= this.sizeClasses.length){
+            throw new IllegalArgumentException("Message does not belong to this MessageBuffer, size class: " + message.sizeClassIndex);
+        }
+        putSection(this.sizeClasses[message.sizeClassIndex], message.sectionId);
+
+        // 清空 message 对 section 的引用，避免 release 之后继续误用
+        message.sharedArray    = null;
+        message.sharedBuffer   = null;
+        message.sectionView    = null;
+        message.capacity       = 0;
+        message.length         = 0;
+        message.metaData       = null;
+        message.sizeClassIndex = -1;
+        message.sectionId      = -1;
+
+        this.freedCount++;
+    }
+
+    /**
+     * Releases slabs beyond the initial slabs of each size class that have had no section in use for longer than the
+     * configured slab idle timeout. Meant to be called periodically from the thread owning this MessageBuffer.
+     *
+     * @param nowNanos the current System.nanoTime().
+     * @return the number of slabs released.
+     */
+    public synchronized int releaseIdleSlabs(long nowNanos) {
+        if(this.slabIdleTimeoutNanos <= 0){
+            return 0;
+        }
+
+        int released = 0;
+        for(int i=0; i<this.sizeClasses.length; i++){
+            SizeClass sizeClass = this.sizeClasses[i];
+            for(int slab=sizeClass.initialSlabs; slab<sizeClass.maxSlabs; slab++){
+                if(sizeClass.slabBuffers[slab] == null){
+                    continue;
+                }
+                if(sizeClass.sectionsInUse[slab] > 0){
+                    sizeClass.slabIdleSince[slab] = 0;
+                } else if(sizeClass.slabIdleSince[slab] == 0){
+                    sizeClass.slabIdleSince[slab] = nowNanos;
+                } else if(nowNanos - sizeClass.slabIdleSince[slab] >= this.slabIdleTimeoutNanos){
+                    releaseSlab(sizeClass, slab);
+                    released++;
+                }
+            }
+        }
+        return released;
+    }
+
+    /**
+     * @return the total number of messages handed out by getMessage().
+     */
+    public synchronized long getAllocatedCount() {
+        return this.allocatedCount;
+    }
+
+    /**
+     * @return the total number of messages whose sections have been returned by Message.release().
+     */
+    public synchronized long getFreedCount() {
+        return this.freedCount;
+    }
+
+    /**
+     * @return the number of messages handed out and not yet released. If this keeps growing under a steady load,
+     * some code path is not releasing its messages.
+     */
+    public synchronized long getMessagesInUse() {
+        return this.allocatedCount - this.freedCount;
+    }
+
+    /**
+     * @return the number of messages moved to a larger section by expandMessage().
+     */
+    public synchronized long getExpandCount() {
+        return this.expandCount;
+    }
+
+    /**
+     * @return the number of expandMessage() calls that failed, because the message was already in the largest size
+     * class or because all sections of the larger size class were in use.
+     */
+    public synchronized long getExpandFailedCount() {
+        return this.expandFailedCount;
+    }
+
+    public synchronized long getSlabsAllocated() {
+        return this.slabsAllocated;
+    }
+
+    public synchronized long getSlabsReleased() {
+        return this.slabsReleased;
+    }
+
+    /**
+     * @return the number of bytes of all slabs currently allocated. Never more than MessageBufferConfig.setMaxBytes.
+     */
+    public synchronized long getSlabBytes() {
+        return this.slabBytes;
+    }
+
+    /**
+     * @return the number of slabs which could not be allocated because the JVM ran out of memory.
+     */
+    public synchronized long getSlabAllocationFailures() {
+        return this.slabAllocationFailures;
+    }
+
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    public int getSizeClassCount() {
+        return this.sizeClasses.length;
+    }
+
+    public int getSectionSize(int sizeClassIndex) {
+        return this.sizeClasses[sizeClassIndex].sectionSize;
+    }
+
+    /**
+     * @return the index of the smallest size class whose sections hold at least minCapacity bytes, or of the largest
+     * size class if no section is that large.
+     */
+    public int getSizeClassIndex(int minCapacity) {
+        int sizeClassIndex = 0;
+        while(sizeClassIndex < this.sizeClasses.length - 1 && this.sizeClasses[sizeClassIndex].sectionSize < minCapacity){
+            sizeClassIndex++;
+        }
+        return sizeClassIndex;
+    }
+
+    /**
+     * @return the number of free sections in the slabs currently allocated for the given size class. Does not
+     * include sections of slabs which may still be allocated on demand.
+     */
+    public synchronized int getFreeSections(int sizeClassIndex) {
+        return this.sizeClasses[sizeClassIndex].freeCount;
+    }
+
+    public synchronized int getAllocatedSlabs(int sizeClassIndex) {
+        return this.sizeClasses[sizeClassIndex].allocatedSlabs;
+    }
+
+    /**
+     * @return the number of sections of the given size class that can still be handed out: the free sections of the
+     * allocated slabs plus all sections of the slabs which may still be allocated on demand, within maxSlabs and
+     * within the bytes left of maxBytes.
+     */
+    public synchronized int getAvailableSections(int sizeClassIndex) {
+        SizeClass sizeClass = this.sizeClasses[sizeClassIndex];
+        return (int) (sizeClass.freeCount + allocatableSlabs(sizeClass) * sizeClass.sectionsPerSlab);
+    }
+
+    /**
+     * @return the percentage (0 - 100) of sections still available in the size class closest to exhaustion. The
+     * SocketProcessor stops reading new requests when this drops below ServerConfig.bufferLowWatermarkPercent.
+     * Slabs of all size classes share maxBytes, so one size class growing lowers the percentage of the others.
+     */
+    public synchronized int getAvailablePercent() {
+        int availablePercent = 100;
+        for(int i=0; i<this.sizeClasses.length; i++){
+            SizeClass sizeClass = this.sizeClasses[i];
+            long maxSections = Math.min(sizeClass.maxSlabs, this.maxBytes / sizeClass.slabSize()) * sizeClass.sectionsPerSlab;
+            long available   = sizeClass.freeCount + allocatableSlabs(sizeClass) * sizeClass.sectionsPerSlab;
+            availablePercent = (int) Math.min(availablePercent, available * 100 / maxSections);
+        }
+        return availablePercent;
+    }
+
+    // 这个 size class 还可以分配的 slab 数量：不超过 maxSlabs，并且不超过 maxBytes 剩余的字节数
+    private long allocatableSlabs(SizeClass sizeClass) {
+        return Math.min(sizeClass.maxSlabs - sizeClass.allocatedSlabs, (this.maxBytes - this.slabBytes) / sizeClass.slabSize());
+    }
+
+    public int getFreeSmallSections() {
+        return getFreeSections(0);
+    }
+
+    public int getFreeMediumSections() {
+        return this.sizeClasses.length > 1 ? getFreeSections(1) : 0;
+    }
+
+    public int getFreeLargeSections() {
+        return this.sizeClasses.length > 2 ? getFreeSections(2) : 0;
+    }
+
+    //package scope (default) - so they can be accessed from unit tests.
+    byte[] getSlab(int sizeClassIndex, int slabIndex) {
+        return this.sizeClasses[sizeClassIndex].slabArrays[slabIndex];
+    }
+
+    private void assignSection(Message message, int sizeClassIndex, int sectionId) {
+        SizeClass sizeClass = this.sizeClasses[sizeClassIndex];
+
+        // sharedBuffer 和 sharedArray 指向 section 所在的 slab，offset 表示 section 在 slab 中的起始位置，capacity 表示 section 的大小
+        int slab = sectionId / sizeClass.sectionsPerSlab;
+        message.sharedBuffer   = sizeClass.slabBuffers[slab];
+        message.sharedArray    = sizeClass.slabArrays[slab];
+        message.sectionView    = sizeClass.sectionViews[sectionId];
+        message.offset         = (sectionId % sizeClass.sectionsPerSlab) * sizeClass.sectionSize;
+        message.capacity       = sizeClass.sectionSize;
+        message.sizeClassIndex = sizeClassIndex;
+        message.sectionId      = sectionId;
+    }
+
+    private int takeSection(SizeClass sizeClass) {
+        if(sizeClass.freeCount == 0){
+            // 当前 size class 没有空闲的 section，按需分配一个新的 slab
+            if(!allocateSlab(sizeClass)){
+                return -1;
+            }
+        }
+        int sectionId = sizeClass.freeSections[--sizeClass.freeCount];
+        sizeClass.sectionsInUse[sectionId / sizeClass.sectionsPerSlab]++;
+        return sectionId;
     }
 
-    private boolean moveMessage(Message message, QueueIntFlip srcBlockQueue, QueueIntFlip destBlockQueue, byte[] dest, int newCapacity) {
-        int nextFreeBlock = destBlockQueue.take();
-        if(nextFreeBlock == -1) return false;
+    private void putSection(SizeClass sizeClass, int sectionId) {
+        sizeClass.sectionsInUse[sectionId / sizeClass.sectionsPerSlab]--;
+        sizeClass.freeSections[sizeClass.freeCount++] = sectionId;
+    }
+
+    private boolean allocateSlab(SizeClass sizeClass) {
+        // 找到第一个空出来的 slab 位置，被释放的 slab 的位置可以重新使用
+        int slab = 0;
+        while(slab < sizeClass.maxSlabs && sizeClass.slabBuffers[slab] != null){
+            slab++;
+        }
+        int slabSize = sizeClass.slabSize();
+        if(slab == sizeClass.maxSlabs || this.slabBytes + slabSize > this.maxBytes){
+            return false;
+        }
+
+        // 堆（或者 direct memory）不足时，这次分配失败，getMessage 返回 null，调用者按照 section 不足处理。
+        // 不能让 OutOfMemoryError 结束 SocketProcessor 线程
+        try{
+            if(this.direct){
+                sizeClass.slabBuffers[slab] = ByteBuffer.allocateDirect(slabSize);
+            } else {
+                sizeClass.slabArrays[slab]  = new byte[slabSize];
+                sizeClass.slabBuffers[slab] = ByteBuffer.wrap(sizeClass.slabArrays[slab]);
+            }
+        } catch(OutOfMemoryError e){
+            sizeClass.slabArrays[slab] = null;
+            this.slabAllocationFailures++;
+            return false;
+        }
+        this.slabBytes += slabSize;
+        sizeClass.sectionsInUse[slab] = 0;
+        sizeClass.slabIdleSince[slab] = 0;
+        sizeClass.allocatedSlabs++;
 
-        System.arraycopy(message.sharedArray, message.offset, dest, nextFreeBlock, message.length);
+        // 为 slab 中的每一个 section 预先创建一个视图（slice），视图的 index 0 对应 section 的起始位置。
+        // socket 读写 message 时只修改这个视图的 position 和 limit，因此多个 message 可以同时出现在一次 gathering write 中
+        int firstSectionId = slab * sizeClass.sectionsPerSlab;
+        for(int i=0; i<sizeClass.sectionsPerSlab; i++){
+            ByteBuffer view = sizeClass.slabBuffers[slab].duplicate();
+            view.limit((i + 1) * sizeClass.sectionSize).position(i * sizeClass.sectionSize);
+            sizeClass.sectionViews[firstSectionId + i] = view.slice();
+        }
 
-        srcBlockQueue.put(message.offset); //free smaller block after copy
+        // 新 slab 的 section 编号放在栈底，并且第一个 section 最先被取出：已有的空闲 section 仍然优先使用，
+        // 新的 slab 只在它们用完之后才开始被使用
+        System.arraycopy(sizeClass.freeSections, 0, sizeClass.freeSections, sizeClass.sectionsPerSlab, sizeClass.freeCount);
+        for(int i=0; i<sizeClass.sectionsPerSlab; i++){
+            sizeClass.freeSections[i] = firstSectionId + sizeClass.sectionsPerSlab - 1 - i;
+        }
+        sizeClass.freeCount += sizeClass.sectionsPerSlab;
 
-        message.sharedArray = dest;
-        message.offset = nextFreeBlock;
-        message.capacity = newCapacity;
+        this.slabsAllocated++;
         return true;
     }
 
+    private void releaseSlab(SizeClass sizeClass, int slab) {
+        // 所有 section 都是空闲的，把属于这个 slab 的 section 编号从栈中去掉，其余的保持原来的顺序
+        int[] freeSections = sizeClass.freeSections;
+        int freeCount = 0;
+        for(int i=0; i<sizeClass.freeCount; i++){
+            if(freeSections[i] / sizeClass.sectionsPerSlab != slab){
+                freeSections[freeCount++] = freeSections[i];
+            }
+        }
+        sizeClass.freeCount = freeCount;
+
+        sizeClass.slabBuffers[slab] = null;
+        sizeClass.slabArrays[slab]  = null;
+        for(int i=0; i<sizeClass.sectionsPerSlab; i++){
+            sizeClass.sectionViews[slab * sizeClass.sectionsPerSlab + i] = null;
+        }
+        sizeClass.slabIdleSince[slab] = 0;
+        sizeClass.allocatedSlabs--;
+        this.slabBytes -= sizeClass.slabSize();
+
+        this.slabsReleased++;
+    }
+
+    private static final class SizeClass {
+        final int sectionSize;
+        final int sectionsPerSlab;
+        final int initialSlabs;
+        final int maxSlabs;
+
+        final ByteBuffer[] slabBuffers;
+        final byte[][]     slabArrays;     // 只有 heap 类型的 slab 才有对应的字节数组
+        final ByteBuffer[] sectionViews;   // 按 section 编号索引，每一个 section 在 slab 上的视图
+        final int[]    sectionsInUse;
+        final long[]   slabIdleSince;    // 0 表示 slab 正在使用中，否则表示 slab 开始空闲的时间
+        final int[]    freeSections;     // 空闲 section 编号的栈，栈顶是最近释放的 section
+
+        int freeCount      = 0;
+        int allocatedSlabs = 0;
+
+        SizeClass(int sectionSize, int sectionsPerSlab, int initialSlabs, int maxSlabs) {
+            this.sectionSize     = sectionSize;
+            this.sectionsPerSlab = sectionsPerSlab;
+            this.initialSlabs    = initialSlabs;
+            this.maxSlabs        = maxSlabs;
+
+            this.slabBuffers   = new ByteBuffer[maxSlabs];
+            this.slabArrays    = new byte[maxSlabs][];
+            this.sectionViews  = new ByteBuffer[sectionsPerSlab * maxSlabs];
+            this.sectionsInUse = new int[maxSlabs];
+            this.slabIdleSince = new long[maxSlabs];
+            // 栈的容量足够放下所有 slab 的 section 编号，因此不会溢出
+            this.freeSections  = new int[sectionsPerSlab * maxSlabs];
+        }
+
+        int slabSize() {
+            return this.sectionsPerSlab * this.sectionSize;
+        }
+    }
+
 }
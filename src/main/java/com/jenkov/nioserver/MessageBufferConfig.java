@@ -0,0 +1,110 @@
+package com.jenkov.nioserver;
+
+/**
+ * Configures the size classes of a MessageBuffer.
+ *
+ * 每一个 size class 对应一种大小的 section（比如 4KB、128KB、1MB），section 以 slab 为单位分配：一个 slab 是一个字节数组，
+ * 包含 sectionsPerSlab 个 section。MessageBuffer 创建时分配 initialSlabs 个 slab，当 size class 中没有空闲的 section 时，
+ * 再按需分配新的 slab，最多分配 maxSlabs 个。超过 initialSlabs 的 slab 如果空闲时间超过 slabIdleTimeout，就会被释放掉。
+ * 所有 size class 的 slab 加起来不超过 maxBytes 字节，这个上限和 JVM 的堆大小无关，需要根据堆大小以及 SocketProcessor 的数量设置
+ * （每个 SocketProcessor 有一个 readMessageBuffer 和一个 writeMessageBuffer）。
+ *
+ * size class 必须按照 section 大小从小到大的顺序添加，Message 总是先分配最小的 section，放不下时再依次移动到更大的 section。
+ */
+public class MessageBufferConfig {
+
+    int[] sectionSizes    = new int[0];
+    int[] sectionsPerSlab = new int[0];
+    int[] initialSlabs    = new int[0];
+    int[] maxSlabs        = new int[0];
+
+    long maxBytes = Long.MAX_VALUE;
+
+    long slabIdleTimeoutMillis = 30 * 1000;
+
+    boolean direct = false;
+
+    /**
+     * The configuration used by new MessageBuffer(): the same 1024 x 4KB, 128 x 128KB and 16 x 1MB sections that
+     * were previously allocated up front (36MB), allowed to grow on demand to at most 96MB of slabs in total.
+     */
+    public static MessageBufferConfig defaultConfig() {
+        return new MessageBufferConfig()
+                .addSizeClass(   4 * MessageBuffer.KB, 256,  4,  32)  //  256 x   4KB = 1MB slabs,  4MB up front, at most 32MB
+                .addSizeClass( 128 * MessageBuffer.KB,  16,  8,  32)  //   16 x 128KB = 2MB slabs, 16MB up front, at most 64MB
+                .addSizeClass(1024 * MessageBuffer.KB,   4,  4,  16)  //    4 x   1MB = 4MB slabs, 16MB up front, at most 64MB
+                .setMaxBytes(96L * MessageBuffer.MB);
+    }
+
+    /**
+     * Appends a size class. Size classes must be added in increasing order of sectionSize.
+     *
+     * @param sectionSize     the capacity of each section (message) in this size class.
+     * @param sectionsPerSlab the number of sections allocated together in one slab.
+     * @param initialSlabs    the number of slabs allocated up front. These are never released.
+     * @param maxSlabs        the maximum number of slabs this size class may grow to.
+     */
+    public MessageBufferConfig addSizeClass(int sectionSize, int sectionsPerSlab, int initialSlabs, int maxSlabs) {
+        int count = this.sectionSizes.length;
+        if(sectionSize <= 0 || sectionsPerSlab <= 0 || initialSlabs < 0 || maxSlabs < Math.max(1, initialSlabs)){
+            throw new IllegalArgumentException("Invalid size class: sectionSize=" + sectionSize + ", sectionsPerSlab=" + sectionsPerSlab +
+                    ", initialSlabs=" + initialSlabs + ", maxSlabs=" + maxSlabs);
+        }
+        if(count > 0 && sectionSize <= this.sectionSizes[count - 1]){
+            throw new IllegalArgumentException("Size classes must be added in increasing order of section size: " + sectionSize);
+        }
+        if((long) sectionSize * sectionsPerSlab > Integer.MAX_VALUE || (long) sectionsPerSlab * maxSlabs > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Size class too large: sectionSize=" + sectionSize + ", sectionsPerSlab=" + sectionsPerSlab +
+                    ", maxSlabs=" + maxSlabs);
+        }
+
+        this.sectionSizes    = append(this.sectionSizes, sectionSize);
+        this.sectionsPerSlab = append(this.sectionsPerSlab, sectionsPerSlab);
+        this.initialSlabs    = append(this.initialSlabs, initialSlabs);
+        this.maxSlabs        = append(this.maxSlabs, maxSlabs);
+        return this;
+    }
+
+    /**
+     * @param maxBytes the maximum number of bytes of slabs, over all size classes. Slabs are not allocated beyond it,
+     *                 even if their size class has not reached maxSlabs. The initial slabs must fit into it.
+     */
+    public MessageBufferConfig setMaxBytes(long maxBytes) {
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("Invalid maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param slabIdleTimeoutMillis how long a slab beyond the initial slabs must stay completely unused before it is
+     *                              released. 0 or less disables releasing slabs.
+     */
+    public MessageBufferConfig setSlabIdleTimeout(long slabIdleTimeoutMillis) {
+        this.slabIdleTimeoutMillis = slabIdleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param direct true to allocate slabs as direct (off-heap) ByteBuffers, so sockets read and write message
+     *               sections without the JDK copying them through a temporary direct buffer. Messages of a direct
+     *               MessageBuffer have no sharedArray - use the Message accessors or sharedBuffer instead.
+     */
+    public MessageBufferConfig setDirect(boolean direct) {
+        this.direct = direct;
+        return this;
+    }
+
+    public int getSizeClassCount() {
+        return this.sectionSizes.length;
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] newArray = new int[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = value;
+        return newArray;
+    }
+
+}
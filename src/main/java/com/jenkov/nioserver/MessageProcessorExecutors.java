@@ -0,0 +1,61 @@
+package com.jenkov.nioserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for executors to use as ServerConfig.messageProcessorExecutor.
+ */
+public class MessageProcessorExecutors {
+
+    /**
+     * @return an executor with a fixed number of daemon worker threads, named MessageProcessor-0, MessageProcessor-1 etc.
+     */
+    public static ExecutorService fixedThreadPool(int threadCount) {
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "MessageProcessor-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threadCount, threadFactory);
+    }
+
+    /**
+     * @return true if this JVM supports virtual threads (Java 21 and later).
+     */
+    public static boolean isVirtualThreadSupported() {
+        return findVirtualThreadFactoryMethod() != null;
+    }
+
+    /**
+     * Returns an executor which runs each task in a new virtual thread, so message processors may block (e.g. on a
+     * database call) without tying up a platform thread. The executor is looked up by reflection, so this class still
+     * compiles and runs on JVMs without virtual threads.
+     *
+     * @throws UnsupportedOperationException if this JVM does not support virtual threads.
+     */
+    public static ExecutorService virtualThreadPerTask() {
+        Method factoryMethod = findVirtualThreadFactoryMethod();
+        if(factoryMethod == null){
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on " + System.getProperty("java.version"));
+        }
+        try{
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch(ReflectiveOperationException e){
+            throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+        }
+    }
+
+    private static Method findVirtualThreadFactoryMethod() {
+        try{
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch(NoSuchMethodException e){
+            return null;
+        }
+    }
+
+}
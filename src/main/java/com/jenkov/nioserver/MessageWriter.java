@@ -10,14 +10,40 @@ import java.util.List;
  */
 public class MessageWriter {
 
+    // 一次 gathering write 最多包含的 message 数量（iovec 数量，小于 Linux 的 IOV_MAX 1024）以及字节数。流水线请求的响应
+    // 应该尽量在一次 write 中发出：分成两次写入时，第二次的小数据包会被 Nagle 算法延迟到客户端的（延迟）ACK 到达之后
+    static final int MAX_MESSAGES_PER_WRITE = 512;
+    private static final int MAX_BYTES_PER_WRITE    = 256 * 1024;
+
     private List<Message> writeQueue   = new ArrayList<>();
     private Message  messageInProgress = null;
     private int bytesWritten = 0;
 
+    // messageInProgress 附带文件时（见 Message.attachFile），文件部分已经写入 socket 的字节数。只有在 section 中的字节全部写完之后才开始写文件
+    private long fileBytesWritten = 0;
+
+    // 队列中（包括 messageInProgress）还没有全部写出的 message 的 section 字节数，不包括附带的文件
+    private long queuedBytes = 0;
+
+    // gathering write 使用的 ByteBuffer 数组，每一个元素都是一个 message 的 section 视图，在每次写完之后清空。
+    // 同一个 SocketProcessor 上的 MessageWriter 共享一个数组，空闲的连接不需要各自持有一个 512 个元素的数组
+    private final ByteBuffer[] writeBuffers;
+
     public MessageWriter() {
+        this(new ByteBuffer[MAX_MESSAGES_PER_WRITE]);
+    }
+
+    /**
+     * @param writeBuffers the array used for gathering writes, with at least MAX_MESSAGES_PER_WRITE elements. It is
+     *                     only used within write() and cleared afterwards, so it can be shared by all MessageWriters
+     *                     written by the same thread.
+     */
+    MessageWriter(ByteBuffer[] writeBuffers) {
+        this.writeBuffers = writeBuffers;
     }
 
     public void enqueue(Message message) {
+        this.queuedBytes += message.length;
         if(this.messageInProgress == null){
             this.messageInProgress = message;
         } else {
@@ -25,24 +51,128 @@ public class MessageWriter {
         }
     }
 
-    public void write(Socket socket, ByteBuffer byteBuffer) throws IOException {
-        // put 方法将 messageInProgress 中的数据写入到 byteBuffer 中
-        byteBuffer.put(this.messageInProgress.sharedArray, this.messageInProgress.offset + this.bytesWritten, this.messageInProgress.length - this.bytesWritten);
-        byteBuffer.flip();
+    public void write(Socket socket) throws IOException {
+        // 一次 gathering write 最多只能包含 MAX_MESSAGES_PER_WRITE 个 message，比如流水线请求一次产生了上百个响应。只要上一次
+        // 写入的数据全部被 socket 接收了，就继续写下一批，直到 writeQueue 为空或者内核的发送缓冲区已满
+        while(this.messageInProgress != null){
+            boolean completed = this.messageInProgress.fileChannel != null && this.bytesWritten == this.messageInProgress.length
+                    ? writeFile(socket) : writeBatch(socket);
+            if(!completed){
+                return;
+            }
+        }
+    }
+
+    // 通过一次 gathering write 写入一批 message，返回这一批是否全部写入了 socket
+    private boolean writeBatch(Socket socket) throws IOException {
+        // 除了 messageInProgress 以外，把 writeQueue 中排在后面的 message 也一起放到 writeBuffers 中，
+        // 在字节数和 message 数量的限制之内，通过一次 GatheringByteChannel.write 系统调用发送出去
+        ByteBuffer section = this.messageInProgress.sectionView();
+        section.limit(this.messageInProgress.length).position(this.bytesWritten);
+        this.writeBuffers[0] = section;
+        int bufferCount = 1;
+        int bytesToWrite = this.messageInProgress.length - this.bytesWritten;
+
+        // 附带文件的 message 的文件部分必须在后面的 message 之前写入，因此这一批在它的 section 之后结束
+        Message last = this.messageInProgress;
+        for(int i=0; i<this.writeQueue.size() && last.fileChannel == null && bufferCount < MAX_MESSAGES_PER_WRITE && bytesToWrite < MAX_BYTES_PER_WRITE; i++){
+            last = this.writeQueue.get(i);
+            section = last.sectionView();
+            section.limit(last.length).position(0);
+            this.writeBuffers[bufferCount++] = section;
+            bytesToWrite += last.length;
+        }
+
+        long written = bufferCount == 1 ? socket.write(this.writeBuffers[0]) : socket.write(this.writeBuffers, 0, bufferCount);
+        boolean batchCompleted = written == bytesToWrite;
 
-        // bytesWritten 表示从 byteBuffer 中写入到 socket 连接中的字节数
-        this.bytesWritten += socket.write(byteBuffer);
-        byteBuffer.clear();
+        for(int i=0; i<bufferCount; i++){
+            this.writeBuffers[i] = null;
+        }
 
-        // 如果此 message 写入到 socket 中的字节数大于 length，说明这个 message 基本全部被写入到 socket 中
-        // 因此，如果 writeQueue 中还有其他 message，就将 messageInProgress 指向它
-        if(bytesWritten >= this.messageInProgress.length){
-            if(this.writeQueue.size() > 0){
-                this.messageInProgress = this.writeQueue.remove(0);
-            } else {
-                this.messageInProgress = null;
+        // 根据写入的字节数，依次把已经完整写入 socket 的 message 释放掉，并将 messageInProgress 指向第一个没有写完的 message，
+        // bytesWritten 表示这个 message 中已经写入到 socket 的字节数
+        int messagesCompleted = 0;
+        while(this.messageInProgress != null && written >= this.messageInProgress.length - this.bytesWritten){
+            written -= this.messageInProgress.length - this.bytesWritten;
+            if(this.messageInProgress.fileChannel != null){
+                // section 中的字节已经写完，文件部分由 writeFile 写入
+                this.bytesWritten = this.messageInProgress.length;
+                break;
             }
+            // 响应已经全部写入 socket，将其占用的 section 归还给 MessageBuffer
+            this.queuedBytes -= this.messageInProgress.length;
+            this.messageInProgress.release();
+            // 下一个 message 需要从头开始写
+            this.bytesWritten = 0;
+            this.messageInProgress = messagesCompleted < this.writeQueue.size() ? this.writeQueue.get(messagesCompleted) : null;
+            messagesCompleted++;
         }
+        if(this.messageInProgress != null){
+            this.bytesWritten += (int) written;
+        }
+
+        // messageInProgress 已经从 writeQueue 中取出，一次性移除 writeQueue 头部的 message
+        int removeCount = Math.min(messagesCompleted, this.writeQueue.size());
+        if(removeCount > 0){
+            this.writeQueue.subList(0, removeCount).clear();
+        }
+        return batchCompleted;
+    }
+
+    // 通过 FileChannel.transferTo 把 messageInProgress 附带的文件写入 socket，返回文件是否全部写入了 socket
+    private boolean writeFile(Socket socket) throws IOException {
+        Message message = this.messageInProgress;
+        long remaining = message.fileCount - this.fileBytesWritten;
+        long written = remaining > 0 ? socket.transferFrom(message.fileChannel, message.filePosition + this.fileBytesWritten, remaining) : 0;
+        this.fileBytesWritten += written;
+
+        if(this.fileBytesWritten < message.fileCount){
+            // transferTo 在到达文件末尾时也返回 0：文件在响应发送的过程中被截断了，响应已经无法按照 Content-Length 完成，只能关闭连接
+            if(written == 0 && message.filePosition + this.fileBytesWritten >= message.fileChannel.size()){
+                throw new IOException("File truncated while being written, " + (message.fileCount - this.fileBytesWritten) + " bytes missing");
+            }
+            return false;
+        }
+
+        this.queuedBytes -= message.length;
+        message.release();
+        this.bytesWritten     = 0;
+        this.fileBytesWritten = 0;
+        this.messageInProgress = this.writeQueue.isEmpty() ? null : this.writeQueue.remove(0);
+        return true;
+    }
+
+    /**
+     * Releases all messages that have not been written yet. Called when the socket this writer belongs to is closed.
+     */
+    public void dispose() {
+        if(this.messageInProgress != null){
+            this.messageInProgress.release();
+            this.messageInProgress = null;
+        }
+        for(int i=0; i<this.writeQueue.size(); i++){
+            this.writeQueue.get(i).release();
+        }
+        this.writeQueue.clear();
+        this.queuedBytes      = 0;
+        this.bytesWritten     = 0;
+        this.fileBytesWritten = 0;
+    }
+
+    /**
+     * @return the number of messages which have not been completely written yet.
+     */
+    public int getQueuedMessages() {
+        return this.messageInProgress == null ? 0 : this.writeQueue.size() + 1;
+    }
+
+    /**
+     * @return the number of bytes held by the messages which have not been completely written yet, not counting the
+     * files attached to them.
+     */
+    public long getQueuedBytes() {
+        return this.queuedBytes;
     }
 
     public boolean isEmpty() {
@@ -0,0 +1,84 @@
+package com.jenkov.nioserver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The counters of one SocketProcessor. They are only updated by the processor thread, so an update is a plain add
+ * followed by an opaque store - no atomic instruction, lock or memory fence - and can be read from any thread, e.g.
+ * by ServerMetrics. A counter read from another thread may lag slightly behind, but never tears or goes backwards.
+ *
+ * 每个计数器在 counters 数组中有一个固定的下标。数组前后各留出一个缓存行，避免不同 SocketProcessor 的计数器落在同一个缓存行上（伪共享）。
+ */
+public class ProcessorMetrics {
+
+    // executeCycle 的次数以及总耗时（从一次循环开始到下一次循环开始，包括阻塞在 select 上的时间）
+    public static final int CYCLES            = 0;
+    public static final int CYCLE_NANOS       = 1;
+    // select / selectNow 的次数以及阻塞在其中的总时间
+    public static final int SELECTS           = 2;
+    public static final int SELECT_NANOS      = 3;
+    public static final int SOCKETS_OPENED    = 4;
+    public static final int SOCKETS_CLOSED    = 5;
+    public static final int SOCKETS_TIMED_OUT = 6;
+    public static final int BYTES_READ        = 7;
+    public static final int BYTES_WRITTEN     = 8;
+    // IMessageReader 解析出的 message（请求以及 HttpBodyPart）
+    public static final int MESSAGES_READ     = 9;
+    // 交给 MessageWriter 的响应，以及其中已经全部写出的、因为连接关闭而丢弃的响应
+    public static final int MESSAGES_QUEUED   = 10;
+    public static final int MESSAGES_WRITTEN  = 11;
+    public static final int MESSAGES_DROPPED  = 12;
+    // 因为等待处理的请求、等待写出的响应太多，或者 MessageBuffer 的 section 不足而暂停读取一个连接的次数
+    public static final int READS_PAUSED      = 13;
+    // 一次读取用完了 ServerConfig.readBudgetBytes，剩下的数据留到下一次循环读取的次数
+    public static final int READS_CARRIED_OVER = 14;
+
+    static final String[] NAMES = {
+        "cycles", "cycle_nanos", "selects", "select_nanos", "sockets_opened", "sockets_closed", "sockets_timed_out",
+        "bytes_read", "bytes_written", "messages_read", "messages_queued", "messages_written", "messages_dropped",
+        "reads_paused", "reads_carried_over"
+    };
+
+    private static final int PADDING = 8;
+
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] counters = new long[PADDING + NAMES.length + PADDING];
+
+    /**
+     * Adds delta to the given counter. Must only be called by the thread owning this object.
+     */
+    public void add(int counter, long delta) {
+        int index = PADDING + counter;
+        COUNTERS.setOpaque(this.counters, index, this.counters[index] + delta);
+    }
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @return the current value of the given counter, e.g. ProcessorMetrics.BYTES_READ. May be called from any thread.
+     */
+    public long get(int counter) {
+        return (long) COUNTERS.getOpaque(this.counters, PADDING + counter);
+    }
+
+    /**
+     * @return the number of responses handed to the MessageWriters of the sockets and not completely written yet.
+     */
+    public long getWriteQueueDepth() {
+        // 不同计数器的读取之间没有顺序保证，读取的过程中有更新时结果可能略有偏差
+        return Math.max(0, get(MESSAGES_QUEUED) - get(MESSAGES_WRITTEN) - get(MESSAGES_DROPPED));
+    }
+
+    public static int getCounterCount() {
+        return NAMES.length;
+    }
+
+    public static String getCounterName(int counter) {
+        return NAMES[counter];
+    }
+
+}
@@ -7,13 +7,10 @@ package com.jenkov.nioserver;
  * One additional difference is that QueueFlip has an available() method, where this is a public variable in
  * QueueFillCount.
  *
- * 在 MessageBuffer 中使用了三个字节数组（smallMessageBuffer、mediumMessageBuffer 以及 largeMessageBuffer）来实际存储
- * 从客户端读取的消息字节数据。其中 smallMessageBuffer 中可以保存 1024 个 4KB 的消息，mediumMessageBuffer 中可以保存 128
- * 个 128KB 的消息，largeMessageBuffer 可以保存 16 个 1MB 的消息。
- *
- * 以 smallMessageBuffer 为例，其中的 1024 个 section 的地址起始位置保存在 QueueIntFlip 的 elements 数组中，比如 0, 1024, 2048
- * 等。QueueIntFlip 中的 elements 数组可以看成是一个生产者消费者模式。put 方法是生产者，也就是将 smallMessageBuffer 可用 section
- * 的 offset 起始地址保存到 elements 中，并移动 writePos 指标；take 方法是消费者，从 elements 中取出可用的起始地址，移动 readPos。
+ * 在 MessageBuffer 中，每一个 size class（默认是 4KB、128KB、1MB 三种）都使用一个 QueueIntFlip 来保存空闲 section 的编号，
+ * section 编号由 slab 的序号以及 section 在 slab 中的序号组成，比如 0, 1, 2 等。QueueIntFlip 中的 elements 数组可以看成是一个
+ * 生产者消费者模式。put 方法是生产者，也就是将空闲 section 的编号保存到 elements 中，并移动 writePos 指标；take 方法是消费者，
+ * 从 elements 中取出可用的 section 编号，移动 readPos。
  *
  * 在 QueueIntFlip 中，只循环使用一个 elements 数组：
  * 1.当 flipped 为 false 时，就是正常的 writePos > readPos，其中 writePos 就表示生产者放入了多少库存，readPos 表示消费了多少库存
@@ -55,7 +52,7 @@ public class QueueIntFlip {
         return readPos - writePos;
     }
 
-    // element 表示 section 的起始地址，put 方法将起始地址保存到 elements 数组中，相当于生产者
+    // element 表示 section 的编号，put 方法将编号保存到 elements 数组中，相当于生产者
     public boolean put(int element){
         // flipped = false 时，writePos > readPos
         if(!flipped){
@@ -133,7 +130,7 @@ public class QueueIntFlip {
         }
     }
 
-    // 从 elements 数组中获取一个空闲的 section，返回的是这个空闲 section 的起始位置
+    // 从 elements 数组中获取一个空闲的 section，返回的是这个空闲 section 的编号
     public int take() {
         // flipped = false，就是正常的 r < w
         if(!flipped){
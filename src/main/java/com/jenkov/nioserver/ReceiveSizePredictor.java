@@ -0,0 +1,53 @@
+package com.jenkov.nioserver;
+
+/**
+ * Predicts how many bytes the next read of a connection will return, from the sizes of its recent reads. An
+ * IMessageReader uses the prediction to pick the size class of its receive buffer: a connection uploading large
+ * bodies gets a large section right away instead of growing through every smaller size class (copying the data each
+ * time), and a connection sending small requests gives a large section back once its traffic is small again.
+ *
+ * 和 Netty 的 AdaptiveRecvByteBufAllocator 类似：一次读取就填满了预测的大小时立即增大预测值；连续两次读取都不到预测值的一半时
+ * 才减小，避免请求大小交替变化时反复更换接收缓冲区。
+ */
+public class ReceiveSizePredictor {
+
+    private final int minimum;
+    private final int maximum;
+
+    private int     predictedSize;
+    private boolean decreaseNext = false;
+
+    /**
+     * @param minimum the smallest prediction, e.g. the section size of the smallest size class.
+     * @param maximum the largest prediction, e.g. the section size of the largest size class.
+     */
+    public ReceiveSizePredictor(int minimum, int maximum) {
+        this.minimum = Math.max(1, minimum);
+        this.maximum = Math.max(this.minimum, maximum);
+        this.predictedSize = this.minimum;
+    }
+
+    /**
+     * Records the number of bytes returned by one read of the connection (one ready event, not one read system call).
+     */
+    public void record(int bytesRead) {
+        if(bytesRead >= this.predictedSize){
+            this.predictedSize = (int) Math.min(this.maximum, Math.max(2L * this.predictedSize, bytesRead));
+            this.decreaseNext = false;
+        } else if(bytesRead <= this.predictedSize / 2){
+            if(this.decreaseNext){
+                this.predictedSize = Math.max(this.minimum, this.predictedSize / 2);
+                this.decreaseNext = false;
+            } else {
+                this.decreaseNext = true;
+            }
+        } else {
+            this.decreaseNext = false;
+        }
+    }
+
+    public int getPredictedSize() {
+        return this.predictedSize;
+    }
+
+}
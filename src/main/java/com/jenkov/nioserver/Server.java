@@ -1,6 +1,11 @@
 package com.jenkov.nioserver;
 
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -11,45 +16,181 @@ import java.util.concurrent.BlockingQueue;
 @SuppressWarnings("FieldCanBeLocal")
 public class Server {
 
-    private SocketAccepter  socketAccepter  = null;
-    private SocketProcessor socketProcessor = null;
+    private SocketAccepter[]  socketAccepters  = null;
+    // 在 start 中创建完所有 SocketProcessor 之后才赋值，ServerMetrics 可能在其它线程中读取
+    private volatile SocketProcessor[] socketProcessors = null;
 
     private int tcpPort = 0;
     private IMessageReaderFactory messageReaderFactory = null;
     private IMessageProcessor     messageProcessor = null;
 
+    private ServerConfig config = null;
+
+    private final ServerMetrics metrics = new ServerMetrics(this);
+
     public Server(int tcpPort, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor) {
+        this(tcpPort, messageReaderFactory, messageProcessor, new ServerConfig());
+    }
+
+    /**
+     * @param processorCount   the number of SocketProcessor threads. Each processor owns its own selector, sockets and
+     *                         MessageBuffers, so the messageProcessor is called from several threads and must be
+     *                         thread safe when processorCount is larger than 1.
+     * @param dispatchStrategy SocketAccepter.DISPATCH_ROUND_ROBIN or SocketAccepter.DISPATCH_LEAST_LOADED.
+     */
+    public Server(int tcpPort, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, int processorCount, int dispatchStrategy) {
+        this(tcpPort, messageReaderFactory, messageProcessor, processorConfig(processorCount, dispatchStrategy));
+    }
+
+    public Server(int tcpPort, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, ServerConfig config) {
+        if(config.processorCount < 1){
+            throw new IllegalArgumentException("processorCount must be at least 1: " + config.processorCount);
+        }
         this.tcpPort = tcpPort;
         this.messageReaderFactory = messageReaderFactory;
         this.messageProcessor = messageProcessor;
+        this.config = config;
+    }
+
+    private static ServerConfig processorConfig(int processorCount, int dispatchStrategy) {
+        ServerConfig config = new ServerConfig();
+        config.processorCount   = processorCount;
+        config.dispatchStrategy = dispatchStrategy;
+        return config;
     }
 
     /**
-     * Server 类在启动时，开启两个线程：
-     * 1.SocketAcceptor 线程：通过 ServerSocketChannel 来获取客户端对服务器的连接 SocketChannel，并且
-     *                       将其包装成 Socket 对象保存到 socketQueue 中
-     * 2.SocketProcessor 线程：从 socketQueue 中获取到客户端的连接 SocketChannel，并且从连接读取消息，处理消息，
-     *                        最后把响应返回给客户端
+     * Server 类在启动时，先绑定监听端口，然后开启 processorCount 个 SocketProcessor 线程：
+     * 1.监听端口是非阻塞的 ServerSocketChannel，注册在 SocketProcessor 的 selector 上监听 OP_ACCEPT 事件，由 SocketAccepter
+     *   一次接受所有等待中的连接。默认只有一个监听端口，由第一个 SocketProcessor 接受连接，再按照 dispatchStrategy 分配给
+     *   各个 SocketProcessor；设置 reusePort 之后，每个 SocketProcessor 都有一个自己的、使用 SO_REUSEPORT 绑定的监听端口，
+     *   由内核把连接分散到各个 SocketProcessor
+     * 2.SocketProcessor 从连接读取消息，处理消息，最后把响应返回给客户端。每个 SocketProcessor 都有自己的 selector、socketTable、
+     *   MessageBuffer 以及 ByteBuffer，彼此之间不共享状态
+     *
+     * 端口绑定失败时抛出 IOException。
      */
     public void start() throws IOException {
-        // ArrayBlockingQueue 是基于数组的有界阻塞队列，有界指它不能够存储无限多数量的元素，在创建 ArrayBlockingQueue 时，必须要给它
-        // 指定一个队列的大小。阻塞指在添加 / 取走元素时，当队列 没有空间 / 为空的时候会阻塞，知道队列有空间 / 有新的元素加入时再继续。
-        // 并且 ArrayBlockingQueue 是线程安全的，只有一把锁 lock，线程在往里添加和取出元素时，都需要先获取到锁才行。
-        Queue<Socket> socketQueue = new ArrayBlockingQueue<>(1024); // move 1024 to ServerConfig
+        SocketProcessor[] socketProcessors = new SocketProcessor[this.config.processorCount];
+        boolean mbeanRegistered = false;
+
+        try{
+            for(int i=0; i<socketProcessors.length; i++){
+                // ArrayBlockingQueue 是基于数组的有界阻塞队列，有界指它不能够存储无限多数量的元素，在创建 ArrayBlockingQueue 时，必须要给它
+                // 指定一个队列的大小。阻塞指在添加 / 取走元素时，当队列 没有空间 / 为空的时候会阻塞，知道队列有空间 / 有新的元素加入时再继续。
+                // 并且 ArrayBlockingQueue 是线程安全的，只有一把锁 lock，线程在往里添加和取出元素时，都需要先获取到锁才行。
+                Queue<Socket> socketQueue = new ArrayBlockingQueue<>(this.config.socketQueueCapacity);
+
+                MessageBuffer readBuffer  = new MessageBuffer(this.config.readBufferConfig);
+                MessageBuffer writeBuffer = new MessageBuffer(this.config.writeBufferConfig);
 
-        this.socketAccepter  = new SocketAccepter(tcpPort, socketQueue);
+                socketProcessors[i] = new SocketProcessor(socketQueue, readBuffer, writeBuffer,  this.messageReaderFactory, this.messageProcessor, this.config);
+            }
 
-        MessageBuffer readBuffer  = new MessageBuffer();
-        MessageBuffer writeBuffer = new MessageBuffer();
+            this.socketProcessors = socketProcessors;
+
+            if(this.config.jmxEnabled){
+                registerMBean();
+                mbeanRegistered = true;
+            }
+
+            // SocketAccepter 在接收到新连接之后，会把连接交给其中一个 SocketProcessor，并唤醒阻塞在 select 上的 SocketProcessor
+            this.socketAccepters = createSocketAccepters(socketProcessors);
+        } catch(IOException | RuntimeException e){
+            // 端口绑定失败（比如端口已经被占用）时，释放已经创建的 selector 并注销 MBean，之后可以在同一个端口上再次 start
+            this.socketProcessors = null;
+            if(mbeanRegistered){
+                unregisterMBean(e);
+            }
+            for(SocketProcessor socketProcessor : socketProcessors){
+                if(socketProcessor != null){
+                    try{
+                        socketProcessor.close();
+                    } catch(IOException closeException){
+                        e.addSuppressed(closeException);
+                    }
+                }
+            }
+            throw e;
+        }
+
+        for(int i=0; i<this.socketProcessors.length; i++){
+            Thread processorThread = new Thread(this.socketProcessors[i], "SocketProcessor-" + i);
+            processorThread.start();
+        }
+    }
 
-        this.socketProcessor = new SocketProcessor(socketQueue, readBuffer, writeBuffer,  this.messageReaderFactory, this.messageProcessor);
+    private SocketAccepter[] createSocketAccepters(SocketProcessor[] socketProcessors) throws IOException {
+        EventLog eventLog = this.config.eventLog != null ? this.config.eventLog : EventLog.getDefault();
 
-        Thread accepterThread  = new Thread(this.socketAccepter);
-        Thread processorThread = new Thread(this.socketProcessor);
+        boolean reusePort = this.config.reusePort && socketProcessors.length > 1;
+        if(reusePort && !SocketAccepter.isReusePortSupported()){
+            // 比如 Windows 不支持 SO_REUSEPORT，退回到由一个 SocketProcessor 接受并分配连接
+            eventLog.log(EventLog.WARN, EventLog.REUSE_PORT_UNSUPPORTED, 0);
+            reusePort = false;
+        }
 
-        accepterThread.start();
-        processorThread.start();
+        SocketAccepter[] socketAccepters = new SocketAccepter[reusePort ? socketProcessors.length : 1];
+        try{
+            for(int i=0; i<socketAccepters.length; i++){
+                ServerSocketChannel serverSocket = SocketAccepter.listen(this.tcpPort, this.config.acceptBacklog, reusePort);
+                SocketProcessor[] targets = reusePort ? new SocketProcessor[]{ socketProcessors[i] } : socketProcessors;
+                socketAccepters[i] = new SocketAccepter(serverSocket, targets, this.config.dispatchStrategy, eventLog);
+                socketProcessors[i].addSocketAccepter(socketAccepters[i]);
+            }
+        } catch(IOException e){
+            for(SocketAccepter socketAccepter : socketAccepters){
+                if(socketAccepter != null){
+                    socketAccepter.getServerSocket().close();
+                }
+            }
+            throw e;
+        }
+        return socketAccepters;
     }
 
+    private void registerMBean() throws IOException {
+        try{
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, mbeanName());
+        } catch(JMException e){
+            throw new IOException("Could not register the ServerMetrics MBean", e);
+        }
+    }
+
+    private void unregisterMBean(Exception startException) {
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName());
+        } catch(JMException e){
+            startException.addSuppressed(e);
+        }
+    }
+
+    private ObjectName mbeanName() throws MalformedObjectNameException {
+        return new ObjectName("com.jenkov.nioserver:type=Server,port=" + this.tcpPort);
+    }
+
+    /**
+     * @return the metrics of this server. The values are 0 until the server is started.
+     */
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    SocketProcessor[] getSocketProcessors() {
+        return this.socketProcessors;
+    }
+
+    /**
+     * @return the total number of select() / selectNow() calls made by all SocketProcessors so far.
+     */
+    public long getSelectCount() {
+        long selectCount = 0;
+        if(this.socketProcessors != null){
+            for(SocketProcessor socketProcessor : this.socketProcessors){
+                selectCount += socketProcessor.getSelectCount();
+            }
+        }
+        return selectCount;
+    }
 
 }
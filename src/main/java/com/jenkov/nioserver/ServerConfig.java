@@ -0,0 +1,62 @@
+package com.jenkov.nioserver;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Configuration of a Server. Change the fields before passing the config to the Server constructor.
+ */
+public class ServerConfig {
+
+    // SocketProcessor 线程的数量，每一个 SocketProcessor 都有自己的 selector、socketTable、MessageBuffer 以及 ByteBuffer
+    public int processorCount   = 1;
+    // 只有一个监听端口时，接受的连接分配给各个 SocketProcessor 的方式：SocketAccepter.DISPATCH_ROUND_ROBIN 或者 SocketAccepter.DISPATCH_LEAST_LOADED
+    public int dispatchStrategy = SocketAccepter.DISPATCH_ROUND_ROBIN;
+
+    // 监听端口的 backlog：内核中已经完成握手、等待被 accept 的连接的最大数量（同时受 net.core.somaxconn 限制）
+    public int acceptBacklog = 1024;
+    // 为 true 时，每个 SocketProcessor 都使用 SO_REUSEPORT 绑定一个自己的监听端口，由内核把新连接分散到各个 SocketProcessor，
+    // 此时 dispatchStrategy 不起作用。平台不支持 SO_REUSEPORT 时退回到一个监听端口
+    public boolean reusePort = false;
+
+    // 每一个 SocketProcessor 的 inboundSocketQueue 的容量
+    public int socketQueueCapacity = 1024;
+
+    // 每一个 SocketProcessor 的 readMessageBuffer 和 writeMessageBuffer 的配置
+    public MessageBufferConfig readBufferConfig  = MessageBufferConfig.defaultConfig();
+    public MessageBufferConfig writeBufferConfig = MessageBufferConfig.defaultConfig();
+
+    // 为 null 时，IMessageProcessor 直接在 SocketProcessor 线程中调用。设置之后，请求交给这个 executor 处理，
+    // 比如 MessageProcessorExecutors.fixedThreadPool(n) 或者 MessageProcessorExecutors.virtualThreadPerTask()，
+    // 这样一个很慢的请求不会阻塞同一个 SocketProcessor 上的其它连接。同一个连接的请求仍然按顺序依次处理
+    public Executor messageProcessorExecutor = null;
+
+    // 连接上没有未完成的请求和响应，并且超过 idleTimeoutMillis 没有读写任何数据时关闭连接，释放它占用的接收缓冲区。0 表示不限制
+    public long idleTimeoutMillis  = 60 * 1000;
+    // 一个请求只收到了一部分，并且超过 readTimeoutMillis 没有再收到任何数据时关闭连接（比如客户端很慢或者已经断开）。0 表示不限制
+    public long readTimeoutMillis  = 30 * 1000;
+    // 有响应没有写完，并且超过 writeTimeoutMillis 没有写出任何数据时关闭连接（客户端不再读取响应）。0 表示不限制
+    public long writeTimeoutMillis = 30 * 1000;
+
+    // 一次循环中最多从一个连接读取的字节数。剩下的数据留在内核的接收缓冲区中，在下一次循环中继续读取，
+    // 这样一个上传大量数据的连接不会让同一个 SocketProcessor 上其它连接的请求一直等待
+    public int readBudgetBytes = 256 * 1024;
+
+    // 一个连接上最多同时有多少个请求在等待处理、或者响应在等待写出。达到之后暂停读取这个连接，直到降到这个数量以下，
+    // 这样客户端不能通过流水线请求让服务器无限地缓存请求和响应
+    public int maxPipelinedRequests = 256;
+    // 一个连接上等待写出的响应（不包括 Message.attachFile 附带的文件）超过这个字节数时，同样暂停读取这个连接，直到降到这个数量以下
+    public long maxQueuedResponseBytes = 4L * 1024 * 1024;
+
+    // readMessageBuffer 或者 writeMessageBuffer 中某个 size class 可以分配的 section 降到 bufferLowWatermarkPercent 以下时，
+    // SocketProcessor 不再读取新的请求（正在接收的请求除外），直到所有 size class 都回到 bufferHighWatermarkPercent 以上。
+    // 这样负载过高时请求在内核的接收缓冲区中排队，延迟变大，而不是因为分配不到 section 而失败
+    public int bufferLowWatermarkPercent  = 10;
+    public int bufferHighWatermarkPercent = 20;
+
+    // SocketAccepter、SocketProcessor 以及工作线程记录连接事件和异常的 EventLog，为 null 时使用 EventLog.getDefault()
+    public EventLog eventLog = null;
+
+    // 为 true 时，Server 启动时把 ServerMetrics 注册到 JMX 的 platform MBeanServer 中，名字为 com.jenkov.nioserver:type=Server,port=<端口>
+    public boolean jmxEnabled = false;
+
+}
@@ -0,0 +1,212 @@
+package com.jenkov.nioserver;
+
+/**
+ * Sums the ProcessorMetrics and MessageBuffer counters of all SocketProcessors of a Server. Reading a value does not
+ * slow down the processors: the processor counters are read without locking, only the MessageBuffer values are read
+ * under the (short) lock of each MessageBuffer.
+ *
+ * getText() returns all values in the Prometheus text format, e.g. for a "/metrics" endpoint of the IMessageProcessor.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final String PREFIX = "nioserver_";
+
+    private final Server server;
+
+    public ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * @return the sum of the given counter (e.g. ProcessorMetrics.BYTES_READ) over all SocketProcessors.
+     */
+    public long get(int counter) {
+        long total = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            total += socketProcessor.getMetrics().get(counter);
+        }
+        return total;
+    }
+
+    @Override
+    public int getOpenSockets() {
+        int openSockets = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            openSockets += socketProcessor.getSocketCount();
+        }
+        return openSockets;
+    }
+
+    @Override
+    public long getSocketsOpened() {
+        return get(ProcessorMetrics.SOCKETS_OPENED);
+    }
+
+    @Override
+    public long getSocketsClosed() {
+        return get(ProcessorMetrics.SOCKETS_CLOSED);
+    }
+
+    @Override
+    public long getSocketsTimedOut() {
+        return get(ProcessorMetrics.SOCKETS_TIMED_OUT);
+    }
+
+    @Override
+    public long getCycles() {
+        return get(ProcessorMetrics.CYCLES);
+    }
+
+    @Override
+    public long getCycleNanos() {
+        return get(ProcessorMetrics.CYCLE_NANOS);
+    }
+
+    @Override
+    public long getSelects() {
+        return get(ProcessorMetrics.SELECTS);
+    }
+
+    @Override
+    public long getSelectNanos() {
+        return get(ProcessorMetrics.SELECT_NANOS);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return get(ProcessorMetrics.BYTES_READ);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return get(ProcessorMetrics.BYTES_WRITTEN);
+    }
+
+    @Override
+    public long getMessagesRead() {
+        return get(ProcessorMetrics.MESSAGES_READ);
+    }
+
+    @Override
+    public long getMessagesWritten() {
+        return get(ProcessorMetrics.MESSAGES_WRITTEN);
+    }
+
+    @Override
+    public long getReadsPaused() {
+        return get(ProcessorMetrics.READS_PAUSED);
+    }
+
+    @Override
+    public long getWriteQueueDepth() {
+        long depth = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            depth += socketProcessor.getMetrics().getWriteQueueDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getReadMessagesInUse() {
+        long inUse = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            inUse += socketProcessor.getReadMessageBuffer().getMessagesInUse();
+        }
+        return inUse;
+    }
+
+    @Override
+    public long getWriteMessagesInUse() {
+        long inUse = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            inUse += socketProcessor.getWriteMessageBuffer().getMessagesInUse();
+        }
+        return inUse;
+    }
+
+    @Override
+    public long getExpandCount() {
+        long expandCount = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            expandCount += socketProcessor.getReadMessageBuffer().getExpandCount() + socketProcessor.getWriteMessageBuffer().getExpandCount();
+        }
+        return expandCount;
+    }
+
+    @Override
+    public long getExpandFailedCount() {
+        long expandFailedCount = 0;
+        for(SocketProcessor socketProcessor : socketProcessors()){
+            expandFailedCount += socketProcessor.getReadMessageBuffer().getExpandFailedCount() + socketProcessor.getWriteMessageBuffer().getExpandFailedCount();
+        }
+        return expandFailedCount;
+    }
+
+    @Override
+    public int[] getReadBufferFreeSections() {
+        return freeSections(true);
+    }
+
+    @Override
+    public int[] getWriteBufferFreeSections() {
+        return freeSections(false);
+    }
+
+    @Override
+    public String getText() {
+        StringBuilder text = new StringBuilder(2048);
+        for(int counter = 0; counter < ProcessorMetrics.getCounterCount(); counter++){
+            append(text, ProcessorMetrics.getCounterName(counter) + "_total", get(counter));
+        }
+        append(text, "open_sockets", getOpenSockets());
+        append(text, "write_queue_depth", getWriteQueueDepth());
+        append(text, "read_messages_in_use", getReadMessagesInUse());
+        append(text, "write_messages_in_use", getWriteMessagesInUse());
+        append(text, "expand_total", getExpandCount());
+        append(text, "expand_failed_total", getExpandFailedCount());
+
+        SocketProcessor[] socketProcessors = socketProcessors();
+        if(socketProcessors.length > 0){
+            appendFreeSections(text, "read", socketProcessors[0].getReadMessageBuffer(), getReadBufferFreeSections());
+            appendFreeSections(text, "write", socketProcessors[0].getWriteMessageBuffer(), getWriteBufferFreeSections());
+        }
+        return text.toString();
+    }
+
+    // 每个 size class 中空闲的 section 数量，所有 SocketProcessor 的 MessageBuffer 使用相同的配置
+    private int[] freeSections(boolean read) {
+        SocketProcessor[] socketProcessors = socketProcessors();
+        if(socketProcessors.length == 0){
+            return new int[0];
+        }
+        int[] freeSections = new int[messageBuffer(socketProcessors[0], read).getSizeClassCount()];
+        for(SocketProcessor socketProcessor : socketProcessors){
+            MessageBuffer messageBuffer = messageBuffer(socketProcessor, read);
+            for(int i=0; i<freeSections.length; i++){
+                freeSections[i] += messageBuffer.getFreeSections(i);
+            }
+        }
+        return freeSections;
+    }
+
+    private static MessageBuffer messageBuffer(SocketProcessor socketProcessor, boolean read) {
+        return read ? socketProcessor.getReadMessageBuffer() : socketProcessor.getWriteMessageBuffer();
+    }
+
+    private SocketProcessor[] socketProcessors() {
+        SocketProcessor[] socketProcessors = this.server.getSocketProcessors();
+        return socketProcessors != null ? socketProcessors : new SocketProcessor[0];
+    }
+
+    private static void appendFreeSections(StringBuilder text, String buffer, MessageBuffer messageBuffer, int[] freeSections) {
+        for(int i=0; i<freeSections.length; i++){
+            text.append(PREFIX).append(buffer).append("_buffer_free_sections{section_size=\"")
+                .append(messageBuffer.getSectionSize(i)).append("\"} ").append(freeSections[i]).append('\n');
+        }
+    }
+
+    private static void append(StringBuilder text, String name, long value) {
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.jenkov.nioserver;
+
+/**
+ * The JMX view of ServerMetrics, registered as "com.jenkov.nioserver:type=Server,port=&lt;port&gt;" when
+ * ServerConfig.jmxEnabled is set. All values are totals over all SocketProcessors; counters count from the start of
+ * the Server.
+ */
+public interface ServerMetricsMBean {
+
+    public int  getOpenSockets();
+    public long getSocketsOpened();
+    public long getSocketsClosed();
+    public long getSocketsTimedOut();
+
+    public long getCycles();
+    public long getCycleNanos();
+    public long getSelects();
+    public long getSelectNanos();
+
+    public long getBytesRead();
+    public long getBytesWritten();
+    public long getMessagesRead();
+    public long getMessagesWritten();
+    public long getWriteQueueDepth();
+    public long getReadsPaused();
+
+    public long   getReadMessagesInUse();
+    public long   getWriteMessagesInUse();
+    public long   getExpandCount();
+    public long   getExpandFailedCount();
+    public int[]  getReadBufferFreeSections();
+    public int[]  getWriteBufferFreeSections();
+
+    public String getText();
+
+}
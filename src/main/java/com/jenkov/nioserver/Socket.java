@@ -2,6 +2,8 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -17,6 +19,43 @@ public class Socket {
 
     public boolean endOfStreamReached = false;
 
+    // 由 IMessageReader 设置：对端要求在已经读取的请求都得到响应之后关闭连接（比如 HTTP 的 Connection: close），之后不再读取这个 socket。
+    // SocketProcessor 在这些请求都处理完、响应都写完之后关闭连接
+    public boolean closeAfterResponses = false;
+
+    // socket 在 SocketProcessor 的 selector 上唯一的 SelectionKey，readInterest / writeInterest 表示当前是否在监听 READ / WRITE 事件
+    SelectionKey selectionKey  = null;
+    boolean      readInterest  = true;
+    boolean      writeInterest = false;
+
+    // 最近一次读到数据、写出数据（或者开始等待写出响应）的时间，用于判断连接是否超时
+    long lastReadNanos  = 0;
+    long lastWriteNanos = 0;
+
+    // 连接可读却没有读到任何数据时，SocketProcessor 暂停读取这个 socket，直到 readRetryNanos 之后（或者 section 不足的情况解除）再尝试
+    boolean readStalled    = false;
+    long    readRetryNanos = 0;
+
+    // 这个 socket 在 SocketProcessor 的哪些 SocketSet 中，每一个 SocketSet 占用其中的一位
+    int socketSets = 0;
+
+    // 这个 socket 在 SocketProcessor 的 TimingWheel 中的位置：所在 tick 以及同一个 bucket 中的前后节点，timeoutTick 为 -1 表示没有在 TimingWheel 中
+    long   timeoutTick = -1;
+    Socket timeoutPrev = null;
+    Socket timeoutNext = null;
+
+    // 这个 socket 上读取和写出的总字节数，SocketProcessor 根据每次读写前后的差值更新 ProcessorMetrics
+    long totalBytesRead    = 0;
+    long totalBytesWritten = 0;
+
+    // 这一次读取最多还能从 socketChannel 读取的字节数，由 SocketProcessor 在每次读取之前设置为 ServerConfig.readBudgetBytes。
+    // 用完之后 read 直接返回，剩下的数据留在内核的接收缓冲区中：OP_READ 是水平触发的，下一次循环时这个 socket 仍然就绪，
+    // 这样一个发送很快的连接不会占用整个循环，其它连接的请求不需要等它读完
+    int readBudget = Integer.MAX_VALUE;
+
+    // 使用 ServerConfig.messageProcessorExecutor 时，这个 socket 上等待工作线程处理的请求，第一次收到请求时创建
+    SocketRequestQueue requestQueue = null;
+
     public Socket() {
     }
 
@@ -28,7 +67,7 @@ public class Socket {
         int bytesRead = this.socketChannel.read(byteBuffer);
         int totalBytesRead = bytesRead;
 
-        while(bytesRead > 0){
+        while(bytesRead > 0 && totalBytesRead < this.readBudget){
             bytesRead = this.socketChannel.read(byteBuffer);
             totalBytesRead += bytesRead;
         }
@@ -36,10 +75,82 @@ public class Socket {
         if(bytesRead == -1){
             this.endOfStreamReached = true;
         }
+        // 最后一次 read 返回的 -1 也被加到了 totalBytesRead 中
+        this.totalBytesRead += bytesRead == -1 ? totalBytesRead + 1 : totalBytesRead;
+        this.readBudget -= bytesRead == -1 ? totalBytesRead + 1 : totalBytesRead;
+
+        return totalBytesRead;
+    }
+
+    /**
+     * Reads directly from the SocketChannel into the free space of the section backing the given message, expanding
+     * the message to a larger section whenever its section is full. No intermediate ByteBuffer is involved.
+     *
+     * 直接把 socket 中的数据读入到 message 的 section 中：section 满了就调用 expand 换一个更大的 section 继续读，
+     * 直到 socketChannel.read 返回 0 或者 -1，readBudget 用完，或者 message 已经无法再扩展（包括 section 还被 slice 引用的情况）。
+     *
+     * @return the number of bytes read.
+     */
+    public int read(Message message) throws IOException {
+        int totalBytesRead = 0;
+
+        while(totalBytesRead < this.readBudget){
+            if(message.length == message.capacity && !message.expand()){
+                break;
+            }
+
+            // 只有拥有这个 MessageBuffer 的 SocketProcessor 线程会修改 section 视图的 position 和 limit
+            ByteBuffer section = message.sectionView();
+            section.limit((int) Math.min(message.capacity, (long) message.length + this.readBudget - totalBytesRead)).position(message.length);
+
+            int bytesRead = this.socketChannel.read(section);
+            if(bytesRead > 0){
+                message.length += bytesRead;
+                totalBytesRead += bytesRead;
+            } else {
+                if(bytesRead == -1){
+                    this.endOfStreamReached = true;
+                }
+                break;
+            }
+        }
+        this.totalBytesRead += totalBytesRead;
+        this.readBudget     -= totalBytesRead;
 
         return totalBytesRead;
     }
 
+    /**
+     * Writes the bytes of the given message, starting at messageIndex, directly from the section backing the message
+     * to the SocketChannel.
+     *
+     * @return the number of bytes written.
+     */
+    public int write(Message message, int messageIndex) throws IOException {
+        ByteBuffer section = message.sectionView();
+        section.limit(message.length).position(messageIndex);
+
+        return write(section);
+    }
+
+    /**
+     * Writes the given ByteBuffers to the SocketChannel with as few gathering write calls as possible.
+     *
+     * @return the number of bytes written.
+     */
+    public long write(ByteBuffer[] byteBuffers, int offset, int length) throws IOException {
+        long bytesWritten = this.socketChannel.write(byteBuffers, offset, length);
+        long totalBytesWritten = bytesWritten;
+
+        while(bytesWritten > 0 && byteBuffers[offset + length - 1].hasRemaining()){
+            bytesWritten = this.socketChannel.write(byteBuffers, offset, length);
+            totalBytesWritten += bytesWritten;
+        }
+        this.totalBytesWritten += totalBytesWritten;
+
+        return totalBytesWritten;
+    }
+
     public int write(ByteBuffer byteBuffer) throws IOException{
         int bytesWritten = this.socketChannel.write(byteBuffer);
         int totalBytesWritten = bytesWritten;
@@ -48,9 +159,28 @@ public class Socket {
             bytesWritten = this.socketChannel.write(byteBuffer);
             totalBytesWritten += bytesWritten;
         }
+        this.totalBytesWritten += totalBytesWritten;
 
         return totalBytesWritten;
     }
 
+    /**
+     * Transfers up to count bytes of the given file, starting at position, directly to the SocketChannel with
+     * FileChannel.transferTo(), until the send buffer of the socket is full.
+     *
+     * @return the number of bytes written.
+     */
+    public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
+        long bytesWritten = fileChannel.transferTo(position, count, this.socketChannel);
+        long totalBytesWritten = bytesWritten;
+
+        while(bytesWritten > 0 && totalBytesWritten < count){
+            bytesWritten = fileChannel.transferTo(position + totalBytesWritten, count - totalBytesWritten, this.socketChannel);
+            totalBytesWritten += bytesWritten;
+        }
+        this.totalBytesWritten += totalBytesWritten;
+
+        return totalBytesWritten;
+    }
 
 }
@@ -2,48 +2,160 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
 
 /**
  * Created by jjenkov on 19-10-2015.
+ *
+ * Accepts the connections of one non-blocking listening ServerSocketChannel. The accepter has no thread of its own:
+ * it is registered for OP_ACCEPT with the selector of one SocketProcessor, which calls accept() whenever connections
+ * are pending. accept() drains the backlog of the listener in one go and hands each connection to one of the target
+ * SocketProcessors - connections for the accepting processor itself are registered right away, without going through
+ * its inbound socket queue.
+ *
+ * With ServerConfig.reusePort every SocketProcessor has its own listener bound with SO_REUSEPORT and accepts only for
+ * itself, and the kernel spreads the connections across the listeners.
  */
-public class SocketAccepter implements Runnable{
+public class SocketAccepter {
 
-    private final int tcpPort;
-    private ServerSocketChannel serverSocket = null;
+    // 依次把新连接分配给每一个 SocketProcessor
+    public static final int DISPATCH_ROUND_ROBIN  = 1;
+    // 把新连接分配给当前连接数最少的 SocketProcessor
+    public static final int DISPATCH_LEAST_LOADED = 2;
 
-    private Queue<Socket> socketQueue = null;
+    // 一次 accept() 最多接受的连接数量。OP_ACCEPT 是水平触发的，还没有接受的连接在下一次 select 时继续处理，
+    // 这样大量连接同时到达时，已有连接上的请求也不会被饿死
+    private static final int MAX_ACCEPTS_PER_CALL = 256;
 
-    public SocketAccepter(int tcpPort, Queue<Socket> socketQueue)  {
-        this.tcpPort = tcpPort;
-        this.socketQueue = socketQueue;
+    // accept 失败（比如文件描述符用完）之后暂停接受连接的时间。否则 OP_ACCEPT 一直就绪，SocketProcessor 会空转
+    private static final long ACCEPT_PAUSE_NANOS = 100L * 1000L * 1000L;
+
+    private final ServerSocketChannel serverSocket;
+
+    private final SocketProcessor[] socketProcessors;
+    private final int dispatchStrategy;
+    private int nextProcessorIndex = 0;
+
+    private final EventLog eventLog;
+
+    // 注册在 SocketProcessor 的 selector 上的 SelectionKey，以及暂停接受连接时恢复的时间，只由这个 SocketProcessor 线程访问
+    SelectionKey selectionKey = null;
+    long pausedUntilNanos = 0;
+
+    public SocketAccepter(ServerSocketChannel serverSocket, SocketProcessor socketProcessor)  {
+        this(serverSocket, new SocketProcessor[]{ socketProcessor }, DISPATCH_ROUND_ROBIN, EventLog.getDefault());
     }
 
-    public void run() {
+    /**
+     * @param serverSocket     a bound listening channel. It is switched to non-blocking mode when it is registered.
+     * @param socketProcessors the processors the accepted connections are handed to.
+     * @param dispatchStrategy DISPATCH_ROUND_ROBIN or DISPATCH_LEAST_LOADED.
+     */
+    public SocketAccepter(ServerSocketChannel serverSocket, SocketProcessor[] socketProcessors, int dispatchStrategy, EventLog eventLog)  {
+        if(socketProcessors.length == 0){
+            throw new IllegalArgumentException("At least one SocketProcessor is required");
+        }
+        this.serverSocket = serverSocket;
+        this.socketProcessors = socketProcessors;
+        this.dispatchStrategy = dispatchStrategy;
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * Opens a listening channel bound to the given port on all interfaces.
+     *
+     * @param backlog   the maximum number of connections the kernel queues until they are accepted.
+     * @param reusePort if true, the channel is bound with SO_REUSEPORT, so several channels can listen on the same port.
+     */
+    public static ServerSocketChannel listen(int tcpPort, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
         try{
-            // 获取 ServerSocketChannel，并且监听 tcpPort 端口
-            this.serverSocket = ServerSocketChannel.open();
-            this.serverSocket.bind(new InetSocketAddress(tcpPort));
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if(reusePort){
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(new InetSocketAddress(tcpPort), backlog);
+            return serverSocket;
+        } catch(IOException | RuntimeException e){
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if listen() can be called with reusePort set on this platform.
+     */
+    public static boolean isReusePortSupported() {
+        try(ServerSocketChannel serverSocket = ServerSocketChannel.open()){
+            return serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
         } catch(IOException e){
-            e.printStackTrace();
-            return;
+            return false;
         }
+    }
+
+    public ServerSocketChannel getServerSocket() {
+        return this.serverSocket;
+    }
 
-        // SocketAcceptor 线程使用 while 循环，一直监听是否有新的连接 SocketChannel 到来
-        // 如果有的话，就将其封装成 Socket 对象，并保存到 SocketQueue 中
-        while(true){
+    /**
+     * Accepts the pending connections - up to MAX_ACCEPTS_PER_CALL - and hands them to the target SocketProcessors.
+     * Called by the SocketProcessor this accepter is registered with, when its listener is ready to accept.
+     *
+     * @param owner the SocketProcessor calling this method.
+     * @return the number of connections accepted.
+     */
+    int accept(SocketProcessor owner) {
+        int accepted = 0;
+        while(accepted < MAX_ACCEPTS_PER_CALL){
+            SocketChannel socketChannel;
             try{
-                SocketChannel socketChannel = this.serverSocket.accept();
-                System.out.println("Socket accepted: " + socketChannel);
-                this.socketQueue.add(new Socket(socketChannel));
+                socketChannel = this.serverSocket.accept();
             } catch(IOException e){
-                e.printStackTrace();
+                this.eventLog.log(EventLog.ERROR, EventLog.ACCEPT_FAILED, 0, null, e);
+                owner.pauseAccepting(this, ACCEPT_PAUSE_NANOS);
+                break;
+            }
+            // 非阻塞模式下没有等待中的连接时返回 null
+            if(socketChannel == null){
+                break;
             }
+            accepted++;
 
+            Socket socket = new Socket(socketChannel);
+            SocketProcessor socketProcessor = nextSocketProcessor();
+            if(socketProcessor == owner){
+                owner.acceptSocket(socket);
+            } else if(!socketProcessor.addSocket(socket)){
+                this.eventLog.log(EventLog.WARN, EventLog.SOCKET_REJECTED, 0, socketChannel, null);
+                try{
+                    socketChannel.close();
+                } catch(IOException e){
+                    // 连接还没有被使用，关闭失败也没有需要释放的资源
+                }
+            }
+        }
+        return accepted;
+    }
+
+    private SocketProcessor nextSocketProcessor() {
+        if(this.socketProcessors.length == 1){
+            return this.socketProcessors[0];
+        }
+        if(this.dispatchStrategy == DISPATCH_LEAST_LOADED){
+            SocketProcessor leastLoaded = this.socketProcessors[0];
+            for(int i=1; i<this.socketProcessors.length; i++){
+                if(this.socketProcessors[i].getSocketCount() < leastLoaded.getSocketCount()){
+                    leastLoaded = this.socketProcessors[i];
+                }
+            }
+            return leastLoaded;
         }
 
+        SocketProcessor socketProcessor = this.socketProcessors[this.nextProcessorIndex];
+        this.nextProcessorIndex = (this.nextProcessorIndex + 1) % this.socketProcessors.length;
+        return socketProcessor;
     }
 }
@@ -2,209 +2,733 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by jjenkov on 16-10-2015.
  */
 public class SocketProcessor implements Runnable {
 
-    // inboundSocketQueue 中保存了 SocketAcceptor 获取到的客户端连接
+    // inboundSocketQueue 中保存了其它 SocketProcessor 的 SocketAccepter 分配给这个 SocketProcessor 的客户端连接
     private final Queue<Socket> inboundSocketQueue;
 
+    // 注册在这个 SocketProcessor 的 selector 上、监听 OP_ACCEPT 的 SocketAccepter
+    private final List<SocketAccepter> socketAccepters = new ArrayList<>();
+
     private MessageBuffer readMessageBuffer = null;
     private MessageBuffer writeMessageBuffer = null;
 
     private IMessageReaderFactory messageReaderFactory = null;
-    // messageProcessor 在处理完客户端发送过来的消息之后，会把响应信息保存到 outboundMessageQueue 中
-    private final Queue<Message> outboundMessageQueue = new LinkedList<>();
-    private final Map<Long, Socket> socketMap = new HashMap<>();
-
+    // messageProcessor 在处理完客户端发送过来的消息之后，会把响应信息保存到 outboundMessageQueue 中。使用 messageProcessorExecutor
+    // 时，多个工作线程会同时向其中添加响应，而只有当前 SocketProcessor 线程从中取出，所以使用无锁的 ConcurrentLinkedQueue
+    private final Queue<Message> outboundMessageQueue = new ConcurrentLinkedQueue<>();
+    // 按 socket id 索引的 socket，响应消息通过 Message.socketId 找到它的 socket。socket id 中包含 slot 的 generation，
+    // 已经关闭的 socket 的 id 不会找到重新使用这个 slot 的新 socket
+    private final SocketTable socketTable = new SocketTable(1024);
+    // socketTable 只由当前 SocketProcessor 线程修改，socketCount 用于让 SocketAccepter 线程读取当前负载
+    private volatile int socketCount = 0;
+
+    // 传给 IMessageReader.read 的临时缓冲区。HttpMessageReader 直接读入 message 的 section，不会使用它
     private final ByteBuffer readByteBuffer  = ByteBuffer.allocate(1024 * 1024);
-    private final ByteBuffer writeByteBuffer = ByteBuffer.allocate(1024 * 1024);
-    private final Selector readSelector;
-    private final Selector writeSelector;
+    // 所有 socket 的 MessageWriter 共享的 gathering write 数组，只在当前线程的 write 中使用
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[MessageWriter.MAX_MESSAGES_PER_WRITE];
+    // 所有 socket 都只注册到这一个 selector 上，通过切换 interestOps（OP_READ / OP_READ | OP_WRITE）来决定是否监听 WRITE 事件
+    private final Selector selector;
 
     private final IMessageProcessor messageProcessor;
     private final WriteProxy writeProxy;
+    // 不为 null 时，请求交给 messageProcessorExecutor 异步处理，而不是在当前 SocketProcessor 线程中直接调用 messageProcessor
+    private final Executor messageProcessorExecutor;
+
+    // 开始有响应要写出的 socket，以及响应可能已经全部写完、需要停止监听 WRITE 事件的 socket，每次循环在 writeToSockets 中处理完。
+    // 集合的成员关系保存在 Socket.socketSets 中，每个响应都要 add / remove 一次，不需要计算哈希值，也不分配对象
+    private static final int EMPTY_TO_NON_EMPTY = 1;
+    private static final int NON_EMPTY_TO_EMPTY = 2;
+    private final SocketSet emptyToNonEmptySockets = new SocketSet(EMPTY_TO_NON_EMPTY, 1024);
+    private final SocketSet nonEmptyToEmptySockets = new SocketSet(NON_EMPTY_TO_EMPTY, 1024);
+
+    // closingSockets 中的 socket 设置了 closeAfterResponses，等待请求处理完、响应写完之后关闭；
+    // pausedSockets 中的 socket 因为等待处理的请求和等待写出的响应达到了 maxPipelinedRequests 或者 maxQueuedResponseBytes，
+    // 或者因为 bufferPressure 暂停读取
+    private final Set<Socket>  closingSockets = new HashSet<>();
+    private final List<Socket> answeredSockets = new ArrayList<>();
+    private final Set<Socket>  pausedSockets  = new HashSet<>();
+    private final int  maxPipelinedRequests;
+    private final long maxQueuedResponseBytes;
+    private final int  readBudgetBytes;
+
+    // readMessageBuffer 或者 writeMessageBuffer 可用的 section 低于 low watermark 时变为 true，所有 size class 都回到
+    // high watermark 以上之后才变回 false，在每次循环开始时更新
+    private final int bufferLowWatermarkPercent;
+    private final int bufferHighWatermarkPercent;
+    private boolean bufferPressure = false;
+
+    // 空闲、读取以及写出超时，0 表示不限制。所有 socket 的超时都由 timingWheel 管理，每个 socket 在其中最多只有一个位置：
+    // 到期时才根据 socket 当前的状态计算真正的 deadline，还没有到就重新放回 timingWheel，读写数据时只需要记录时间
+    private final long idleTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final long minTimeoutNanos;
+    private final TimingWheel timingWheel;
+    private final List<Socket> expiredSockets = new ArrayList<>();
+    private static final long TIMEOUT_TICK_NANOS  = 100L * 1000L * 1000L;
+    private static final int  TIMEOUT_WHEEL_SIZE  = 1024;
+
+    // 每次循环开始时的 System.nanoTime()，一次循环中的所有 socket 都使用这个时间
+    private long nowNanos = System.nanoTime();
+
+    // 没有任何待处理事件时，selector.select 最多阻塞的时间（毫秒）
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final EventLog eventLog;
+
+    // 这个 SocketProcessor 的计数器，只由当前线程更新，其它线程可以随时读取，见 ServerMetrics
+    private final ProcessorMetrics metrics = new ProcessorMetrics();
+
+    // wakenUp 为 true 表示已经有线程调用了 selector.wakeup()，避免在一次 select 之前重复调用 wakeup 带来的系统调用开销
+    private final AtomicBoolean wakenUp = new AtomicBoolean(false);
+    private volatile Thread processorThread = null;
+
+    // 每隔 IDLE_SLAB_CHECK_INTERVAL 纳秒检查一次 MessageBuffer 中是否有可以释放的空闲 slab
+    private static final long IDLE_SLAB_CHECK_INTERVAL = 1000L * 1000L * 1000L;
+
+    // 可读却读不到数据而暂停读取的 socket，最早在这之后再尝试读取
+    private static final long STALLED_READ_RETRY_NANOS = 10L * 1000L * 1000L;
+    private long lastIdleSlabCheck = System.nanoTime();
 
-    private long nextSocketId = 16 * 1024; //start incoming socket ids from 16K - reserve bottom ids for pre-defined sockets (servers).
+    public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor) throws IOException {
+        this(inboundSocketQueue, readMessageBuffer, writeMessageBuffer, messageReaderFactory, messageProcessor, new ServerConfig());
+    }
 
-    private final Set<Socket> emptyToNonEmptySockets = new HashSet<>();
-    private final Set<Socket> nonEmptyToEmptySockets = new HashSet<>();
+    /**
+     * @param messageProcessorExecutor if not null, requests are processed by this executor instead of by the processor
+     *                                 thread. Requests of the same socket are still processed one at a time, in order.
+     */
+    public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, Executor messageProcessorExecutor) throws IOException {
+        this(inboundSocketQueue, readMessageBuffer, writeMessageBuffer, messageReaderFactory, messageProcessor, executorConfig(messageProcessorExecutor));
+    }
 
-    public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor) throws IOException {
+    /**
+     * @param config the messageProcessorExecutor, timeouts, pipelining limits and buffer watermarks of the config are used. The
+     *               MessageBuffers and the inboundSocketQueue are created by the caller.
+     */
+    public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, ServerConfig config) throws IOException {
         // inboundSocketQueue 队列中保存了客户端连接
         this.inboundSocketQueue = inboundSocketQueue;
 
-        // readMessageBuffer 和 writeMessageBuffer 在整个 Server 中唯一
+        // 每一个 SocketProcessor 都独占一对 readMessageBuffer 和 writeMessageBuffer，多个 SocketProcessor 之间不共享任何状态
         this.readMessageBuffer = readMessageBuffer;
         this.writeMessageBuffer = writeMessageBuffer;
 
         // writeProxy 可以把请求消息 request 处理之后，再保存到 writeProxy 中的 outboundMessageQueue 队列里面，
         // 之后 SocketProcessor 会从 outboundMessageQueue 中读取出响应消息 message，获取对应的 socket 连接，
         // 再通过 messageWriter 把 message 消息通过 socket 返回给客户端
-        this.writeProxy = new WriteProxy(writeMessageBuffer, this.outboundMessageQueue);
+        this.writeProxy = new WriteProxy(writeMessageBuffer, this.outboundMessageQueue, this);
 
         // messageReaderFactory 用来生成各种消息解码器，不过这里只提供 HttpReader
         this.messageReaderFactory = messageReaderFactory;
         this.messageProcessor = messageProcessor;
-        this.readSelector = Selector.open();
-        this.writeSelector = Selector.open();
+        this.messageProcessorExecutor = config.messageProcessorExecutor;
+        this.eventLog = config.eventLog != null ? config.eventLog : EventLog.getDefault();
+        this.selector = Selector.open();
+
+        this.maxPipelinedRequests   = config.maxPipelinedRequests;
+        this.maxQueuedResponseBytes = config.maxQueuedResponseBytes;
+        this.readBudgetBytes        = config.readBudgetBytes > 0 ? config.readBudgetBytes : Integer.MAX_VALUE;
+        this.bufferLowWatermarkPercent  = config.bufferLowWatermarkPercent;
+        this.bufferHighWatermarkPercent = Math.max(config.bufferLowWatermarkPercent, config.bufferHighWatermarkPercent);
+        this.idleTimeoutNanos  = timeoutNanos(config.idleTimeoutMillis);
+        this.readTimeoutNanos  = timeoutNanos(config.readTimeoutMillis);
+        this.writeTimeoutNanos = timeoutNanos(config.writeTimeoutMillis);
+        this.minTimeoutNanos   = Math.min(this.idleTimeoutNanos, Math.min(this.readTimeoutNanos, this.writeTimeoutNanos));
+        this.timingWheel = new TimingWheel(TIMEOUT_TICK_NANOS, TIMEOUT_WHEEL_SIZE, this.nowNanos);
+    }
+
+    private static ServerConfig executorConfig(Executor messageProcessorExecutor) {
+        ServerConfig config = new ServerConfig();
+        config.messageProcessorExecutor = messageProcessorExecutor;
+        return config;
+    }
+
+    private static long timeoutNanos(long timeoutMillis) {
+        return timeoutMillis > 0 ? timeoutMillis * 1000L * 1000L : Long.MAX_VALUE;
     }
 
     public void run() {
+        this.processorThread = Thread.currentThread();
+
+        // 不再在每次循环之后 Thread.sleep(100)，而是阻塞在 selector.select 上，
+        // 当有新的连接或者新的响应消息到达时，由 SocketAccepter 和 WriteProxy 调用 wakeup 唤醒
         while(true){
             try{
                 // executeCycle 主要循环执行以下三种操作：
                 // 1.从 inboundSocketQueue 中读取到新客户端连接 Socket
-                // 2.从 Socket 中读取消息数据
-                // 3.将响应数据写入到 Socket 中返回给客户端
+                // 2.从可读的 Socket 中读取消息数据，向可写的 Socket 写入剩余的响应数据
+                // 3.将新的响应数据写入到 Socket 中返回给客户端
                 executeCycle();
-            } catch(IOException e){
-                e.printStackTrace();
+            } catch(IOException | RuntimeException | OutOfMemoryError e){
+                // 不能让一个 socket 上的异常结束这个线程，否则这个 SocketProcessor 上的所有连接都不再被处理。
+                // 堆暂时不足（比如 IMessageProcessor 分配了很大的对象）时也继续运行，释放的消息和关闭的连接会让内存恢复
+                this.eventLog.log(EventLog.ERROR, EventLog.PROCESSOR_FAILED, 0, null, e);
             }
+        }
+    }
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Wakes up the processor thread if it is blocked in select(), so that new sockets in the inboundSocketQueue and
+     * new messages in the outboundMessageQueue are handled right away. Calls from the processor thread itself are
+     * ignored, since the processor checks both queues before it blocks.
+     */
+    public void wakeup() {
+        if(Thread.currentThread() == this.processorThread){
+            return;
+        }
+        if(this.wakenUp.compareAndSet(false, true)){
+            this.selector.wakeup();
+        }
+    }
+
+
+    /**
+     * Closes the selector of a processor which has not been started, e.g. because the server could not bind its port.
+     */
+    void close() throws IOException {
+        this.selector.close();
+    }
+
+    /**
+     * Registers the listener of the given accepter for OP_ACCEPT with the selector of this processor, which then accepts
+     * its connections. Must be called before the processor is started.
+     */
+    public void addSocketAccepter(SocketAccepter socketAccepter) throws IOException {
+        socketAccepter.getServerSocket().configureBlocking(false);
+        socketAccepter.selectionKey = socketAccepter.getServerSocket().register(this.selector, SelectionKey.OP_ACCEPT, socketAccepter);
+        this.socketAccepters.add(socketAccepter);
+    }
+
+    /**
+     * Hands a newly accepted socket over to this processor. May be called from any thread.
+     *
+     * @return false if the inbound socket queue of this processor is full.
+     */
+    public boolean addSocket(Socket socket) {
+        if(!this.inboundSocketQueue.offer(socket)){
+            return false;
         }
+        wakeup();
+        return true;
+    }
+
+    /**
+     * @return the number of sockets currently owned by this processor. May be called from any thread.
+     */
+    public int getSocketCount() {
+        return this.socketCount;
     }
 
+    /**
+     * @return the number of select() / selectNow() calls made by this processor so far. May be called from any thread.
+     */
+    public long getSelectCount() {
+        return this.metrics.get(ProcessorMetrics.SELECTS);
+    }
+
+    /**
+     * @return the counters of this processor. May be called from any thread.
+     */
+    public ProcessorMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public MessageBuffer getReadMessageBuffer() {
+        return this.readMessageBuffer;
+    }
+
+    public MessageBuffer getWriteMessageBuffer() {
+        return this.writeMessageBuffer;
+    }
 
     public void executeCycle() throws IOException {
+        long cycleStartNanos = System.nanoTime();
+        this.metrics.increment(ProcessorMetrics.CYCLES);
+        this.metrics.add(ProcessorMetrics.CYCLE_NANOS, cycleStartNanos - this.nowNanos);
+        this.nowNanos = cycleStartNanos;
         takeNewSockets();
-        readFromSockets();
+        updateBufferPressure();
+        processReadyKeys();
         writeToSockets();
+        resumePausedSockets(false);
+        resumeSocketAccepters();
+        expireTimeouts();
+        releaseIdleSlabs();
+    }
+
+    private void releaseIdleSlabs() {
+        long now = this.nowNanos;
+        if(now - this.lastIdleSlabCheck < IDLE_SLAB_CHECK_INTERVAL){
+            return;
+        }
+        this.lastIdleSlabCheck = now;
+        this.readMessageBuffer.releaseIdleSlabs(now);
+        this.writeMessageBuffer.releaseIdleSlabs(now);
     }
 
 
     public void takeNewSockets() throws IOException {
-        // Server 中的 SocketAcceptor 线程将 accept 的新连接保存到 inboundSocketQueue 中
+        // 其它 SocketProcessor 的 SocketAccepter 将 accept 的新连接保存到 inboundSocketQueue 中
         Socket newSocket = this.inboundSocketQueue.poll();
 
         while(newSocket != null){
-            newSocket.socketId = this.nextSocketId++;
-            newSocket.socketChannel.configureBlocking(false);
+            registerSocket(newSocket);
 
-            // 给每一个新建的 socket 连接创建一个 messageReader 和 messageWriter，用来读取请求数据和发送响应
-            newSocket.messageReader = this.messageReaderFactory.createMessageReader();
-            newSocket.messageReader.init(this.readMessageBuffer);
-            newSocket.messageWriter = new MessageWriter();
+            // 继续从 inboundSocketQueue 中读取 socket
+            newSocket = this.inboundSocketQueue.poll();
+        }
+    }
 
-            this.socketMap.put(newSocket.socketId, newSocket);
+    // 由这个 SocketProcessor 的 SocketAccepter 调用：接受的连接分配给了当前线程，直接注册，不经过 inboundSocketQueue
+    void acceptSocket(Socket socket) {
+        try{
+            registerSocket(socket);
+        } catch(IOException e){
+            this.eventLog.log(EventLog.WARN, EventLog.ACCEPT_FAILED, socket.socketId, socket.socketChannel, e);
+            try{
+                if(this.socketTable.get(socket.socketId) == socket){
+                    closeSocket(socket);
+                } else {
+                    socket.socketChannel.close();
+                }
+            } catch(IOException closeException){
+                // 连接还没有被使用，关闭失败也没有需要释放的资源
+            }
+        }
+    }
 
-            // 将新的客户端连接 socket 注册到 readSelector，并且监听 READ 事件
-            SelectionKey key = newSocket.socketChannel.register(this.readSelector, SelectionKey.OP_READ);
-            key.attach(newSocket);
+    // accept 失败之后，在 pauseNanos 之内不再监听这个 SocketAccepter 的 OP_ACCEPT 事件，见 resumeSocketAccepters
+    void pauseAccepting(SocketAccepter socketAccepter, long pauseNanos) {
+        if(socketAccepter.selectionKey != null && socketAccepter.selectionKey.isValid()){
+            socketAccepter.selectionKey.interestOps(0);
+            socketAccepter.pausedUntilNanos = this.nowNanos + pauseNanos;
+        }
+    }
 
-            // 继续从 inboundSocketQueue 中读取 socket
-            newSocket = this.inboundSocketQueue.poll();
+    private void resumeSocketAccepters() {
+        for(int i=0; i<this.socketAccepters.size(); i++){
+            SocketAccepter socketAccepter = this.socketAccepters.get(i);
+            if(socketAccepter.pausedUntilNanos != 0 && this.nowNanos - socketAccepter.pausedUntilNanos >= 0){
+                socketAccepter.pausedUntilNanos = 0;
+                if(socketAccepter.selectionKey.isValid()){
+                    socketAccepter.selectionKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            }
+        }
+    }
+
+    private void registerSocket(Socket newSocket) throws IOException {
+        newSocket.socketChannel.configureBlocking(false);
+
+        // 给每一个新建的 socket 连接创建一个 messageReader 和 messageWriter，用来读取请求数据和发送响应
+        newSocket.messageReader = this.messageReaderFactory.createMessageReader();
+        newSocket.messageReader.init(this.readMessageBuffer);
+        newSocket.messageWriter = new MessageWriter(this.writeBuffers);
+
+        // 分配 socket id
+        this.socketTable.add(newSocket);
+        this.socketCount = this.socketTable.size();
+        this.metrics.increment(ProcessorMetrics.SOCKETS_OPENED);
+        this.eventLog.log(EventLog.DEBUG, EventLog.SOCKET_ACCEPTED, newSocket.socketId, newSocket.socketChannel, null);
+
+        // 将新的客户端连接 socket 注册到 selector，并且监听 READ 事件
+        newSocket.selectionKey = newSocket.socketChannel.register(this.selector, SelectionKey.OP_READ, newSocket);
+
+        newSocket.lastReadNanos  = this.nowNanos;
+        newSocket.lastWriteNanos = this.nowNanos;
+        if(this.minTimeoutNanos != Long.MAX_VALUE){
+            this.timingWheel.schedule(newSocket, this.nowNanos + this.minTimeoutNanos);
         }
     }
 
 
-    public void readFromSockets() throws IOException {
-        // 使用 selectNow 不阻塞，判断 readSelector 上的连接是否有读事件
-        int readReady = this.readSelector.selectNow();
+    public void processReadyKeys() throws IOException {
+        // 如果还有待处理的连接或者响应消息，使用 selectNow 不阻塞；否则阻塞在 select 上，直到有读写事件或者被 wakeup 唤醒
+        int ready = select();
 
-        if(readReady > 0){
-            Set<SelectionKey> selectedKeys = this.readSelector.selectedKeys();
+        if(ready > 0){
+            Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
             Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
 
             while(keyIterator.hasNext()) {
                 SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+
+                Object attachment = key.attachment();
+                if(attachment == null || !key.isValid()){
+                    continue;
+                }
+                // 监听端口上有等待接受的新连接
+                if(attachment instanceof SocketAccepter){
+                    ((SocketAccepter) attachment).accept(this);
+                    continue;
+                }
+                Socket socket = (Socket) attachment;
+
                 // 从客户端 socket 连接上读取数据
-                readFromSocket(key);
+                if(key.isReadable()){
+                    readFromSocket(socket);
+                }
 
-                keyIterator.remove();
+                // 内核发送缓冲区又有空间了，继续写入之前没有写完的响应数据
+                if(key.isValid() && key.isWritable()){
+                    if(writeToSocket(socket) && socket.messageWriter.isEmpty()){
+                        this.nonEmptyToEmptySockets.add(socket);
+                    }
+                }
             }
             selectedKeys.clear();
         }
     }
 
-    private void readFromSocket(SelectionKey key) throws IOException {
-        Socket socket = (Socket) key.attachment();
+    private int select() throws IOException {
+        // 必须先重置 wakenUp，再检查两个队列：在检查之后才入队的连接或消息一定会调用 selector.wakeup()，
+        // 从而使得下面的 select 立即返回
+        this.wakenUp.set(false);
+        this.metrics.increment(ProcessorMetrics.SELECTS);
+
+        if(!this.inboundSocketQueue.isEmpty() || !this.outboundMessageQueue.isEmpty() || !this.emptyToNonEmptySockets.isEmpty()){
+            return this.selector.selectNow();
+        }
+        // 等待 WRITE 事件的 socket 也注册在同一个 selector 上，因此可以一直阻塞，直到有读写事件或者被 wakeup 唤醒。
+        // 只统计阻塞的 select 的耗时，selectNow 不会等待
+        long selectStartNanos = System.nanoTime();
+        int ready = this.selector.select(SELECT_TIMEOUT);
+        this.metrics.add(ProcessorMetrics.SELECT_NANOS, System.nanoTime() - selectStartNanos);
+        return ready;
+    }
+
+    private void readFromSocket(Socket socket) throws IOException {
+        // 还有太多的请求没有处理完、或者响应没有写完时，先不读取新的请求，数据留在内核的接收缓冲区中，TCP 流量控制会让客户端暂停发送
+        if(pauseIfBacklogged(socket)){
+            return;
+        }
+        // section 不足时不再开始读取新的请求，只继续接收已经开始的请求，让它们处理完之后释放占用的 section
+        if(this.bufferPressure && !socket.messageReader.isMessageInProgress()){
+            pauseReading(socket);
+            return;
+        }
+
         // 从 socket 中读取客户端发送过来的数据，并且将完整的消息保存到 messageReader 中的 completeMessage 数组中
-        socket.messageReader.read(socket, this.readByteBuffer);
+        long totalBytesRead = socket.totalBytesRead;
+        socket.readBudget = this.readBudgetBytes;
+        try{
+            socket.messageReader.read(socket, this.readByteBuffer);
+        } catch(IOException e){
+            // 读取失败（比如连接被客户端重置）时和写入失败一样关闭这个 socket，不影响同一个周期中的其他 socket。
+            // 已经解析出来但还没有处理的请求在 closeSocket 中被释放
+            this.metrics.add(ProcessorMetrics.BYTES_READ, socket.totalBytesRead - totalBytesRead);
+            socket.endOfStreamReached = true;
+            closeSocket(socket);
+            return;
+        }
+        long bytesRead = socket.totalBytesRead - totalBytesRead;
+        this.metrics.add(ProcessorMetrics.BYTES_READ, bytesRead);
+        // 只有真正读到数据才算有进展：连接可读却一直读不到数据（比如接收缓冲区满了无法扩展）时，读取超时仍然会到期
+        if(bytesRead > 0){
+            socket.lastReadNanos = this.nowNanos;
+        }
+        if(socket.readBudget <= 0){
+            this.metrics.increment(ProcessorMetrics.READS_CARRIED_OVER);
+        }
+
+        // 连接可读却什么都没有读到：messageReader 分配或者扩展不到 section，或者接收缓冲区满了而无法腾出空间。不管 bufferPressure
+        // 是否已经设置，都暂停读取，否则 OP_READ 一直就绪，SocketProcessor 会空转。读取超时仍然会到期
+        if(bytesRead == 0 && !socket.endOfStreamReached && !socket.closeAfterResponses){
+            socket.readStalled    = true;
+            socket.readRetryNanos = this.nowNanos + STALLED_READ_RETRY_NANOS;
+            pauseReading(socket);
+        }
 
         List<Message> fullMessages = socket.messageReader.getMessages();
+        this.metrics.add(ProcessorMetrics.MESSAGES_READ, fullMessages.size());
         // 遍历从客户端获取到的每一个完整消息
         if(fullMessages.size() > 0){
             for(Message message : fullMessages){
                 message.socketId = socket.socketId;
+                if(this.messageProcessorExecutor != null){
+                    // 交给工作线程处理，同一个 socket 的请求按照读取的顺序依次处理，保证响应的顺序与请求的顺序一致
+                    if(socket.requestQueue == null){
+                        socket.requestQueue = new SocketRequestQueue(this.messageProcessorExecutor, this.messageProcessor, this.writeProxy, this.eventLog);
+                    }
+                    socket.requestQueue.submit(message);
+                    message.release();
+                    continue;
+                }
                 // messageProcessor 处理请求消息，然后将得到的响应 response message 保存到 outboundMessageQueue
                 // 队列中，后面会依次取出返回给客户端响应
                 // the message processor will eventually push outgoing messages into an IMessageWriter for this socket.
-                this.messageProcessor.process(message, this.writeProxy);
+                try{
+                    this.messageProcessor.process(message, this.writeProxy);
+                } catch(RuntimeException e){
+                    this.eventLog.log(EventLog.ERROR, EventLog.MESSAGE_PROCESSOR_FAILED, socket.socketId, null, e);
+                } finally {
+                    // 请求处理完之后，将请求占用的 section 归还给 readMessageBuffer。如果 messageProcessor 需要在 process
+                    // 返回之后继续使用这个请求，需要先调用 message.retain()
+                    message.release();
+                }
             }
             fullMessages.clear();
         }
 
+        if(socket.closeAfterResponses && !socket.endOfStreamReached && this.closingSockets.add(socket)){
+            setReadInterest(socket, false);
+        } else {
+            pauseIfBacklogged(socket);
+        }
+
         if(socket.endOfStreamReached){
-            System.out.println("Socket closed: " + socket.socketId);
-            this.socketMap.remove(socket.socketId);
-            key.attach(null);
-            key.cancel();
-            key.channel().close();
+            closeSocket(socket);
         }
     }
 
+    private void closeSocket(Socket socket) throws IOException {
+        this.eventLog.log(EventLog.DEBUG, EventLog.SOCKET_CLOSED, socket.socketId);
+        this.socketTable.remove(socket);
+        this.socketCount = this.socketTable.size();
+        this.metrics.increment(ProcessorMetrics.SOCKETS_CLOSED);
+        this.metrics.add(ProcessorMetrics.MESSAGES_DROPPED, socket.messageWriter.getQueuedMessages());
+        socket.messageReader.dispose();
+        socket.messageWriter.dispose();
+        if(socket.requestQueue != null){
+            socket.requestQueue.dispose();
+        }
+        socket.writeInterest = false;
+        this.emptyToNonEmptySockets.remove(socket);
+        this.nonEmptyToEmptySockets.remove(socket);
+        this.closingSockets.remove(socket);
+        this.pausedSockets.remove(socket);
+        this.timingWheel.cancel(socket);
+
+        // 关闭 channel 时，它在 selector 上的 SelectionKey 会被取消
+        if(socket.selectionKey != null){
+            socket.selectionKey.attach(null);
+            socket.selectionKey = null;
+        }
+        socket.socketChannel.close();
+    }
 
-    public void writeToSockets() throws IOException {
-        // Take all new messages from outboundMessageQueue
-        // 如果 outboundMessageQueue 中有某一个响应消息，那么此消息对应的 socket 就会被保存到 emptyToNonEmptySockets 中
-        // 等待被注册到 write selector 上
-        takeNewOutboundMessages();
+    // 将 messageWriter 中的响应数据通过 socket 发送给客户端。如果写入失败（比如连接被客户端重置），就关闭这个 socket 并返回 false
+    private boolean writeToSocket(Socket socket) throws IOException {
+        MessageWriter messageWriter = socket.messageWriter;
+        int  queuedMessages    = messageWriter.getQueuedMessages();
+        long totalBytesWritten = socket.totalBytesWritten;
+        try{
+            messageWriter.write(socket);
+            countWrite(socket, queuedMessages, totalBytesWritten);
+            // 和读取一样，只有真正写出数据才算有进展：一直不接收数据的客户端不会刷新写入超时
+            if(socket.totalBytesWritten > totalBytesWritten){
+                socket.lastWriteNanos = this.nowNanos;
+            }
+            return true;
+        } catch(IOException e){
+            countWrite(socket, queuedMessages, totalBytesWritten);
+            socket.endOfStreamReached = true;
+            closeSocket(socket);
+            return false;
+        }
+    }
 
-        // Cancel all sockets which have no more data to write.
-        cancelEmptySockets();
+    private void countWrite(Socket socket, int queuedMessages, long totalBytesWritten) {
+        this.metrics.add(ProcessorMetrics.MESSAGES_WRITTEN, queuedMessages - socket.messageWriter.getQueuedMessages());
+        this.metrics.add(ProcessorMetrics.BYTES_WRITTEN, socket.totalBytesWritten - totalBytesWritten);
+    }
 
-        // Register all sockets that *have* data and which are not yet registered.
-        registerNonEmptySockets();
+    private void setWriteInterest(Socket socket, boolean writeInterest) {
+        if(socket.writeInterest == writeInterest || socket.selectionKey == null){
+            return;
+        }
+        socket.writeInterest = writeInterest;
+        updateInterestOps(socket);
+    }
+
+    private void setReadInterest(Socket socket, boolean readInterest) {
+        if(socket.readInterest == readInterest || socket.selectionKey == null){
+            return;
+        }
+        socket.readInterest = readInterest;
+        updateInterestOps(socket);
+    }
 
-        // Select from the Selector.
-        int writeReady = this.writeSelector.selectNow();
+    private void updateInterestOps(Socket socket) {
+        // 同一个 SelectionKey 上切换 interestOps，不需要重新注册或者取消 SelectionKey
+        socket.selectionKey.interestOps((socket.readInterest ? SelectionKey.OP_READ : 0) | (socket.writeInterest ? SelectionKey.OP_WRITE : 0));
+    }
 
-        if(writeReady > 0){
-            Set<SelectionKey> selectionKeys = this.writeSelector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectionKeys.iterator();
+    // 等待处理的请求以及等待写出的响应的数量
+    private static int requestsInFlight(Socket socket) {
+        int pendingRequests = socket.requestQueue != null ? socket.requestQueue.getPendingRequests() : 0;
+        return pendingRequests + socket.messageWriter.getQueuedMessages();
+    }
 
-            while(keyIterator.hasNext()){
-                SelectionKey key = keyIterator.next();
-                Socket socket = (Socket) key.attachment();
-                // 将这个 writeByteBuffer 中的响应数据通过 socket 发送给客户端
-                socket.messageWriter.write(socket, this.writeByteBuffer);
-                if(socket.messageWriter.isEmpty()){
-                    this.nonEmptyToEmptySockets.add(socket);
+    private boolean isBacklogged(Socket socket) {
+        return requestsInFlight(socket) >= this.maxPipelinedRequests || socket.messageWriter.getQueuedBytes() >= this.maxQueuedResponseBytes;
+    }
+
+    private boolean pauseIfBacklogged(Socket socket) {
+        if(!isBacklogged(socket)){
+            return false;
+        }
+        pauseReading(socket);
+        return true;
+    }
+
+    private void pauseReading(Socket socket) {
+        if(this.pausedSockets.add(socket)){
+            setReadInterest(socket, false);
+            this.metrics.increment(ProcessorMetrics.READS_PAUSED);
+        }
+    }
+
+    // 在两个 watermark 之间保持原来的状态，避免可用的 section 在 low watermark 附近波动时反复暂停和恢复读取
+    private void updateBufferPressure() {
+        int availablePercent = Math.min(this.readMessageBuffer.getAvailablePercent(), this.writeMessageBuffer.getAvailablePercent());
+        if(!this.bufferPressure && availablePercent < this.bufferLowWatermarkPercent){
+            this.bufferPressure = true;
+            this.eventLog.log(EventLog.WARN, EventLog.READING_PAUSED, 0);
+        } else if(this.bufferPressure && availablePercent >= this.bufferHighWatermarkPercent){
+            this.bufferPressure = false;
+            this.eventLog.log(EventLog.INFO, EventLog.READING_RESUMED, 0);
+            // 在 select 之前恢复读取，否则 select 可能一直阻塞到 SELECT_TIMEOUT
+            resumePausedSockets(true);
+        }
+    }
+
+    // bufferReleased 为 true 表示 bufferPressure 刚刚解除，因为读不到数据而暂停的 socket 立即恢复，否则等到它们的 readRetryNanos
+    private void resumePausedSockets(boolean bufferReleased) {
+        // section 不足时暂停的 socket 要等到 section 恢复之后才能继续读取
+        if(this.pausedSockets.isEmpty() || this.bufferPressure){
+            return;
+        }
+        Iterator<Socket> iterator = this.pausedSockets.iterator();
+        while(iterator.hasNext()){
+            Socket socket = iterator.next();
+            if(socket.readStalled && !bufferReleased && this.nowNanos - socket.readRetryNanos < 0){
+                continue;
+            }
+            if(!isBacklogged(socket)){
+                iterator.remove();
+                socket.readStalled = false;
+                if(!socket.closeAfterResponses){
+                    setReadInterest(socket, true);
                 }
-                keyIterator.remove();
             }
+        }
+    }
 
-            selectionKeys.clear();
+    // 在取出新的响应消息之前调用：请求都已经处理完的 closing socket，它们的响应一定已经在 outboundMessageQueue 中
+    private void collectAnsweredSockets() {
+        for(Socket socket : this.closingSockets){
+            if(socket.requestQueue == null || socket.requestQueue.getPendingRequests() == 0){
+                this.answeredSockets.add(socket);
+            }
         }
     }
 
-    private void registerNonEmptySockets() throws ClosedChannelException {
-        // 将 emptyToNonEmptySockets 中的 socket 注册到 writeSelector 上，并且监听 WRITE 事件
-        for(Socket socket : emptyToNonEmptySockets){
-            socket.socketChannel.register(this.writeSelector, SelectionKey.OP_WRITE, socket);
+    // 在写出响应之后调用：关闭响应已经全部写完的 closing socket
+    private void closeAnsweredSockets() throws IOException {
+        for(int i=0; i<this.answeredSockets.size(); i++){
+            Socket socket = this.answeredSockets.get(i);
+            if(socket.selectionKey != null && socket.messageWriter.isEmpty()){
+                closeSocket(socket);
+            }
         }
-        emptyToNonEmptySockets.clear();
+        this.answeredSockets.clear();
+    }
+
+    // 处理 timingWheel 中到期的 socket：根据 socket 当前的状态计算 deadline，已经超时就关闭，否则重新放回 timingWheel。
+    // 重新放回的时间不晚于 now + minTimeoutNanos，所以状态在这之后发生变化（比如开始接收一个新的请求）也不会错过对应的 deadline
+    private void expireTimeouts() throws IOException {
+        this.timingWheel.expire(this.nowNanos, this.expiredSockets);
+        for(int i=0; i<this.expiredSockets.size(); i++){
+            Socket socket = this.expiredSockets.get(i);
+            long deadline = timeoutDeadline(socket);
+            if(deadline != Long.MAX_VALUE && deadline - this.nowNanos <= 0){
+                this.eventLog.log(EventLog.INFO, EventLog.SOCKET_TIMED_OUT, socket.socketId);
+                this.metrics.increment(ProcessorMetrics.SOCKETS_TIMED_OUT);
+                closeSocket(socket);
+            } else {
+                this.timingWheel.schedule(socket, this.nowNanos + Math.min(deadline - this.nowNanos, this.minTimeoutNanos));
+            }
+        }
+        this.expiredSockets.clear();
+    }
+
+    private long timeoutDeadline(Socket socket) {
+        if(!socket.messageWriter.isEmpty()){
+            return saturatedAdd(socket.lastWriteNanos, this.writeTimeoutNanos);
+        }
+        if(socket.requestQueue != null && socket.requestQueue.getPendingRequests() > 0){
+            // 请求正在被 messageProcessor 处理，处理需要多长时间由应用决定
+            return Long.MAX_VALUE;
+        }
+        if(socket.messageReader.isMessageInProgress()){
+            return saturatedAdd(socket.lastReadNanos, this.readTimeoutNanos);
+        }
+        return saturatedAdd(Math.max(socket.lastReadNanos, socket.lastWriteNanos), this.idleTimeoutNanos);
+    }
+
+    private long saturatedAdd(long nanos, long timeoutNanos) {
+        return timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : nanos + timeoutNanos;
+    }
+
+
+    public void writeToSockets() throws IOException {
+        collectAnsweredSockets();
+
+        // Take all new messages from outboundMessageQueue
+        // 如果 outboundMessageQueue 中有某一个响应消息，那么此消息对应的 socket 就会被保存到 emptyToNonEmptySockets 中
+        takeNewOutboundMessages();
+
+        // Stop listening for WRITE events on sockets which have no more data to write.
+        cancelEmptySockets();
+
+        // Try to write directly to all sockets that *have* data, and only listen for WRITE events on the sockets
+        // whose send buffer is full. Sockets which become writable are written in processReadyKeys().
+        registerNonEmptySockets();
+
+        // Close the sockets which asked to be closed once all their responses have been written.
+        closeAnsweredSockets();
+    }
+
+    private void registerNonEmptySockets() throws IOException {
+        // 对 emptyToNonEmptySockets 中的 socket 先直接进行一次非阻塞写入，大部分情况下响应可以一次全部写入内核的发送缓冲区，
+        // 不需要等待 WRITE 事件。只有发送缓冲区满了、响应没有写完时，才在 selector 上监听 WRITE 事件
+        for(int i=0; i<this.emptyToNonEmptySockets.length(); i++){
+            Socket socket = this.emptyToNonEmptySockets.take(i);
+            if(socket == null){
+                continue;
+            }
+            // 响应队列从空变成非空，写入超时从这里开始计算
+            socket.lastWriteNanos = this.nowNanos;
+            if(writeToSocket(socket) && !socket.messageWriter.isEmpty()){
+                setWriteInterest(socket, true);
+            }
+        }
+        this.emptyToNonEmptySockets.clear();
     }
 
     private void cancelEmptySockets() {
-        // 将 nonEmptyToEmptySockets 中的 socket 从 writeSelector 上取消注册
-        for(Socket socket : nonEmptyToEmptySockets){
-            SelectionKey key = socket.socketChannel.keyFor(this.writeSelector);
-            key.cancel();
+        // 将 nonEmptyToEmptySockets 中的 socket 的 interestOps 改回只监听 READ 事件，不取消 SelectionKey
+        for(int i=0; i<this.nonEmptyToEmptySockets.length(); i++){
+            Socket socket = this.nonEmptyToEmptySockets.take(i);
+            if(socket != null && socket.messageWriter.isEmpty()){
+                setWriteInterest(socket, false);
+            }
         }
-        nonEmptyToEmptySockets.clear();
+        this.nonEmptyToEmptySockets.clear();
     }
 
     private void takeNewOutboundMessages() {
@@ -213,9 +737,10 @@ public class SocketProcessor implements Runnable {
 
         // 遍历 outboundMessageQueue 队列，取出响应消息
         while(outMessage != null){
-            Socket socket = this.socketMap.get(outMessage.socketId);
+            Socket socket = this.socketTable.get(outMessage.socketId);
 
             if(socket != null){
+                this.metrics.increment(ProcessorMetrics.MESSAGES_QUEUED);
                 MessageWriter messageWriter = socket.messageWriter;
                 // 如果 messageWriter 为空，就把响应消息保存到 messageWriter 的队列中
                 // 同时，如果此 socket 有响应消息要被发送，就可以将其注册到 write selector 上，一旦此 socket 可以写数据，
@@ -227,6 +752,9 @@ public class SocketProcessor implements Runnable {
                 } else{
                     messageWriter.enqueue(outMessage);
                 }
+            } else {
+                // socket 已经关闭，响应消息无法再发送，直接归还其 section
+                outMessage.release();
             }
 
             outMessage = this.outboundMessageQueue.poll();
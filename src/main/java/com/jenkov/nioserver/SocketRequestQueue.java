@@ -0,0 +1,119 @@
+package com.jenkov.nioserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The requests of one socket waiting to be processed by an Executor. The requests of a socket are processed one at a
+ * time, in the order they were read, so the responses of a socket are enqueued in the same order as its requests -
+ * while requests of different sockets are processed in parallel.
+ *
+ * SocketProcessor 线程调用 submit 添加请求，只有当前没有任务在执行时才会向 executor 提交一个任务，这个任务会依次处理队列中的
+ * 请求，处理完之后再检查队列，如果又有新的请求就重新提交自己。
+ */
+class SocketRequestQueue implements Runnable {
+
+    // 每次执行最多处理的请求数量，之后重新提交任务，避免一个连接上大量的流水线请求长时间占用同一个工作线程
+    private static final int MAX_REQUESTS_PER_RUN = 16;
+
+    private final Executor          executor;
+    private final IMessageProcessor messageProcessor;
+    private final WriteProxy        writeProxy;
+    private final EventLog          eventLog;
+
+    private final Queue<Message> requests  = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean  scheduled = new AtomicBoolean(false);
+    // 已经 submit 但是还没有处理完的请求数量，在请求处理完（响应已经入队）之后才减少
+    private final AtomicInteger  pendingRequests = new AtomicInteger(0);
+    private volatile boolean     disposed  = false;
+
+    SocketRequestQueue(Executor executor, IMessageProcessor messageProcessor, WriteProxy writeProxy) {
+        this(executor, messageProcessor, writeProxy, EventLog.getDefault());
+    }
+
+    SocketRequestQueue(Executor executor, IMessageProcessor messageProcessor, WriteProxy writeProxy, EventLog eventLog) {
+        this.executor = executor;
+        this.messageProcessor = messageProcessor;
+        this.writeProxy = writeProxy;
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * Queues a request for processing. The request is retained until it has been processed.
+     */
+    void submit(Message request) {
+        request.retain();
+        this.pendingRequests.incrementAndGet();
+        this.requests.offer(request);
+        schedule();
+    }
+
+    /**
+     * Releases all requests which have not been processed yet. Called by the SocketProcessor when the socket is closed.
+     * A request currently being processed completes normally - its response is dropped by the SocketProcessor.
+     */
+    void dispose() {
+        this.disposed = true;
+        releaseQueuedRequests();
+    }
+
+    @Override
+    public void run() {
+        for(int i=0; i<MAX_REQUESTS_PER_RUN && !this.disposed; i++){
+            Message request = this.requests.poll();
+            if(request == null){
+                break;
+            }
+            try{
+                this.messageProcessor.process(request, this.writeProxy);
+            } catch(RuntimeException e){
+                this.eventLog.log(EventLog.ERROR, EventLog.MESSAGE_PROCESSOR_FAILED, request.socketId, null, e);
+            } finally {
+                request.release();
+                this.pendingRequests.decrementAndGet();
+            }
+        }
+        this.scheduled.set(false);
+
+        // scheduled 重置之后再检查一次队列：在上面的循环结束之后才 submit 的请求，可能因为 scheduled 还是 true 而没有提交任务
+        if(this.disposed){
+            releaseQueuedRequests();
+        } else if(!this.requests.isEmpty()){
+            schedule();
+        }
+    }
+
+    /**
+     * @return the number of submitted requests which have not been processed yet, including the one being processed.
+     * Their responses, if any, are enqueued before this number drops.
+     */
+    int getPendingRequests() {
+        return this.pendingRequests.get();
+    }
+
+    private void schedule() {
+        if(!this.scheduled.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            this.executor.execute(this);
+        } catch(RejectedExecutionException e){
+            this.scheduled.set(false);
+            this.eventLog.log(EventLog.ERROR, EventLog.MESSAGE_PROCESSOR_FAILED, 0, null, e);
+            releaseQueuedRequests();
+        }
+    }
+
+    private void releaseQueuedRequests() {
+        Message request;
+        while((request = this.requests.poll()) != null){
+            request.release();
+            this.pendingRequests.decrementAndGet();
+        }
+    }
+
+}
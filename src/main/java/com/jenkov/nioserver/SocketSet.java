@@ -0,0 +1,104 @@
+package com.jenkov.nioserver;
+
+/**
+ * A set of sockets that the SocketProcessor fills during a cycle and drains once per cycle. Membership is one bit of
+ * Socket.socketSets, so add, remove and contains are flag checks instead of hash lookups, and nothing is allocated
+ * once the array has grown to the largest number of sockets added in one cycle.
+ *
+ * remove 只清除 socket 上的标记，socket 仍然留在数组中，直到 clear 时才被丢弃；遍历时用 take 取出，已经被 remove 的返回 null。
+ * 一个 socket 在同一个周期中被 remove 之后又被 add，会在数组中出现两次，但只有第一次 take 能取出它。
+ */
+class SocketSet {
+
+    private final int flag;
+
+    private Socket[] sockets;
+    // sockets 中的元素个数（包括已经被 remove 的），以及真正在集合中的 socket 的个数
+    private int length = 0;
+    private int size   = 0;
+
+    /**
+     * @param flag the bit of Socket.socketSets used by this set. Every set a socket can be in needs its own bit.
+     */
+    SocketSet(int flag, int initialCapacity) {
+        this.flag    = flag;
+        this.sockets = new Socket[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * @return false if the socket was already in the set.
+     */
+    boolean add(Socket socket) {
+        if((socket.socketSets & this.flag) != 0){
+            return false;
+        }
+        socket.socketSets |= this.flag;
+        if(this.length == this.sockets.length){
+            Socket[] sockets = new Socket[this.sockets.length * 2];
+            System.arraycopy(this.sockets, 0, sockets, 0, this.length);
+            this.sockets = sockets;
+        }
+        this.sockets[this.length++] = socket;
+        this.size++;
+        return true;
+    }
+
+    boolean remove(Socket socket) {
+        if((socket.socketSets & this.flag) == 0){
+            return false;
+        }
+        socket.socketSets &= ~this.flag;
+        this.size--;
+        return true;
+    }
+
+    boolean contains(Socket socket) {
+        return (socket.socketSets & this.flag) != 0;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of entries to pass to take(), including removed sockets. Sockets added while the set is being
+     *         drained are appended, so a drain loop should re-read length() on every iteration.
+     */
+    int length() {
+        return this.length;
+    }
+
+    /**
+     * Removes the socket of the given entry from the set.
+     *
+     * @return the socket, or null if it has been removed since it was added.
+     */
+    Socket take(int index) {
+        Socket socket = this.sockets[index];
+        this.sockets[index] = null;
+        if(socket == null || !remove(socket)){
+            return null;
+        }
+        return socket;
+    }
+
+    /**
+     * Removes all sockets from the set.
+     */
+    void clear() {
+        for(int i=0; i<this.length; i++){
+            Socket socket = this.sockets[i];
+            if(socket != null){
+                socket.socketSets &= ~this.flag;
+                this.sockets[i] = null;
+            }
+        }
+        this.length = 0;
+        this.size   = 0;
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.jenkov.nioserver;
+
+/**
+ * The sockets of one SocketProcessor, indexed by socket id. A socket id encodes the slot of the socket in the table
+ * (low 32 bits) and the generation of that slot (high 32 bits), so get() is an array read and a bounds check, and an
+ * id of a closed socket is never mistaken for the socket that reuses its slot: the generation of a slot is incremented
+ * whenever its socket is removed. Nothing is allocated once the table has grown to the peak number of sockets.
+ *
+ * 空闲的 slot 保存在一个栈中，最近空出来的 slot 最先被重新使用。generation 从 1 开始，所以 socket id 永远不会是 0，
+ * 没有设置 socketId 的 Message（socketId == 0）不会对应任何 socket。
+ */
+class SocketTable {
+
+    private Socket[] sockets;
+    private int[]    generations;
+
+    // 空闲 slot 的栈，以及还从来没有被使用过的第一个 slot
+    private int[] freeSlots;
+    private int   freeCount = 0;
+    private int   nextSlot  = 0;
+
+    private int size = 0;
+
+    SocketTable(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        this.sockets     = new Socket[capacity];
+        this.generations = new int[capacity];
+        this.freeSlots   = new int[capacity];
+    }
+
+    /**
+     * Adds the socket to a free slot and sets its socketId.
+     */
+    void add(Socket socket) {
+        int slot;
+        if(this.freeCount > 0){
+            slot = this.freeSlots[--this.freeCount];
+        } else {
+            if(this.nextSlot == this.sockets.length){
+                grow();
+            }
+            slot = this.nextSlot++;
+            this.generations[slot] = 1;
+        }
+        this.sockets[slot] = socket;
+        socket.socketId = ((long) this.generations[slot] << 32) | slot;
+        this.size++;
+    }
+
+    /**
+     * @return the socket with the given id, or null if it has been removed (or the id was never handed out).
+     */
+    Socket get(long socketId) {
+        int slot = (int) socketId;
+        if(slot < 0 || slot >= this.nextSlot){
+            return null;
+        }
+        Socket socket = this.sockets[slot];
+        return socket != null && socket.socketId == socketId ? socket : null;
+    }
+
+    /**
+     * Removes the socket, if it is in the table. Its id is stale from now on.
+     */
+    void remove(Socket socket) {
+        int slot = (int) socket.socketId;
+        if(get(socket.socketId) != socket){
+            return;
+        }
+        this.sockets[slot] = null;
+        // generation 回绕时跳过 0
+        int generation = this.generations[slot] + 1;
+        this.generations[slot] = generation != 0 ? generation : 1;
+        this.freeSlots[this.freeCount++] = slot;
+        this.size--;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void grow() {
+        int capacity = this.sockets.length * 2;
+        Socket[] sockets = new Socket[capacity];
+        int[] generations = new int[capacity];
+        int[] freeSlots = new int[capacity];
+        System.arraycopy(this.sockets, 0, sockets, 0, this.nextSlot);
+        System.arraycopy(this.generations, 0, generations, 0, this.nextSlot);
+        System.arraycopy(this.freeSlots, 0, freeSlots, 0, this.freeCount);
+        this.sockets     = sockets;
+        this.generations = generations;
+        this.freeSlots   = freeSlots;
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.jenkov.nioserver;
+
+import java.util.List;
+
+/**
+ * A hashed timing wheel holding at most one timeout per Socket, used by the SocketProcessor to enforce the idle, read
+ * and write timeouts of its sockets. Scheduling, rescheduling and cancelling a timeout are O(1): each socket is linked
+ * into the doubly linked list of the bucket of its deadline tick, through fields of the Socket itself, so no objects
+ * are allocated either.
+ *
+ * 时间被分成 tickNanos 长的 tick，tick 编号对 wheelSize 取模得到 bucket。expire 只访问从上一次调用到现在经过的 tick 对应的 bucket，
+ * bucket 中 deadline 在后面几圈的 socket 会被跳过。deadline 不需要很精确：socket 最多晚一个 tick 到期。
+ */
+class TimingWheel {
+
+    private final long tickNanos;
+    private final int  mask;
+    private final long startNanos;
+
+    // 每一个 bucket 中的 socket 组成的双向链表的头节点
+    private final Socket[] buckets;
+
+    // 已经处理过的最后一个 tick
+    private long currentTick = 0;
+    private int  size = 0;
+
+    /**
+     * @param wheelSize the number of buckets - rounded up to a power of 2.
+     */
+    TimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        int buckets = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos  = tickNanos;
+        this.mask       = buckets - 1;
+        this.startNanos = startNanos;
+        this.buckets    = new Socket[buckets];
+    }
+
+    /**
+     * Schedules the timeout of the given socket at deadlineNanos, replacing its current timeout if it has one.
+     * Deadlines in the past expire at the next tick.
+     */
+    void schedule(Socket socket, long deadlineNanos) {
+        cancel(socket);
+
+        long tick = (deadlineNanos - this.startNanos + this.tickNanos - 1) / this.tickNanos;
+        tick = Math.max(tick, this.currentTick + 1);
+
+        int bucket = (int) (tick & this.mask);
+        Socket head = this.buckets[bucket];
+        socket.timeoutTick = tick;
+        socket.timeoutPrev = null;
+        socket.timeoutNext = head;
+        if(head != null){
+            head.timeoutPrev = socket;
+        }
+        this.buckets[bucket] = socket;
+        this.size++;
+    }
+
+    void cancel(Socket socket) {
+        if(socket.timeoutTick < 0){
+            return;
+        }
+        if(socket.timeoutPrev != null){
+            socket.timeoutPrev.timeoutNext = socket.timeoutNext;
+        } else {
+            this.buckets[(int) (socket.timeoutTick & this.mask)] = socket.timeoutNext;
+        }
+        if(socket.timeoutNext != null){
+            socket.timeoutNext.timeoutPrev = socket.timeoutPrev;
+        }
+        socket.timeoutNext = null;
+        socket.timeoutPrev = null;
+        socket.timeoutTick = -1;
+        this.size--;
+    }
+
+    /**
+     * Removes the sockets whose timeout is due at nowNanos and adds them to expiredSockets.
+     */
+    void expire(long nowNanos, List<Socket> expiredSockets) {
+        long nowTick = (nowNanos - this.startNanos) / this.tickNanos;
+        if(nowTick <= this.currentTick){
+            return;
+        }
+        // 经过的 tick 超过一圈时，每个 bucket 只需要访问一次
+        long firstTick = Math.max(this.currentTick + 1, nowTick - this.mask);
+        for(long tick = firstTick; tick <= nowTick; tick++){
+            Socket socket = this.buckets[(int) (tick & this.mask)];
+            while(socket != null){
+                Socket next = socket.timeoutNext;
+                if(socket.timeoutTick <= nowTick){
+                    cancel(socket);
+                    expiredSockets.add(socket);
+                }
+                socket = next;
+            }
+        }
+        this.currentTick = nowTick;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+}
@@ -9,18 +9,70 @@ public class WriteProxy {
 
     private MessageBuffer messageBuffer = null;
     private Queue<Message> writeQueue = null;
+    private SocketProcessor socketProcessor = null;
 
     public WriteProxy(MessageBuffer messageBuffer, Queue<Message> writeQueue) {
+        this(messageBuffer, writeQueue, null);
+    }
+
+    public WriteProxy(MessageBuffer messageBuffer, Queue<Message> writeQueue, SocketProcessor socketProcessor) {
         this.messageBuffer = messageBuffer;
         this.writeQueue = writeQueue;
+        this.socketProcessor = socketProcessor;
     }
 
+    /**
+     * Allocates a response message. Like enqueue(), this may be called from any thread, e.g. from the worker threads
+     * of ServerConfig.messageProcessorExecutor.
+     *
+     * @return the message, or null if the write MessageBuffer is exhausted.
+     */
     public Message getMessage(){
         return this.messageBuffer.getMessage();
     }
 
+    /**
+     * Enqueues a response which is shared by many sockets - e.g. a pre-encoded response created with Message.wrap() -
+     * without copying it: the socket gets its own slice of the response, which is released once it has been written.
+     * The response itself is never modified, so it may be enqueued to any number of sockets at the same time, from
+     * any SocketProcessor or worker thread.
+     */
+    public boolean enqueueShared(long socketId, Message response){
+        Message slice = response.slice(0, response.length);
+        slice.socketId = socketId;
+        if(!enqueue(slice)){
+            slice.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the given response into a message allocated with getMessage() and enqueues it.
+     *
+     * @return false if the response could not be enqueued: the write MessageBuffer is exhausted, or the response does
+     * not fit into its largest section.
+     */
+    public boolean enqueue(long socketId, byte[] response){
+        Message message = getMessage();
+        if(message == null){
+            return false;
+        }
+        message.socketId = socketId;
+        if(message.writeToMessage(response) == -1 || !enqueue(message)){
+            message.release();
+            return false;
+        }
+        return true;
+    }
+
     public boolean enqueue(Message message){
-        return this.writeQueue.offer(message);
+        boolean enqueued = this.writeQueue.offer(message);
+        // 唤醒可能阻塞在 select 上的 SocketProcessor，让响应消息尽快被发送出去
+        if(enqueued && this.socketProcessor != null){
+            this.socketProcessor.wakeup();
+        }
+        return enqueued;
     }
 
 }
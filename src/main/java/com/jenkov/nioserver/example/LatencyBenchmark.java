@@ -0,0 +1,158 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.IMessageProcessor;
+import com.jenkov.nioserver.MessageProcessorExecutors;
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpHeaders;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 一个简单的请求延迟测试：启动一个 Server，然后用一个客户端连接依次发送 HTTP 请求，每次都等待完整的响应返回之后再发送
+ * 下一个请求，最后输出请求延迟的 p50、p99 以及最大值。
+ *
+ * 用法：java com.jenkov.nioserver.example.LatencyBenchmark [port] [requests] [warmupRequests] [heap|direct] [workerThreads] [uploaders] [readBudgetKB]
+ *
+ * workerThreads 大于 0 时，请求交给 MessageProcessorExecutors.fixedThreadPool(workerThreads) 处理，用于比较异步处理的额外开销。
+ * uploaders 大于 0 时，另外有 uploaders 个连接不停地上传一个很大的消息体，用于测试一个连接持续发送大量数据时其它连接的请求延迟。
+ * readBudgetKB 设置 ServerConfig.readBudgetBytes，0 表示不限制。
+ */
+public class LatencyBenchmark {
+
+    private static final String HTTP_REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    private static final String HTTP_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 38\r\n" +
+            "Content-Type: text/html\r\n" +
+            "\r\n" +
+            "<html><body>Hello World!</body></html>";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port           = args.length > 0 ? Integer.parseInt(args[0]) : 9998;
+        int requests       = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int warmupRequests = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        boolean direct     = args.length > 3 && "direct".equals(args[3]);
+        int workerThreads  = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int uploaders      = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        int readBudgetKB   = args.length > 6 ? Integer.parseInt(args[6]) : 256;
+
+        byte[] requestBytes  = HTTP_REQUEST.getBytes(StandardCharsets.UTF_8);
+        byte[] responseBytes = HTTP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            // 上传的消息体以 HttpBodyPart 的形式到达，不需要响应
+            if(request.metaData instanceof HttpHeaders && !((HttpHeaders) request.metaData).bodyStreamed){
+                writeProxy.enqueue(request.socketId, responseBytes);
+            }
+        };
+
+        ServerConfig config = new ServerConfig();
+        config.readBufferConfig.setDirect(direct);
+        config.writeBufferConfig.setDirect(direct);
+        if(workerThreads > 0){
+            config.messageProcessorExecutor = MessageProcessorExecutors.fixedThreadPool(workerThreads);
+        }
+        config.readBudgetBytes = readBudgetKB * 1024;
+
+        Server server = new Server(port, new HttpMessageReaderFactory(), messageProcessor, config);
+        server.start();
+
+        for(int i=0; i<uploaders; i++){
+            SocketChannel uploader = connect(port);
+            Thread uploadThread = new Thread(() -> upload(uploader));
+            uploadThread.setDaemon(true);
+            uploadThread.start();
+        }
+
+        SocketChannel client = connect(port);
+
+        ByteBuffer requestBuffer  = ByteBuffer.wrap(requestBytes);
+        ByteBuffer responseBuffer = ByteBuffer.allocate(responseBytes.length);
+
+        for(int i=0; i<warmupRequests; i++){
+            roundTrip(client, requestBuffer, responseBuffer);
+        }
+
+        long[] latencies = new long[requests];
+        long bytesReadBefore = server.getMetrics().getBytesRead();
+        long start = System.nanoTime();
+        for(int i=0; i<requests; i++){
+            latencies[i] = roundTrip(client, requestBuffer, responseBuffer);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long bytesRead = server.getMetrics().getBytesRead() - bytesReadBefore;
+        client.close();
+
+        Arrays.sort(latencies);
+        System.out.println("requests: " + requests);
+        System.out.println("p50  (us): " + percentile(latencies, 0.50) / 1000);
+        System.out.println("p90  (us): " + percentile(latencies, 0.90) / 1000);
+        System.out.println("p99  (us): " + percentile(latencies, 0.99) / 1000);
+        System.out.println("max  (us): " + latencies[latencies.length - 1] / 1000);
+        if(uploaders > 0){
+            System.out.println("upload (MB/s): " + bytesRead * 1000 / elapsedNanos);
+        }
+
+        // Server 的线程不是 daemon 线程，所以需要显式退出
+        System.exit(0);
+    }
+
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        // server.start() 返回时端口已经绑定，连接失败（比如 backlog 已满）时重试
+        for(int attempt = 0; ; attempt++){
+            try{
+                SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+                client.socket().setTcpNoDelay(true);
+                return client;
+            } catch(IOException e){
+                if(attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // 发送一个消息体几乎无限长的请求，直到连接被关闭
+    private static void upload(SocketChannel uploader) {
+        ByteBuffer body = ByteBuffer.allocate(64 * 1024);
+        try{
+            uploader.write(ByteBuffer.wrap(("POST /upload HTTP/1.1\r\nContent-Length: " + Long.MAX_VALUE / 2 + "\r\n\r\n").getBytes(StandardCharsets.UTF_8)));
+            while(true){
+                body.clear();
+                while(body.hasRemaining()){
+                    uploader.write(body);
+                }
+            }
+        } catch(IOException e){
+            // 连接被关闭
+        }
+    }
+
+    private static long roundTrip(SocketChannel client, ByteBuffer requestBuffer, ByteBuffer responseBuffer) throws IOException {
+        requestBuffer.clear();
+        responseBuffer.clear();
+
+        long start = System.nanoTime();
+        while(requestBuffer.hasRemaining()){
+            client.write(requestBuffer);
+        }
+        while(responseBuffer.hasRemaining()){
+            if(client.read(responseBuffer) == -1){
+                throw new IOException("Connection closed by server");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long percentile(long[] sortedValues, double percentile){
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+}
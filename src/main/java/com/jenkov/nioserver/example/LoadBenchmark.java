@@ -0,0 +1,189 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.IMessageProcessor;
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import com.jenkov.nioserver.http.StaticResponseCache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 端到端的负载测试：启动一个 Server，然后由 connections 个客户端线程各自通过一个 keep-alive 连接不断发送 HTTP 请求，每次都等待
+ * 完整的响应返回之后再发送下一个请求。预热 warmupSeconds 秒之后测量 seconds 秒，输出每秒请求数以及请求延迟的百分位数。
+ *
+ * 默认每个请求都入队同一个预先编码好的共享响应（WriteProxy.enqueueShared）；responseMode 为 copy 时，每个请求分配一个新的响应消息，
+ * 再把响应的字节拷贝进去。
+ *
+ * 用法：java com.jenkov.nioserver.example.LoadBenchmark [port] [connections] [seconds] [warmupSeconds] [processorCount] [shared|copy] [reuseport]
+ */
+public class LoadBenchmark {
+
+    private static final String HTTP_REQUEST = "GET /plaintext HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+
+    private static final String HTTP_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 13\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "\r\n" +
+            "Hello, World!";
+
+    private static volatile boolean measuring = false;
+    private static volatile boolean stopped   = false;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port           = args.length > 0 ? Integer.parseInt(args[0]) : 9996;
+        int connections    = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds        = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int warmupSeconds  = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int processorCount = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        boolean copy       = args.length > 5 && "copy".equals(args[5]);
+        boolean reusePort  = args.length > 6 && "reuseport".equals(args[6]);
+
+        byte[] requestBytes  = HTTP_REQUEST.getBytes(StandardCharsets.UTF_8);
+        byte[] responseBytes = HTTP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+        Message sharedResponse = StaticResponseCache.encode(responseBytes, false);
+
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            if(!copy){
+                writeProxy.enqueueShared(request.socketId, sharedResponse);
+                return;
+            }
+            writeProxy.enqueue(request.socketId, responseBytes);
+        };
+
+        ServerConfig config = new ServerConfig();
+        config.processorCount = processorCount;
+        config.reusePort      = reusePort;
+
+        Server server = new Server(port, new HttpMessageReaderFactory(), messageProcessor, config);
+        server.start();
+
+        Client[] clients = new Client[connections];
+        Thread[] threads = new Thread[connections];
+        for(int i=0; i<connections; i++){
+            clients[i] = new Client(connect(port), requestBytes, responseBytes.length);
+            threads[i] = new Thread(clients[i], "LoadBenchmarkClient-" + i);
+            threads[i].start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+
+        int requests = 0;
+        for(int i=0; i<connections; i++){
+            threads[i].join();
+            if(clients[i].error != null){
+                System.out.println("Client " + i + " failed: " + clients[i].error);
+            }
+            requests += clients[i].latencyCount;
+        }
+
+        long[] latencies = new long[requests];
+        int index = 0;
+        for(Client client : clients){
+            System.arraycopy(client.latencies, 0, latencies, index, client.latencyCount);
+            index += client.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("connections : " + connections);
+        System.out.println("processors  : " + processorCount);
+        System.out.println("requests    : " + requests);
+        if(requests == 0){
+            System.exit(1);
+        }
+        System.out.println("requests/s  : " + (long) (requests / (elapsed / 1e9)));
+        System.out.println("p50   (us): " + percentile(latencies, 0.50) / 1000);
+        System.out.println("p90   (us): " + percentile(latencies, 0.90) / 1000);
+        System.out.println("p99   (us): " + percentile(latencies, 0.99) / 1000);
+        System.out.println("p99.9 (us): " + percentile(latencies, 0.999) / 1000);
+        System.out.println("max   (us): " + latencies[latencies.length - 1] / 1000);
+
+        // Server 的线程不是 daemon 线程，所以需要显式退出
+        System.exit(0);
+    }
+
+    private static class Client implements Runnable {
+
+        private final SocketChannel socketChannel;
+        private final ByteBuffer requestBuffer;
+        private final ByteBuffer responseBuffer;
+
+        // 测量阶段每一个请求的延迟（纳秒），空间不够时扩容
+        long[] latencies = new long[64 * 1024];
+        int latencyCount = 0;
+        Exception error = null;
+
+        Client(SocketChannel socketChannel, byte[] requestBytes, int responseLength) {
+            this.socketChannel  = socketChannel;
+            this.requestBuffer  = ByteBuffer.wrap(requestBytes);
+            this.responseBuffer = ByteBuffer.allocate(responseLength);
+        }
+
+        @Override
+        public void run() {
+            try{
+                while(!stopped){
+                    long latency = roundTrip(this.socketChannel, this.requestBuffer, this.responseBuffer);
+                    if(measuring){
+                        if(this.latencyCount == this.latencies.length){
+                            this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+                        }
+                        this.latencies[this.latencyCount++] = latency;
+                    }
+                }
+                this.socketChannel.close();
+            } catch(IOException e){
+                this.error = e;
+            }
+        }
+    }
+
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        // server.start() 返回时端口已经绑定，连接失败（比如 backlog 已满）时重试
+        for(int attempt = 0; ; attempt++){
+            try{
+                SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+                client.socket().setTcpNoDelay(true);
+                return client;
+            } catch(IOException e){
+                if(attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static long roundTrip(SocketChannel client, ByteBuffer requestBuffer, ByteBuffer responseBuffer) throws IOException {
+        requestBuffer.clear();
+        responseBuffer.clear();
+
+        long start = System.nanoTime();
+        while(requestBuffer.hasRemaining()){
+            client.write(requestBuffer);
+        }
+        while(responseBuffer.hasRemaining()){
+            if(client.read(responseBuffer) == -1){
+                throw new IOException("Connection closed by server");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long percentile(long[] sortedValues, double percentile){
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+}
@@ -1,17 +1,35 @@
 package com.jenkov.nioserver.example;
 
 import com.jenkov.nioserver.*;
+import com.jenkov.nioserver.http.HttpBodyPart;
+import com.jenkov.nioserver.http.HttpHeaders;
 import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import com.jenkov.nioserver.http.StaticFiles;
+import com.jenkov.nioserver.http.StaticResponseCache;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 /**
  * Created by jjenkov on 19-10-2015.
+ *
+ * Usage: Main [rootDirectory] - with a root directory, the files below it are served, and the hello world page is
+ * returned for all other requests. GET /metrics returns the ServerMetrics, which are also registered with JMX.
  */
 public class Main {
 
+    private static Server server = null;
+
+    // writeMessageBuffer 中分配不到 section 时代替 /metrics 的响应。同一个连接上的响应按顺序写出，不返回任何响应的话，
+    // 这个连接上之后的流水线请求都会一直等待
+    private static final Message SERVICE_UNAVAILABLE = StaticResponseCache.encode(("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Content-Length: 0\r\n" +
+            "Retry-After: 1\r\n" +
+            "\r\n").getBytes(StandardCharsets.UTF_8), false);
+
     public static void main(String[] args) throws IOException {
 
         String httpResponse = "HTTP/1.1 200 OK\r\n" +
@@ -22,19 +40,69 @@ public class Main {
 
         byte[] httpResponseBytes = httpResponse.getBytes("UTF-8");
 
+        // 响应只编码一次，所有请求共享同一个不可变的响应消息，不需要为每个请求分配 section 并拷贝响应的字节
+        Message sharedResponse = StaticResponseCache.encode(httpResponseBytes, false);
+
+        // 每个请求、每个连接的事件都是 DEBUG 级别，默认不输出；通过 EventLog.setLevel(EventLog.DEBUG) 打开
+        EventLog eventLog = EventLog.getDefault();
+
+        StaticFiles staticFiles = args.length > 0 ? new StaticFiles(Paths.get(args[0])) : null;
+
         IMessageProcessor messageProcessor = (request, writeProxy) -> {
-            System.out.println("Message Received from socket: " + request.socketId);
-            Message response = writeProxy.getMessage();
-            response.socketId = request.socketId;
-            // 将上面 httpResponseBytes 字节数组中的内容写入到响应消息 response 中
-            response.writeToMessage(httpResponseBytes);
-            // 将 response 保存到 writeProxy 中的队列中
-            writeProxy.enqueue(response);
+            // 消息体分段到达的请求（比如分块传输的上传），在消息体的最后一部分到达之后才返回响应
+            if(request.metaData instanceof HttpBodyPart){
+                HttpBodyPart bodyPart = (HttpBodyPart) request.metaData;
+                if(!bodyPart.last || bodyPart.aborted){
+                    return;
+                }
+            } else if(((HttpHeaders) request.metaData).bodyStreamed){
+                return;
+            }
+            eventLog.log(EventLog.DEBUG, EventLog.MESSAGE_RECEIVED, request.socketId);
+            if(request.metaData instanceof HttpHeaders && ((HttpHeaders) request.metaData).uriEquals(request.sharedBuffer, "/metrics")){
+                enqueueMetrics(request.socketId, writeProxy);
+                return;
+            }
+            if(staticFiles != null && request.metaData instanceof HttpHeaders){
+                try{
+                    if(staticFiles.respond(request.sharedBuffer, (HttpHeaders) request.metaData, request.socketId, writeProxy)){
+                        return;
+                    }
+                } catch(IOException e){
+                    // 文件在检查之后被删除或者无法读取，和文件不存在一样处理
+                }
+            }
+            // 将共享的响应消息的一个 slice 保存到 writeProxy 中的队列中
+            writeProxy.enqueueShared(request.socketId, sharedResponse);
         };
 
-        Server server = new Server(9999, new HttpMessageReaderFactory(), messageProcessor);
+        ServerConfig config = new ServerConfig();
+        config.jmxEnabled = true;
+        config.eventLog   = eventLog;
+        server = new Server(9999, new HttpMessageReaderFactory(), messageProcessor, config);
 
         server.start();
     }
 
+    private static void enqueueMetrics(long socketId, WriteProxy writeProxy) {
+        byte[] body = server.getMetrics().getText().getBytes(StandardCharsets.UTF_8);
+        byte[] headers = ("HTTP/1.1 200 OK\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Content-Type: text/plain; version=0.0.4\r\n" +
+                "\r\n").getBytes(StandardCharsets.UTF_8);
+
+        Message response = writeProxy.getMessage();
+        if(response == null){
+            writeProxy.enqueueShared(socketId, SERVICE_UNAVAILABLE);
+            return;
+        }
+        response.socketId = socketId;
+        if(response.writeToMessage(headers) == -1 || response.writeToMessage(body) == -1){
+            response.release();
+            writeProxy.enqueueShared(socketId, SERVICE_UNAVAILABLE);
+        } else if(!writeProxy.enqueue(response)){
+            response.release();
+        }
+    }
+
 }
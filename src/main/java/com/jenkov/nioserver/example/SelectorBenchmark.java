@@ -0,0 +1,125 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.IMessageProcessor;
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 测试大量空闲连接下每个请求对应的 selector 调用次数：先建立 idleConnections 个不发送任何数据的空闲连接，
+ * 然后用另外一个连接依次发送 HTTP 请求，最后输出每个请求平均的 select / selectNow 调用次数以及请求延迟。
+ *
+ * 每个连接在客户端和服务端各占用一个文件描述符，所以 ulimit -n 需要大于 2 * idleConnections。
+ *
+ * 用法：java com.jenkov.nioserver.example.SelectorBenchmark [port] [idleConnections] [requests] [warmupRequests]
+ */
+public class SelectorBenchmark {
+
+    private static final String HTTP_REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    private static final String HTTP_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 38\r\n" +
+            "Content-Type: text/html\r\n" +
+            "\r\n" +
+            "<html><body>Hello World!</body></html>";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port            = args.length > 0 ? Integer.parseInt(args[0]) : 9997;
+        int idleConnections = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int requests        = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int warmupRequests  = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        byte[] requestBytes  = HTTP_REQUEST.getBytes(StandardCharsets.UTF_8);
+        byte[] responseBytes = HTTP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            writeProxy.enqueue(request.socketId, responseBytes);
+        };
+
+        Server server = new Server(port, new HttpMessageReaderFactory(), messageProcessor, new ServerConfig());
+        server.start();
+
+        SocketChannel client = connect(port);
+
+        SocketChannel[] idleClients = new SocketChannel[idleConnections];
+        for(int i=0; i<idleConnections; i++){
+            idleClients[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+        }
+
+        ByteBuffer requestBuffer  = ByteBuffer.wrap(requestBytes);
+        ByteBuffer responseBuffer = ByteBuffer.allocate(responseBytes.length);
+
+        // 预热的同时确保 SocketProcessor 已经注册完所有的空闲连接
+        for(int i=0; i<warmupRequests; i++){
+            roundTrip(client, requestBuffer, responseBuffer);
+        }
+        Thread.sleep(500);
+
+        long selectCountBefore = server.getSelectCount();
+        long[] latencies = new long[requests];
+        for(int i=0; i<requests; i++){
+            latencies[i] = roundTrip(client, requestBuffer, responseBuffer);
+        }
+        long selectCount = server.getSelectCount() - selectCountBefore;
+
+        client.close();
+        for(SocketChannel idleClient : idleClients){
+            idleClient.close();
+        }
+
+        Arrays.sort(latencies);
+        System.out.println("idle connections  : " + idleConnections);
+        System.out.println("requests          : " + requests);
+        System.out.println("selects / request : " + String.format("%.2f", (double) selectCount / requests));
+        System.out.println("p50  (us): " + percentile(latencies, 0.50) / 1000);
+        System.out.println("p90  (us): " + percentile(latencies, 0.90) / 1000);
+        System.out.println("p99  (us): " + percentile(latencies, 0.99) / 1000);
+        System.out.println("max  (us): " + latencies[latencies.length - 1] / 1000);
+
+        // Server 的线程不是 daemon 线程，所以需要显式退出
+        System.exit(0);
+    }
+
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        // server.start() 返回时端口已经绑定，连接失败（比如 backlog 已满）时重试
+        for(int attempt = 0; ; attempt++){
+            try{
+                SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+                client.socket().setTcpNoDelay(true);
+                return client;
+            } catch(IOException e){
+                if(attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static long roundTrip(SocketChannel client, ByteBuffer requestBuffer, ByteBuffer responseBuffer) throws IOException {
+        requestBuffer.clear();
+        responseBuffer.clear();
+
+        long start = System.nanoTime();
+        while(requestBuffer.hasRemaining()){
+            client.write(requestBuffer);
+        }
+        while(responseBuffer.hasRemaining()){
+            if(client.read(responseBuffer) == -1){
+                throw new IOException("Connection closed by server");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long percentile(long[] sortedValues, double percentile){
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+}
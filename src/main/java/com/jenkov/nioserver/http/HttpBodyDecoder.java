@@ -0,0 +1,187 @@
+package com.jenkov.nioserver.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a streamed request body (see HttpHeaders.bodyStreamed) incrementally, as its bytes arrive: either
+ * contentLength bytes, or a chunked body (RFC 7230 4.1) whose chunk sizes, chunk extensions and trailers are removed.
+ * The decoder never copies body bytes, it only reports where the decoded data is in the bytes it was given.
+ *
+ * 和 HttpHeaders 中的解析状态一样，解码的阶段和进度都保存在这个对象中，数据分成多个 TCP 包到达时从上一次停下的地方继续。
+ * 分块大小这一行以及 trailer 的每一行只有在完整到达之后才会被消费，没有完整到达的部分留在接收缓冲区中，下一次和新的数据一起解码。
+ */
+public class HttpBodyDecoder {
+
+    public static final int DECODE_DATA       = 0;
+    public static final int DECODE_CHUNK_SIZE = 1;
+    public static final int DECODE_CHUNK_END  = 2;
+    public static final int DECODE_TRAILERS   = 3;
+    public static final int DECODE_DONE       = 4;
+    public static final int DECODE_ERROR      = 5;
+
+    // 分块大小这一行（包括 chunk extension）以及每一行 trailer 的最大长度，超过之后认为格式错误，避免缓存任意长的一行
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    // 分块大小最多 15 个十六进制数字，不会溢出 long
+    private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+
+    public boolean chunked     = false;
+    public int     decodePhase = DECODE_DONE;
+
+    // DECODE_DATA 阶段还剩余的数据字节数：Content-Length 的消息体剩余的字节数，或者当前这一块剩余的字节数
+    public long remaining = 0;
+
+    // 最近一次 decode 解码出的数据在 src 中的位置，endIndex 不包含在内，没有数据时两者相等
+    public int dataStartIndex = 0;
+    public int dataEndIndex   = 0;
+
+    /**
+     * Prepares this decoder for the body of the given request.
+     */
+    public void reset(HttpHeaders httpHeaders) {
+        this.chunked = httpHeaders.chunked;
+        if(this.chunked){
+            this.decodePhase = DECODE_CHUNK_SIZE;
+            this.remaining   = 0;
+        } else {
+            this.remaining   = httpHeaders.contentLength;
+            this.decodePhase = this.remaining > 0 ? DECODE_DATA : DECODE_DONE;
+        }
+        this.dataStartIndex = 0;
+        this.dataEndIndex   = 0;
+    }
+
+    public boolean isDone() {
+        return this.decodePhase == DECODE_DONE;
+    }
+
+    public boolean isError() {
+        return this.decodePhase == DECODE_ERROR;
+    }
+
+    /**
+     * Decodes the body bytes between startIndex (inclusive) and endIndex (exclusive) of src, up to and including at
+     * most one range of data, which is then found between dataStartIndex and dataEndIndex. Decoding stops at the end
+     * of the body (isDone()), and at malformed chunk framing (isError()).
+     *
+     * @return the index of the first byte not consumed. An incomplete chunk-size line, chunk terminator or trailer
+     * is not consumed - decode it again together with the bytes that follow it.
+     */
+    public int decode(ByteBuffer src, int startIndex, int endIndex) {
+        this.dataStartIndex = startIndex;
+        this.dataEndIndex   = startIndex;
+        int index = startIndex;
+
+        while(true){
+            switch(this.decodePhase){
+                case DECODE_DATA : {
+                    if(index == endIndex){
+                        return index;
+                    }
+                    int length = (int) Math.min(this.remaining, endIndex - index);
+                    this.dataStartIndex = index;
+                    this.dataEndIndex   = index + length;
+                    this.remaining -= length;
+                    if(this.remaining == 0){
+                        this.decodePhase = this.chunked ? DECODE_CHUNK_END : DECODE_DONE;
+                    }
+                    return index + length;
+                }
+                case DECODE_CHUNK_SIZE : {
+                    // chunk-size [ chunk-ext ] CRLF
+                    int lineEnd = findLineEnd(src, index, endIndex);
+                    if(lineEnd < 0){
+                        return index;
+                    }
+                    long chunkSize = parseChunkSize(src, index, lineEnd);
+                    if(chunkSize < 0){
+                        this.decodePhase = DECODE_ERROR;
+                        return index;
+                    }
+                    index = lineEnd + 2;
+                    this.remaining   = chunkSize;
+                    // 大小为 0 的块是最后一块，后面是 trailer 以及一个空行
+                    this.decodePhase = chunkSize > 0 ? DECODE_DATA : DECODE_TRAILERS;
+                    break;
+                }
+                case DECODE_CHUNK_END : {
+                    // 每一块的数据之后是 CRLF
+                    if(endIndex - index < 2){
+                        return index;
+                    }
+                    if(src.get(index) != '\r' || src.get(index + 1) != '\n'){
+                        this.decodePhase = DECODE_ERROR;
+                        return index;
+                    }
+                    index += 2;
+                    this.decodePhase = DECODE_CHUNK_SIZE;
+                    break;
+                }
+                case DECODE_TRAILERS : {
+                    // trailer 被忽略，遇到空行时消息体结束
+                    int lineEnd = findLineEnd(src, index, endIndex);
+                    if(lineEnd < 0){
+                        return index;
+                    }
+                    if(lineEnd == index){
+                        this.decodePhase = DECODE_DONE;
+                    }
+                    index = lineEnd + 2;
+                    break;
+                }
+                default :
+                    return index;
+            }
+        }
+    }
+
+    // 返回 [startIndex, endIndex) 中第一行结尾的 \r 的位置。这一行还没有完整到达时返回 -1；这一行太长或者没有以 \r\n 结尾时，
+    // 进入 DECODE_ERROR 阶段并返回 -2
+    private int findLineEnd(ByteBuffer src, int startIndex, int endIndex) {
+        int searchEnd = (int) Math.min(endIndex, (long) startIndex + MAX_LINE_LENGTH);
+        int lineFeed = HttpUtil.findNext(src, startIndex, searchEnd, (byte) '\n');
+        if(lineFeed == -1){
+            if(searchEnd - startIndex < MAX_LINE_LENGTH){
+                return -1;
+            }
+            this.decodePhase = DECODE_ERROR;
+            return -2;
+        }
+        if(lineFeed == startIndex || src.get(lineFeed - 1) != '\r'){
+            this.decodePhase = DECODE_ERROR;
+            return -2;
+        }
+        return lineFeed - 1;
+    }
+
+    /**
+     * Parses the hexadecimal chunk size at the start of the chunk-size line between startIndex and endIndex (the
+     * index of its CR), ignoring any chunk extension after it.
+     *
+     * @return the chunk size, or -1 if the line does not start with a valid chunk size.
+     */
+    static long parseChunkSize(ByteBuffer src, int startIndex, int endIndex) {
+        long chunkSize = 0;
+        int index = startIndex;
+        for(; index < endIndex; index++){
+            int digit = Character.digit(src.get(index), 16);
+            if(digit < 0){
+                break;
+            }
+            chunkSize = (chunkSize << 4) | digit;
+        }
+        int digits = index - startIndex;
+        if(digits == 0 || digits > MAX_CHUNK_SIZE_DIGITS){
+            return -1;
+        }
+        // 分块大小之后只能是行尾，或者以 ';' 开始的 chunk extension（之前可以有空白字符）
+        if(index < endIndex){
+            byte next = src.get(index);
+            if(next != ';' && next != ' ' && next != '\t'){
+                return -1;
+            }
+        }
+        return chunkSize;
+    }
+
+}
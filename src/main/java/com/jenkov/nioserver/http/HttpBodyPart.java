@@ -0,0 +1,25 @@
+package com.jenkov.nioserver.http;
+
+/**
+ * The metaData of a message holding a part of a streamed request body (see HttpHeaders.bodyStreamed). The message
+ * itself holds the decoded body bytes of this part - for chunked requests without the chunk framing - as a slice of
+ * the receive buffer of the HttpMessageReader.
+ *
+ * 一个请求的消息体被分成多个 HttpBodyPart 依次交给 IMessageProcessor，顺序与到达的顺序一致，并且都在下一个请求之前。
+ * 最后一个 part 的 last 为 true（可能不包含任何数据）。连接在消息体结束之前断开或者分块格式错误时，最后一个 part 的 aborted 为 true。
+ */
+public class HttpBodyPart {
+
+    // 这个消息体所属的请求，和请求消息的 metaData 是同一个对象
+    public HttpHeaders httpHeaders = null;
+
+    public boolean last    = false;
+    public boolean aborted = false;
+
+    public HttpBodyPart(HttpHeaders httpHeaders, boolean last, boolean aborted) {
+        this.httpHeaders = httpHeaders;
+        this.last        = last;
+        this.aborted     = aborted;
+    }
+
+}
@@ -1,7 +1,14 @@
 package com.jenkov.nioserver.http;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Created by jjenkov on 19-10-2015.
+ *
+ * HttpHeaders 不保存任何 String，而是保存请求行（method、URI、version）以及每一个请求头部的名字和值在 Message.sharedBuffer
+ * （heap MessageBuffer 中即 Message.sharedArray）中的位置。解析完成之后，所有的 index 都是 sharedBuffer 中的绝对位置，
+ * 和 bodyStartIndex 一样。请求头部的查找不区分大小写，也不会创建任何对象，messageProcessor 可以直接根据 URI 进行路由、读取请求头部。
  */
 public class HttpHeaders {
 
@@ -13,12 +20,187 @@ public class HttpHeaders {
 
     public int httpMethod    = 0;
 
+    // 请求行中的 method、URI 以及 version 的位置，endIndex 不包含在内
+    public int methodStartIndex  = 0;
+    public int methodEndIndex    = 0;
+    public int uriStartIndex     = 0;
+    public int uriEndIndex       = 0;
+    public int versionStartIndex = 0;
+    public int versionEndIndex   = 0;
+
     public int hostStartIndex = 0;
     public int hostEndIndex   = 0;
 
-    public int contentLength = 0;
+    // Content-Length 的值；分块传输（chunked）的请求为 0。contentLengthSeen 表示已经解析过一个 Content-Length 请求头部
+    public long contentLength = 0;
+    boolean     contentLengthSeen = false;
+
+    // chunked 表示请求使用 Transfer-Encoding: chunked 分块传输消息体。bodyStreamed 表示消息体没有包含在这个请求中
+    // （分块传输，或者整个请求比 HttpMessageReader 的 maxBufferedRequestSize 大），而是跟在请求之后，作为一个个 HttpBodyPart 消息依次交给
+    // IMessageProcessor，此时 bodyStartIndex == bodyEndIndex
+    public boolean chunked      = false;
+    public boolean bodyStreamed = false;
+
+    // transferEncoding 表示请求中有 Transfer-Encoding 请求头部。finalCodingChunked 表示到目前为止最后一个 Transfer-Encoding
+    // 请求头部的最后一个 transfer coding 是 chunked；请求头部结束时不是 chunked 的话，请求无效（不知道消息体在哪里结束）
+    public boolean transferEncoding   = false;
+    boolean        finalCodingChunked = false;
+
+    // 处理完这个请求之后是否保持连接：HTTP/1.1 默认保持连接，除非请求中有 Connection: close；HTTP/1.0 只有在请求中有
+    // Connection: keep-alive 时才保持连接。不保持连接时，HttpMessageReader 不再读取之后的请求，响应写完之后连接被关闭
+    public boolean keepAlive    = true;
+
+    // 请求无法被正确地划分边界（比如 Content-Length 不是一个非负整数或者出现了多个不同的值，
+    // 最后一个 transfer coding 不是 chunked，或者同时有 Content-Length 和 Transfer-Encoding），
+    // HttpUtil.parseHttpRequest 返回 HttpUtil.INVALID_REQUEST。此时不知道消息体在哪里结束，之后的数据都不能再当作请求解析，只能关闭连接
+    public boolean invalid      = false;
 
     public int bodyStartIndex = 0;
     public int bodyEndIndex   = 0;
 
+    // 每一个请求头部在 headerIndex 中占用 HEADER_INDEX_SIZE 个 int：名字的开始、结束位置，值的开始、结束位置（不包含值前后的空白字符）
+    public static final int HEADER_NAME_START  = 0;
+    public static final int HEADER_NAME_END    = 1;
+    public static final int HEADER_VALUE_START = 2;
+    public static final int HEADER_VALUE_END   = 3;
+    public static final int HEADER_INDEX_SIZE  = 4;
+
+    public int[] headerIndex = new int[16 * HEADER_INDEX_SIZE];
+    public int   headerCount = 0;
+
+    // 解析的阶段：请求行、请求头部、消息体。一个 HttpHeaders 对象对应一个正在解析的请求，请求分成多个 TCP 包到达时，
+    // HttpUtil.parseHttpRequest 从上一次停下的地方继续解析，已经解析过的字节不会再解析一次
+    public static final int PARSE_REQUEST_LINE = 0;
+    public static final int PARSE_HEADERS      = 1;
+    public static final int PARSE_BODY         = 2;
+
+    public int parsePhase = PARSE_REQUEST_LINE;
+
+    // 解析进度，都是相对于请求的开始位置，接收缓冲区移动之后仍然有效：
+    // headerScanOffset 是已经查找过的字节数，lineStartOffset 是还没有完整到达的那一行的开始位置，
+    // bodyStartOffset 是消息体的开始位置（PARSE_BODY 阶段有效）。解析出完整的请求之后全部重置，可以用来解析下一个请求。
+    // 解析的过程中，请求行和 headerIndex 中的位置同样是相对于请求的开始位置，解析完成时才加上请求的开始位置
+    public int headerScanOffset = 0;
+    public int lineStartOffset  = 0;
+    public int bodyStartOffset  = 0;
+
+    /**
+     * @return the index (0 to headerCount - 1) of the first header with the given name, compared case-insensitively,
+     * or -1 if the request has no such header.
+     */
+    public int findHeader(ByteBuffer src, String name) {
+        for(int header=0; header<this.headerCount; header++){
+            int offset = header * HEADER_INDEX_SIZE;
+            if(equalsIgnoreCase(src, this.headerIndex[offset + HEADER_NAME_START], this.headerIndex[offset + HEADER_NAME_END], name)){
+                return header;
+            }
+        }
+        return -1;
+    }
+
+    public int getValueStartIndex(int header) {
+        return this.headerIndex[header * HEADER_INDEX_SIZE + HEADER_VALUE_START];
+    }
+
+    public int getValueEndIndex(int header) {
+        return this.headerIndex[header * HEADER_INDEX_SIZE + HEADER_VALUE_END];
+    }
+
+    /**
+     * @return true if the request has a header with the given name (case-insensitive) whose value equals the given
+     * value, compared case-insensitively - e.g. headerValueEquals(src, "Connection", "close").
+     */
+    public boolean headerValueEquals(ByteBuffer src, String name, String value) {
+        int header = findHeader(src, name);
+        return header != -1 && equalsIgnoreCase(src, getValueStartIndex(header), getValueEndIndex(header), value);
+    }
+
+    /**
+     * @return the value of the given header parsed as a non-negative decimal number, or -1 if the request has no such
+     * header or its value is not a number.
+     */
+    public long getHeaderValueAsLong(ByteBuffer src, String name) {
+        int header = findHeader(src, name);
+        if(header == -1){
+            return -1;
+        }
+        return HttpUtil.parseLong(src, getValueStartIndex(header), getValueEndIndex(header));
+    }
+
+    /**
+     * @return true if the request URI equals the given uri. The comparison is case-sensitive.
+     */
+    public boolean uriEquals(ByteBuffer src, String uri) {
+        return this.uriEndIndex - this.uriStartIndex == uri.length() && regionMatches(src, this.uriStartIndex, uri);
+    }
+
+    /**
+     * @return true if the request URI starts with the given prefix, e.g. uriStartsWith(src, "/api/"). The comparison
+     * is case-sensitive.
+     */
+    public boolean uriStartsWith(ByteBuffer src, String prefix) {
+        return this.uriEndIndex - this.uriStartIndex >= prefix.length() && regionMatches(src, this.uriStartIndex, prefix);
+    }
+
+    // 解析出一个请求头部时由 HttpUtil 调用，位置相对于请求的开始位置
+    void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int offset = this.headerCount * HEADER_INDEX_SIZE;
+        if(offset == this.headerIndex.length){
+            this.headerIndex = Arrays.copyOf(this.headerIndex, this.headerIndex.length * 2);
+        }
+        this.headerIndex[offset + HEADER_NAME_START]  = nameStart;
+        this.headerIndex[offset + HEADER_NAME_END]    = nameEnd;
+        this.headerIndex[offset + HEADER_VALUE_START] = valueStart;
+        this.headerIndex[offset + HEADER_VALUE_END]   = valueEnd;
+        this.headerCount++;
+    }
+
+    // 请求解析完成时由 HttpUtil 调用，把相对于请求开始位置的 index 转换成 sharedBuffer 中的绝对位置
+    void toAbsoluteIndexes(int requestStartIndex) {
+        this.methodStartIndex  += requestStartIndex;
+        this.methodEndIndex    += requestStartIndex;
+        this.uriStartIndex     += requestStartIndex;
+        this.uriEndIndex       += requestStartIndex;
+        this.versionStartIndex += requestStartIndex;
+        this.versionEndIndex   += requestStartIndex;
+        // 没有 Host 请求头部时 hostStartIndex 和 hostEndIndex 都保持为 0。Host 的值在请求行之后，相对位置不会是 0
+        if(this.hostEndIndex != 0){
+            this.hostStartIndex += requestStartIndex;
+            this.hostEndIndex   += requestStartIndex;
+        }
+
+        int end = this.headerCount * HEADER_INDEX_SIZE;
+        for(int i=0; i<end; i++){
+            this.headerIndex[i] += requestStartIndex;
+        }
+    }
+
+    private static boolean regionMatches(ByteBuffer src, int startIndex, String value) {
+        for(int i=0; i<value.length(); i++){
+            if(src.get(startIndex + i) != value.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 只处理 ASCII 字母的大小写，HTTP 请求头部的名字只能包含 ASCII 字符
+    static boolean equalsIgnoreCase(ByteBuffer src, int startIndex, int endIndex, String value) {
+        if(endIndex - startIndex != value.length()){
+            return false;
+        }
+        for(int i=0; i<value.length(); i++){
+            int b = src.get(startIndex + i);
+            int c = value.charAt(i);
+            if(b != c && toLowerCase(b) != toLowerCase(c)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
 }
@@ -3,6 +3,7 @@ package com.jenkov.nioserver.http;
 import com.jenkov.nioserver.IMessageReader;
 import com.jenkov.nioserver.Message;
 import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.ReceiveSizePredictor;
 import com.jenkov.nioserver.Socket;
 
 import java.io.IOException;
@@ -12,61 +13,275 @@ import java.util.List;
 
 /**
  * Created by jjenkov on 18-10-2015.
+ *
+ * Requests which fit into the receive buffer are handed to the IMessageProcessor as one message. The body of a request
+ * which does not - a chunked body, or a request longer than maxBufferedRequestSize - is streamed instead: the request
+ * message holds only the request line and headers (HttpHeaders.bodyStreamed is set), and is followed by messages
+ * with HttpBodyPart metaData holding the body as it arrives. The body is never buffered as a whole, so the memory
+ * used by a connection does not depend on the size of the bodies it receives.
+ *
+ * The reader holds a section of the MessageBuffer only while it has unparsed data: the receive buffer is allocated
+ * when bytes arrive, and given back as soon as all of its data has been parsed into messages. An idle keep-alive
+ * connection therefore holds no section at all.
  */
 public class HttpMessageReader implements IMessageReader {
 
     private MessageBuffer messageBuffer = null;
     // completeMessages 表示单个 HTTP 消息的集合
     private List<Message> completeMessages = new ArrayList<Message>();
-    // nextMessage 类似于一个缓冲区，不断从客户端接收 HTTP 字节数据，但是这些 HTTP 消息不一定是完整的
-    // 比如有可能是 2.3 个 HTTP 消息，或者 0.4 个 HTTP 消息当形成一个完整的 HTTP 消息时，就把这个消息
-    // 保存到 completeMessages 数组中
-    private Message nextMessage = null;
+    // receiveMessage 是接收缓冲区，为 null 表示这个连接当前没有还未解析的数据。不断从客户端接收 HTTP 字节数据，其中可能包含多个完整的 HTTP 消息以及最后一个不完整的消息，
+    // 比如有可能是 2.3 个 HTTP 消息，或者 0.4 个 HTTP 消息。每解析出一个完整的 HTTP 消息，就把接收缓冲区中对应的那一段作为一个
+    // slice 保存到 completeMessages 中，不拷贝任何数据
+    private Message receiveMessage = null;
+    // parseIndex 是 receiveMessage 中还没有被解析成完整消息的数据的起始位置（相对于 receiveMessage.offset）
+    private int parseIndex = 0;
+    // 下一个请求的 HttpHeaders，开始解析一个新的请求时才创建，解析出完整的请求之后交给这个请求
+    private HttpHeaders nextHttpHeaders = null;
+
+    // 请求（请求头部加上消息体）超过 maxBufferedRequestSize 时，消息体以 HttpBodyPart 的形式分段交给 IMessageProcessor。
+    // 不会超过 MessageBuffer 中最大的 section，更大的请求无法放到接收缓冲区中
+    private long maxBufferedRequestSize = Long.MAX_VALUE;
+    // MessageBuffer 中最大的 section 的大小。请求行和请求头部必须能够放到一个 section 中
+    private int largestSectionSize = 0;
+    // streamedHttpHeaders 不为 null 时，接收缓冲区中 parseIndex 之后的数据是这个请求的消息体，由 bodyDecoder 解码
+    private HttpHeaders streamedHttpHeaders = null;
+    private HttpBodyDecoder bodyDecoder = null;
+    // 正在读取消息体的请求不保持连接，消息体读完之后不再读取这个连接
+    private boolean closeAfterBody = false;
+
+    // 根据这个连接最近每次读取到的字节数，决定新的接收缓冲区使用哪个 size class，在 init 中创建
+    private ReceiveSizePredictor receiveSizePredictor = null;
 
     public HttpMessageReader() {
     }
 
+    /**
+     * @param maxBufferedRequestSize requests longer than this (request line, headers and body) have their body
+     *                               streamed as HttpBodyPart messages. Requests which do not fit into the largest
+     *                               section of the MessageBuffer are always streamed.
+     */
+    public HttpMessageReader(long maxBufferedRequestSize) {
+        this.maxBufferedRequestSize = maxBufferedRequestSize;
+    }
+
     @Override
     public void init(MessageBuffer readMessageBuffer) {
+        // 接收缓冲区在第一次读取时才分配，空闲的连接不占用 section
         this.messageBuffer = readMessageBuffer;
-        this.nextMessage = messageBuffer.getMessage();
-        this.nextMessage.metaData = new HttpHeaders();
+        this.largestSectionSize = readMessageBuffer.getSectionSize(readMessageBuffer.getSizeClassCount() - 1);
+        this.maxBufferedRequestSize = Math.min(this.maxBufferedRequestSize, this.largestSectionSize);
+        this.receiveSizePredictor = new ReceiveSizePredictor(readMessageBuffer.getSectionSize(0), this.largestSectionSize);
     }
 
     @Override
     public void read(Socket socket, ByteBuffer byteBuffer) throws IOException {
-        // 将 Socket 中客户端发送过来的数据不断循环读取，bytesRead 表示一共读取到的字节数
-        int bytesRead = socket.read(byteBuffer);
-        // byteBuffer 刚刚分配时，limit = capacity，position = 0
-        // byteBuffer 在调用 flip 函数之后，limit = position，position = 0
-        byteBuffer.flip();
-
-        // remaining 返回 limit - position，因此在调用 flip 后，
-        // 调用 remaining 返回的是 buffer 从 socket 中读取的字节数
-        if(byteBuffer.remaining() == 0){
-            byteBuffer.clear();
+        // 不保持连接的请求之后的数据都被忽略
+        if(socket.closeAfterResponses){
             return;
         }
+        int totalBytesRead = readAndParse(socket);
+        // 没有读到数据（比如分配不到 section）不说明这个连接的流量变小了
+        if(totalBytesRead > 0){
+            this.receiveSizePredictor.record(totalBytesRead);
+        }
+
+        // 接收缓冲区中的数据都已经解析完了，不再持有它：没有 slice 引用时 section 立即归还给 MessageBuffer，否则在最后一个
+        // slice（请求）release 之后归还。下一次有数据到达时再按照预测的大小分配
+        if(this.receiveMessage != null && this.parseIndex == this.receiveMessage.length){
+            this.receiveMessage.release();
+            this.receiveMessage = null;
+            this.parseIndex = 0;
+        }
+    }
+
+    // 读取 socket 中的数据并解析出完整的消息，返回读取到的字节数
+    private int readAndParse(Socket socket) throws IOException {
+        int totalBytesRead = 0;
+        while(true){
+            // 分配不到接收缓冲区时不读取任何数据，SocketProcessor 在 section 不足时会暂停读取这个连接
+            if(!prepareReceiveMessage()){
+                return totalBytesRead;
+            }
 
-        // 将 byteBuffer 中的数据保存到 nextMessage 中
-        this.nextMessage.writeToMessage(byteBuffer);
+            // 将 Socket 中客户端发送过来的数据直接读入到 receiveMessage 的 section 中，不经过 byteBuffer 中转，
+            // bytesRead 表示一共读取到的字节数
+            int bytesRead = socket.read(this.receiveMessage);
+            if(bytesRead > 0){
+                totalBytesRead += bytesRead;
+                parseCompleteMessages(socket);
 
-        // 对客户端发送过来的 HTTP 消息进行解析，最终获取到三个数据，contentLength、bodyStartIndex、bodyEndIndex，保存到 httpHeaders
-        // contentLength 表示发送过来的 HTTP 消息体的长度、bodyStartIndex、bodyEndIndex 表示消息体开始和结束位置
-        int endIndex = HttpUtil.parseHttpRequest(this.nextMessage.sharedArray, this.nextMessage.offset, this.nextMessage.offset + this.nextMessage.length,
-                (HttpHeaders) this.nextMessage.metaData);
+                // 最大的 section 已经满了，却连一个请求的请求行和请求头部都没有解析完：这个请求永远也不会完整，
+                // 继续读取只会一直读到 0 个字节。不再读取这个连接，之前的请求的响应写完之后关闭连接
+                if(isHeaderOverflow()){
+                    closeAfterResponses(socket);
+                    return totalBytesRead;
+                }
+            }
 
-        if(endIndex != -1){
-            Message message = this.messageBuffer.getMessage();
-            message.metaData = new HttpHeaders();
-            // 在从 socket 读取消息到 byteBuffer 中时，有可能读取了连续多个 HTTP 消息到 byteBuffer 中，
-            // 因此创建一个新的 message，将 nextMessage 中存在的除了第一个 HTTP 消息以外的其余 HTTP 消息保存到新的 message 中
-            // 使得 nextMessage 只有一个完整的 HTTP 消息
-            message.writePartialMessageToMessage(nextMessage, endIndex);
-            completeMessages.add(nextMessage);
-            nextMessage = message;
+            // 连接在消息体结束之前断开，或者分块的格式错误：以一个 aborted 的 HttpBodyPart 结束这个消息体，并关闭连接
+            if(this.streamedHttpHeaders != null && (socket.endOfStreamReached || this.bodyDecoder.isError())){
+                addBodyPart(this.receiveMessage.offset + this.parseIndex, 0, true);
+                socket.endOfStreamReached = true;
+            }
+
+            // section 没有被读满，说明 socket 中的数据已经读完了（或者连接已经关闭）。否则 section 已满且无法扩展（还被 slice 引用），
+            // 在下一次循环中先腾出空间再继续读。如果一个完整的消息都没有解析出来（parseIndex == 0），就无法腾出空间。
+            // 已经解析出的消息还引用着接收缓冲区时，先返回让 IMessageProcessor 处理并释放它们，而不是换一个新的接收缓冲区继续读，
+            // 这样一个连接同时最多只占用一个接收缓冲区，不管客户端发送得多快、消息体有多大
+            if(bytesRead == 0 || socket.endOfStreamReached || socket.closeAfterResponses || this.receiveMessage.length < this.receiveMessage.capacity
+                    || this.parseIndex == 0 || !this.completeMessages.isEmpty()){
+                return totalBytesRead;
+            }
         }
-        byteBuffer.clear();
+    }
+
+    // 对接收缓冲区中还没有解析的数据进行解析，一次可以解析出多个流水线（pipelining）请求。解析 HTTP 消息最终获取到 contentLength、
+    // bodyStartIndex、bodyEndIndex，保存到 httpHeaders 中，contentLength 表示消息体的长度，bodyStartIndex、bodyEndIndex 表示消息体开始和结束位置
+    private void parseCompleteMessages(Socket socket) {
+        Message receiveMessage = this.receiveMessage;
+        int endOfData = receiveMessage.offset + receiveMessage.length;
+
+        while(this.parseIndex < receiveMessage.length){
+            int startIndex = receiveMessage.offset + this.parseIndex;
+
+            if(this.streamedHttpHeaders != null){
+                if(!parseBodyPart(startIndex, endOfData)){
+                    return;
+                }
+                if(this.streamedHttpHeaders == null && this.closeAfterBody){
+                    closeAfterResponses(socket);
+                    return;
+                }
+                continue;
+            }
+
+            if(this.nextHttpHeaders == null){
+                this.nextHttpHeaders = new HttpHeaders();
+            }
+            int endIndex = HttpUtil.parseHttpRequest(receiveMessage.sharedBuffer, startIndex, endOfData, this.nextHttpHeaders, this.maxBufferedRequestSize);
+            if(endIndex == -1){
+                return;
+            }
+            // 不知道这个请求在哪里结束：不把它交给 IMessageProcessor，之前的请求的响应写完之后关闭连接
+            if(endIndex == HttpUtil.INVALID_REQUEST){
+                closeAfterResponses(socket);
+                return;
+            }
+
+            Message message = receiveMessage.slice(this.parseIndex, endIndex - startIndex);
+            message.metaData = this.nextHttpHeaders;
+            this.completeMessages.add(message);
+
+            // 请求只包含请求行和请求头部，接下来的数据是它的消息体
+            if(this.nextHttpHeaders.bodyStreamed){
+                this.streamedHttpHeaders = this.nextHttpHeaders;
+                if(this.bodyDecoder == null){
+                    this.bodyDecoder = new HttpBodyDecoder();
+                }
+                this.bodyDecoder.reset(this.streamedHttpHeaders);
+            }
+
+            HttpHeaders httpHeaders = this.nextHttpHeaders;
+            this.nextHttpHeaders = null;
+            this.parseIndex = endIndex - receiveMessage.offset;
+
+            if(!httpHeaders.keepAlive){
+                if(!httpHeaders.bodyStreamed){
+                    closeAfterResponses(socket);
+                    return;
+                }
+                this.closeAfterBody = true;
+            }
+        }
+    }
+
+    private boolean isHeaderOverflow() {
+        return this.streamedHttpHeaders == null && this.parseIndex == 0 && this.receiveMessage.length >= this.largestSectionSize;
+    }
+
+    // 这个连接上不会再有新的请求：丢弃接收缓冲区中剩余的数据，由 SocketProcessor 在响应写完之后关闭连接
+    private void closeAfterResponses(Socket socket) {
+        socket.closeAfterResponses = true;
+        this.parseIndex = this.receiveMessage.length;
+    }
+
+    // 解码 [startIndex, endOfData) 中的消息体，把解码出的数据（最多一段）作为一个 HttpBodyPart 的 slice 添加到 completeMessages 中。
+    // 返回 false 表示需要等待更多的数据（或者分块的格式错误）
+    private boolean parseBodyPart(int startIndex, int endOfData) {
+        HttpBodyDecoder bodyDecoder = this.bodyDecoder;
+        int endIndex = bodyDecoder.decode(this.receiveMessage.sharedBuffer, startIndex, endOfData);
+        if(bodyDecoder.isError()){
+            return false;
+        }
+
+        if(bodyDecoder.dataEndIndex > bodyDecoder.dataStartIndex || bodyDecoder.isDone()){
+            addBodyPart(bodyDecoder.dataStartIndex, bodyDecoder.dataEndIndex - bodyDecoder.dataStartIndex, false);
+        }
+        this.parseIndex = endIndex - this.receiveMessage.offset;
+        return endIndex > startIndex;
+    }
+
+    private void addBodyPart(int dataStartIndex, int length, boolean aborted) {
+        boolean last = aborted || this.bodyDecoder.isDone();
+        Message part = this.receiveMessage.slice(dataStartIndex - this.receiveMessage.offset, length);
+        part.metaData = new HttpBodyPart(this.streamedHttpHeaders, last, aborted);
+        this.completeMessages.add(part);
+        if(last){
+            this.streamedHttpHeaders = null;
+        }
+    }
+
+    // 在读取新数据之前，回收 receiveMessage 中已经被解析成完整消息的那部分空间：
+    // 1.如果没有 slice 还在引用 receiveMessage（请求都已经处理完并且 release 了），可以直接复用它的 section：已经全部解析完就重置，
+    //   否则在剩余空间不足一半时，把最后一个不完整的消息移动到 section 的开头（只有这一种情况需要拷贝）
+    // 2.如果还有 slice 在引用（比如请求正在被 messageProcessorExecutor 异步处理），不能覆盖或者移动 section 中的数据，只能继续往后面
+    //   追加；section 满了之后，换一个新的 message 作为接收缓冲区，并且只把最后一个不完整的消息拷贝过去
+    // 3.receiveMessage 为 null（之前的数据都已经解析完）时分配一个新的 message，分配不到时返回 false
+    // 新的 message 的大小由 receiveSizePredictor 决定
+    private boolean prepareReceiveMessage() {
+        if(this.receiveMessage == null){
+            this.receiveMessage = this.messageBuffer.getMessage(this.receiveSizePredictor.getPredictedSize());
+            return this.receiveMessage != null;
+        }
+        if(this.parseIndex == 0){
+            return true;
+        }
+
+        Message receiveMessage = this.receiveMessage;
+        int remaining = receiveMessage.length - this.parseIndex;
+
+        if(receiveMessage.referenceCount() == 1){
+            if(remaining == 0){
+                receiveMessage.length = 0;
+                this.parseIndex = 0;
+            } else if(receiveMessage.capacity - receiveMessage.length < receiveMessage.capacity / 2){
+                receiveMessage.compact(this.parseIndex);
+                this.parseIndex = 0;
+            }
+            return true;
+        }
+
+        if(receiveMessage.length < receiveMessage.capacity){
+            return true;
+        }
+
+        // 分配不到新的 message，或者放不下最后一个不完整的消息时，继续使用已经满了的 receiveMessage，这次不会读到任何数据
+        Message newReceiveMessage = this.messageBuffer.getMessage(Math.max(this.receiveSizePredictor.getPredictedSize(), remaining));
+        if(newReceiveMessage == null){
+            return true;
+        }
+        if(remaining > 0){
+            ByteBuffer partialMessage = receiveMessage.sharedBuffer.duplicate();
+            partialMessage.limit(receiveMessage.offset + receiveMessage.length).position(receiveMessage.offset + this.parseIndex);
+            if(newReceiveMessage.writeToMessage(partialMessage) == -1){
+                newReceiveMessage.release();
+                return true;
+            }
+        }
+        receiveMessage.release();
+        this.receiveMessage = newReceiveMessage;
+        this.parseIndex = 0;
+        return true;
     }
 
     @Override
@@ -74,4 +289,22 @@ public class HttpMessageReader implements IMessageReader {
         return this.completeMessages;
     }
 
+    @Override
+    public boolean isMessageInProgress() {
+        return this.streamedHttpHeaders != null || (this.receiveMessage != null && this.parseIndex < this.receiveMessage.length);
+    }
+
+    @Override
+    public void dispose() {
+        for(int i=0; i<this.completeMessages.size(); i++){
+            this.completeMessages.get(i).release();
+        }
+        this.completeMessages.clear();
+
+        if(this.receiveMessage != null){
+            this.receiveMessage.release();
+            this.receiveMessage = null;
+        }
+    }
+
 }
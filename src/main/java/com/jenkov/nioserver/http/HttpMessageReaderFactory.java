@@ -9,11 +9,20 @@ import com.jenkov.nioserver.MessageBuffer;
  */
 public class HttpMessageReaderFactory implements IMessageReaderFactory {
 
+    private long maxBufferedRequestSize = Long.MAX_VALUE;
+
     public HttpMessageReaderFactory() {
     }
 
+    /**
+     * @param maxBufferedRequestSize see HttpMessageReader(long).
+     */
+    public HttpMessageReaderFactory(long maxBufferedRequestSize) {
+        this.maxBufferedRequestSize = maxBufferedRequestSize;
+    }
+
     @Override
     public IMessageReader createMessageReader() {
-        return new HttpMessageReader();
+        return new HttpMessageReader(this.maxBufferedRequestSize);
     }
 }
@@ -1,20 +1,50 @@
 package com.jenkov.nioserver.http;
 
-import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Created by jjenkov on 19-10-2015.
  */
 public class HttpUtil {
 
+    /**
+     * Returned by parseHttpRequest for a request whose end cannot be determined, e.g. because its Content-Length is
+     * not a non-negative number. httpHeaders.invalid is set. The bytes after the request cannot be trusted to start a
+     * new request, so the connection must be closed.
+     */
+    public static final int INVALID_REQUEST = -2;
+
     private static final byte[] GET = new byte[]{'G','E','T'};
     private static final byte[] POST = new byte[]{'P','O','S','T'};
     private static final byte[] PUT = new byte[]{'P','U','T'};
     private static final byte[] HEAD = new byte[]{'H','E','A','D'};
     private static final byte[] DELETE = new byte[]{'D','E','L','E','T','E'};
 
-    private static final byte[] HOST = new byte[]{'H','o','s','t'};
-    private static final byte[] CONTENT_LENGTH = new byte[]{'C','o','n','t','e','n','t','-','L','e','n','g','t','h'};
+    private static final byte[] HTTP_1_0 = new byte[]{'H','T','T','P','/','1','.','0'};
+
+    // 请求头部的名字不区分大小写，和小写的名字进行比较
+    private static final byte[] HOST = new byte[]{'h','o','s','t'};
+    private static final byte[] CONTENT_LENGTH = new byte[]{'c','o','n','t','e','n','t','-','l','e','n','g','t','h'};
+    private static final byte[] TRANSFER_ENCODING = new byte[]{'t','r','a','n','s','f','e','r','-','e','n','c','o','d','i','n','g'};
+    private static final byte[] CHUNKED = new byte[]{'c','h','u','n','k','e','d'};
+    private static final byte[] CONNECTION = new byte[]{'c','o','n','n','e','c','t','i','o','n'};
+    private static final byte[] CLOSE = new byte[]{'c','l','o','s','e'};
+    private static final byte[] KEEP_ALIVE = new byte[]{'k','e','e','p','-','a','l','i','v','e'};
+
+    // 以 little endian 的 long 读取 ByteBuffer 中任意位置（不需要对齐）的 8 个字节，heap 和 direct ByteBuffer 都适用，
+    // 不会改变 ByteBuffer 的 position 和 limit
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // SWAR（SIMD Within A Register）使用的常量：每个字节都是 0x01 / 0x80
+    private static final long ONES  = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    public static int parseHttpRequest(byte[] src, int startIndex, int endIndex, HttpHeaders httpHeaders){
+        return parseHttpRequest(ByteBuffer.wrap(src), startIndex, endIndex, httpHeaders);
+    }
 
     /**
      * 客户端发送一个 HTTP 请求到服务器的请求消息包括以下格式：请求行、请求头部、空行以及请求数据四个部分组成
@@ -27,106 +57,307 @@ public class HttpUtil {
      * （空行）回车符 | 换行符
      * （请求数据）请求数据
      *
+     * src 可以是 heap ByteBuffer，也可以是 direct ByteBuffer，所有的读取都使用绝对位置，不会改变 src 的 position 和 limit。
+     *
      * @param src：src 为服务器接收到的 http 消息字节数据
      * @param startIndex：http 消息字节数据的开始索引
      * @param endIndex：http 消息字节数据的结束索引
      * @param httpHeaders
-     * @return
+     * @return the index after the end of the request, -1 if the request is not complete yet, or INVALID_REQUEST.
      */
-    public static int parseHttpRequest(byte[] src, int startIndex, int endIndex, HttpHeaders httpHeaders){
-
-        // parse HTTP request line
-        // 由于 http 请求行与请求头部都是以回车符和换行符结尾，所以 findNextLineBreak 方法返回每一行中 \n 字符的位置
-        int endOfFirstLine = findNextLineBreak(src, startIndex, endIndex);
-        if(endOfFirstLine == -1) return -1;
-
-
-        // parse HTTP headers
-        int prevEndOfHeader = endOfFirstLine + 1;
-        int endOfHeader = findNextLineBreak(src, prevEndOfHeader, endIndex);
-
-        // 由于请求头部可能有多行，因此需要循环来找到 Content-Length 字段，并且获取到 Content-Length 的长度。
-        // 同时，还要最终获取到请求头部和空行的结束位置 endOfHeader
-        while(endOfHeader != -1 && endOfHeader != prevEndOfHeader + 1){    //prevEndOfHeader + 1 = end of previous header + 2 (+2 = CR + LF)
-
-            if(matches(src, prevEndOfHeader, CONTENT_LENGTH)){
-                try {
-                    findContentLength(src, prevEndOfHeader, endIndex, httpHeaders);
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-            }
+    public static int parseHttpRequest(ByteBuffer src, int startIndex, int endIndex, HttpHeaders httpHeaders){
+        return parseHttpRequest(src, startIndex, endIndex, httpHeaders, Long.MAX_VALUE);
+    }
 
-            prevEndOfHeader = endOfHeader + 1;
-            endOfHeader = findNextLineBreak(src, prevEndOfHeader, endIndex);
-        }
+    /**
+     * Same as parseHttpRequest(src, startIndex, endIndex, httpHeaders), except for requests whose body is not buffered:
+     * if the body is chunked (Transfer-Encoding: chunked) or the request including its body is longer than
+     * maxBufferedRequestSize, the request is complete as soon as its headers are, httpHeaders.bodyStreamed is set,
+     * and the returned index is the start of the body. The body is then decoded from the following bytes with an
+     * HttpBodyDecoder.
+     */
+    public static int parseHttpRequest(ByteBuffer src, int startIndex, int endIndex, HttpHeaders httpHeaders, long maxBufferedRequestSize){
 
-        if(endOfHeader == -1){
+        // 解析请求行和请求头部，直到请求头部结尾的空行。请求分成多个 TCP 包到达时，已经解析过的字节不会再解析一次，
+        // 解析的阶段和进度保存在 httpHeaders 中
+        if(httpHeaders.parsePhase != HttpHeaders.PARSE_BODY && !parseHeaders(src, startIndex, endIndex, httpHeaders)){
             return -1;
         }
+        // 消息体的长度无法确定时，不能把消息体当作下一个请求解析（request smuggling）
+        if(httpHeaders.invalid){
+            return INVALID_REQUEST;
+        }
 
-        // 根据 endOfHeader 以及前面的 content-length 字段值，最终得到请求消息体的 bodyStartIndex 和 bodyEndIndex
+        // 根据消息体的开始位置以及前面的 content-length 字段值，得到请求消息体的 bodyStartIndex 和 bodyEndIndex。
+        // 消息体只按照长度跳过，不会逐字节查找
         // check that byte array contains full HTTP message.
-        int bodyStartIndex = endOfHeader + 1;
-        int bodyEndIndex  = bodyStartIndex + httpHeaders.contentLength;
+        int bodyStartIndex = startIndex + httpHeaders.bodyStartOffset;
+        long bodyEndIndex  = (long) bodyStartIndex + httpHeaders.contentLength;
+
+        // 分块传输或者太大的消息体不放在请求中，请求在请求头部结尾的空行处结束，消息体之后由 HttpBodyDecoder 分段解码
+        if(httpHeaders.chunked || httpHeaders.contentLength > 0 && bodyEndIndex - startIndex > maxBufferedRequestSize){
+            httpHeaders.bodyStreamed = true;
+            bodyEndIndex = bodyStartIndex;
+        }
 
         // endIndex 是发送过来的消息字节的结束 index，而 bodyEndIndex 是消息中第一个 HTTP 消息体的结束 index
         // 由于 src 中可能包含多个 HTTP 消息，因此 bodyEndIndex < endIndex
         if(bodyEndIndex <= endIndex){
             // byte array contains a full HTTP request
             httpHeaders.bodyStartIndex = bodyStartIndex;
-            httpHeaders.bodyEndIndex   = bodyEndIndex;
-            return bodyEndIndex;
+            httpHeaders.bodyEndIndex   = (int) bodyEndIndex;
+            httpHeaders.toAbsoluteIndexes(startIndex);
+            httpHeaders.parsePhase       = HttpHeaders.PARSE_REQUEST_LINE;
+            httpHeaders.headerScanOffset = 0;
+            httpHeaders.lineStartOffset  = 0;
+            httpHeaders.bodyStartOffset  = 0;
+            return (int) bodyEndIndex;
         }
 
         return -1;
     }
 
     /**
-     * src 为请求头部的某一行，并且包含 Content-Length 字段，最终返回 Content-Length 字段的值
+     * 解析请求行和请求头部的状态机：用 findNext 查找每一个 '\n'，每找到一行完整的内容就立即处理。
+     * PARSE_REQUEST_LINE 阶段的第一行是请求行，解析出请求方法；PARSE_HEADERS 阶段的每一行是一个请求头部（比如 Content-Length），
+     * 遇到空行之后进入 PARSE_BODY 阶段。数据没有完整到达时，在 httpHeaders 中记录已经查找过的位置以及当前这一行的开始位置，
+     * 下一次从还没有查找过的字节继续。
+     *
+     * @return true if the headers are complete and httpHeaders.bodyStartOffset is set.
      */
-    private static void findContentLength(byte[] src, int startIndex, int endIndex, HttpHeaders httpHeaders) throws UnsupportedEncodingException {
-        // 找到冒号 ：的位置
-        int indexOfColon = findNext(src, startIndex, endIndex, (byte) ':');
-
-        // skip spaces after colon
-        // 跳过冒号后面的空白字符
-        int index = indexOfColon + 1;
-        while(src[index] == ' '){
-            index++;
+    private static boolean parseHeaders(ByteBuffer src, int startIndex, int endIndex, HttpHeaders httpHeaders){
+        if(httpHeaders.parsePhase == HttpHeaders.PARSE_REQUEST_LINE && httpHeaders.headerScanOffset == 0){
+            // 开始解析一个新的请求
+            httpHeaders.httpMethod    = 0;
+            httpHeaders.contentLength = 0;
+            httpHeaders.contentLengthSeen = false;
+            httpHeaders.headerCount   = 0;
+            httpHeaders.hostStartIndex = 0;
+            httpHeaders.hostEndIndex   = 0;
+            httpHeaders.chunked       = false;
+            httpHeaders.transferEncoding   = false;
+            httpHeaders.finalCodingChunked = false;
+            httpHeaders.bodyStreamed  = false;
+            httpHeaders.invalid       = false;
         }
+        int lineStart = startIndex + httpHeaders.lineStartOffset;
+        int index     = startIndex + httpHeaders.headerScanOffset;
+
+        while(true){
+            int lineFeed = findNext(src, index, endIndex, (byte) '\n');
+            if(lineFeed == -1){
+                httpHeaders.lineStartOffset  = lineStart - startIndex;
+                httpHeaders.headerScanOffset = endIndex - startIndex;
+                return false;
+            }
+            index = lineFeed + 1;
+            // 只有以 \r\n 结尾的才是一行的结束
+            if(lineFeed == lineStart || src.get(lineFeed - 1) != '\r'){
+                continue;
+            }
 
-        int valueStartIndex = index;
-        int valueEndIndex = index;
-        boolean endOfValueFound = false;
-
-        while(index < endIndex && !endOfValueFound){
-            switch(src[index]){
-                case '0' : ;
-                case '1' : ;
-                case '2' : ;
-                case '3' : ;
-                case '4' : ;
-                case '5' : ;
-                case '6' : ;
-                case '7' : ;
-                case '8' : ;
-                case '9' : { index++;  break; }
-
-                default: {
-                    endOfValueFound = true;
-                    valueEndIndex = index;
+            // 一行的内容是 [lineStart, lineFeed - 1)，不包含结尾的 \r\n
+            if(httpHeaders.parsePhase == HttpHeaders.PARSE_REQUEST_LINE){
+                parseRequestLine(src, startIndex, lineStart, lineFeed - 1, httpHeaders);
+                httpHeaders.parsePhase = HttpHeaders.PARSE_HEADERS;
+            } else if(lineFeed == lineStart + 1){
+                // 空行 \r\n，请求头部结束
+                httpHeaders.parsePhase      = HttpHeaders.PARSE_BODY;
+                httpHeaders.bodyStartOffset = index - startIndex;
+                // 最后一个 transfer coding 不是 chunked 时，消息体一直到连接关闭才结束，不能按照 Content-Length 划分（RFC 7230 3.3.3）
+                // 同时出现 Transfer-Encoding 和 Content-Length 时，前面的代理可能按照另外一个划分消息体，同样作为无效的请求
+                if(httpHeaders.transferEncoding && (!httpHeaders.finalCodingChunked || httpHeaders.contentLengthSeen)){
+                    httpHeaders.invalid = true;
                 }
+                if(httpHeaders.chunked){
+                    httpHeaders.contentLength = 0;
+                }
+                return true;
+            } else {
+                parseHeader(src, startIndex, lineStart, lineFeed - 1, httpHeaders);
+            }
+            lineStart = index;
+        }
+    }
+
+    /**
+     * 解析请求行 method SP request-target SP HTTP-version，把三部分的位置（相对于请求的开始位置）保存到 httpHeaders 中
+     */
+    private static void parseRequestLine(ByteBuffer src, int requestStartIndex, int lineStart, int lineEnd, HttpHeaders httpHeaders){
+        resolveHttpMethod(src, lineStart, httpHeaders);
+
+        int endOfMethod = findNext(src, lineStart, lineEnd, (byte) ' ');
+        if(endOfMethod == -1) endOfMethod = lineEnd;
+        int endOfUri = findNext(src, endOfMethod + 1, lineEnd, (byte) ' ');
+        if(endOfUri == -1) endOfUri = lineEnd;
+
+        httpHeaders.methodStartIndex  = lineStart - requestStartIndex;
+        httpHeaders.methodEndIndex    = endOfMethod - requestStartIndex;
+        httpHeaders.uriStartIndex     = Math.min(endOfMethod + 1, lineEnd) - requestStartIndex;
+        httpHeaders.uriEndIndex       = endOfUri - requestStartIndex;
+        httpHeaders.versionStartIndex = Math.min(endOfUri + 1, lineEnd) - requestStartIndex;
+        httpHeaders.versionEndIndex   = lineEnd - requestStartIndex;
+
+        // HTTP/1.1 默认保持连接，HTTP/1.0 默认在响应之后关闭连接，可以被 Connection 请求头部改变
+        httpHeaders.keepAlive = !(lineEnd - endOfUri - 1 == HTTP_1_0.length && matches(src, endOfUri + 1, HTTP_1_0));
+    }
+
+    /**
+     * 解析一行请求头部 name ":" OWS value OWS，把名字和值的位置（相对于请求的开始位置）添加到 httpHeaders 中。
+     * Content-Length 和 Host 在解析的同时处理，不需要之后再查找一次
+     */
+    private static void parseHeader(ByteBuffer src, int requestStartIndex, int lineStart, int lineEnd, HttpHeaders httpHeaders){
+        int indexOfColon = findNext(src, lineStart, lineEnd, (byte) ':');
+        if(indexOfColon == -1){
+            return;
+        }
+
+        // 跳过值前后的空白字符
+        int valueStart = indexOfColon + 1;
+        while(valueStart < lineEnd && isWhitespace(src.get(valueStart))){
+            valueStart++;
+        }
+        int valueEnd = lineEnd;
+        while(valueEnd > valueStart && isWhitespace(src.get(valueEnd - 1))){
+            valueEnd--;
+        }
+
+        if(matchesIgnoreCase(src, lineStart, indexOfColon, CONTENT_LENGTH)){
+            // 多个 Content-Length 请求头部只有值都相同时才有效（RFC 7230 3.3.2），不能用后面的值替换前面的值
+            long contentLength = parseLong(src, valueStart, valueEnd);
+            if(contentLength < 0 || httpHeaders.contentLengthSeen && contentLength != httpHeaders.contentLength){
+                httpHeaders.invalid = true;
+            } else {
+                httpHeaders.contentLength     = contentLength;
+                httpHeaders.contentLengthSeen = true;
+            }
+        } else if(matchesIgnoreCase(src, lineStart, indexOfColon, TRANSFER_ENCODING)){
+            // chunked 必须是最后一个 transfer coding，比如 "gzip, chunked"。多个 Transfer-Encoding 请求头部的值依次连接成一个列表，
+            // 之后的请求头部不会清除已经设置的 chunked
+            httpHeaders.transferEncoding   = true;
+            httpHeaders.finalCodingChunked = isLastTokenChunked(src, valueStart, valueEnd);
+            if(httpHeaders.finalCodingChunked){
+                httpHeaders.chunked = true;
             }
+        } else if(matchesIgnoreCase(src, lineStart, indexOfColon, CONNECTION)){
+            parseConnection(src, valueStart, valueEnd, httpHeaders);
+        } else if(matchesIgnoreCase(src, lineStart, indexOfColon, HOST)){
+            httpHeaders.hostStartIndex = valueStart - requestStartIndex;
+            httpHeaders.hostEndIndex   = valueEnd - requestStartIndex;
         }
 
-        httpHeaders.contentLength = Integer.parseInt(new String(src, valueStartIndex, valueEndIndex - valueStartIndex, "UTF-8"));
+        httpHeaders.addHeader(lineStart - requestStartIndex, indexOfColon - requestStartIndex,
+                valueStart - requestStartIndex, valueEnd - requestStartIndex);
+    }
+
+    /**
+     * Parses the bytes between startIndex and endIndex as a non-negative decimal number without creating a String.
+     *
+     * @return the number, or -1 if the bytes are empty, contain anything but digits, or overflow a long.
+     */
+    public static long parseLong(ByteBuffer src, int startIndex, int endIndex){
+        if(startIndex >= endIndex){
+            return -1;
+        }
+        long value = 0;
+        for(int index = startIndex; index < endIndex; index++){
+            int digit = src.get(index) - '0';
+            if(digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10){
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // Connection 的值是逗号分隔的选项列表，比如 "keep-alive, Upgrade"
+    private static void parseConnection(ByteBuffer src, int valueStart, int valueEnd, HttpHeaders httpHeaders){
+        int tokenStart = valueStart;
+        while(tokenStart < valueEnd){
+            int tokenEnd = findNext(src, tokenStart, valueEnd, (byte) ',');
+            if(tokenEnd == -1) tokenEnd = valueEnd;
+
+            int start = tokenStart;
+            int end   = tokenEnd;
+            while(start < end && isWhitespace(src.get(start))) start++;
+            while(end > start && isWhitespace(src.get(end - 1))) end--;
+
+            if(matchesIgnoreCase(src, start, end, CLOSE)){
+                httpHeaders.keepAlive = false;
+            } else if(matchesIgnoreCase(src, start, end, KEEP_ALIVE)){
+                httpHeaders.keepAlive = true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+    }
+
+    // Transfer-Encoding 的值是逗号分隔的 transfer coding 列表，只有最后一个（非空的）coding 完整地等于 chunked 时返回 true
+    private static boolean isLastTokenChunked(ByteBuffer src, int valueStart, int valueEnd){
+        boolean chunked = false;
+        int tokenStart = valueStart;
+        while(tokenStart < valueEnd){
+            int tokenEnd = findNext(src, tokenStart, valueEnd, (byte) ',');
+            if(tokenEnd == -1) tokenEnd = valueEnd;
+
+            int start = tokenStart;
+            int end   = tokenEnd;
+            while(start < end && isWhitespace(src.get(start))) start++;
+            while(end > start && isWhitespace(src.get(end - 1))) end--;
+
+            if(start < end){
+                chunked = matchesIgnoreCase(src, start, end, CHUNKED);
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        return chunked;
+    }
+
+    private static boolean isWhitespace(byte b){
+        return b == ' ' || b == '\t';
+    }
+
+    // 不区分大小写地比较 src 中 [startIndex, endIndex) 的字节和小写的 lowerCaseValue
+    private static boolean matchesIgnoreCase(ByteBuffer src, int startIndex, int endIndex, byte[] lowerCaseValue){
+        if(endIndex - startIndex != lowerCaseValue.length){
+            return false;
+        }
+        for(int i=0; i<lowerCaseValue.length; i++){
+            int b = src.get(startIndex + i);
+            if(b >= 'A' && b <= 'Z'){
+                b += 'a' - 'A';
+            }
+            if(b != lowerCaseValue[i]){
+                return false;
+            }
+        }
+        return true;
     }
 
     // 在字节数组 src 中找到字节 value 的位置
     public static int findNext(byte[] src, int startIndex, int endIndex, byte value){
-        for(int index = startIndex; index < endIndex; index++){
-            if(src[index] == value) return index;
+        return findNext(ByteBuffer.wrap(src), startIndex, endIndex, value);
+    }
+
+    /**
+     * Finds the first occurrence of value in src between startIndex (inclusive) and endIndex (exclusive). Compares
+     * 8 bytes at a time (SWAR): each long read from src is XORed with value repeated in every byte, so matching
+     * bytes become 0, and the classic "has zero byte" expression (x - 0x01..01) & ~x & 0x80..80 sets the high bit of
+     * the lowest zero byte. Bits above it may be false positives, but the lowest set bit always marks a real match.
+     */
+    public static int findNext(ByteBuffer src, int startIndex, int endIndex, byte value){
+        long pattern = ONES * (value & 0xFF);
+        int index = startIndex;
+
+        for(; index <= endIndex - 8; index += 8){
+            long word = (long) LONG_VIEW.get(src, index) ^ pattern;
+            long found = (word - ONES) & ~word & HIGHS;
+            if(found != 0){
+                // little endian：最低的字节对应 index 位置的字节
+                return index + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for(; index < endIndex; index++){
+            if(src.get(index) == value) return index;
         }
         return -1;
     }
@@ -134,17 +365,28 @@ public class HttpUtil {
     // 在字节数组 src 中，找到每一行请求头部的结尾。由于在 HTTP 请求中，请求头部是以回车符和换行符结尾的
     // 因此当 src[index] == '\n' && src[index - 1] == '\r' 时，index 就是当前请求行的尾部
     public static int findNextLineBreak(byte[] src, int startIndex, int endIndex) {
-        for(int index = startIndex; index < endIndex; index++){
-            if(src[index] == '\n'){
-                if(src[index - 1] == '\r'){
-                    return index;
-                }
-            };
+        return findNextLineBreak(ByteBuffer.wrap(src), startIndex, endIndex);
+    }
+
+    public static int findNextLineBreak(ByteBuffer src, int startIndex, int endIndex) {
+        int index = startIndex;
+        while(true){
+            index = findNext(src, index, endIndex, (byte) '\n');
+            if(index == -1){
+                return -1;
+            }
+            if(index > 0 && src.get(index - 1) == '\r'){
+                return index;
+            }
+            index++;
         }
-        return -1;
     }
 
     public static void resolveHttpMethod(byte[] src, int startIndex, HttpHeaders httpHeaders){
+        resolveHttpMethod(ByteBuffer.wrap(src), startIndex, httpHeaders);
+    }
+
+    public static void resolveHttpMethod(ByteBuffer src, int startIndex, HttpHeaders httpHeaders){
         if(matches(src, startIndex, GET)) {
             httpHeaders.httpMethod = HttpHeaders.HTTP_METHOD_GET;
             return;
@@ -168,8 +410,13 @@ public class HttpUtil {
     }
 
     public static boolean matches(byte[] src, int offset, byte[] value){
+        return matches(ByteBuffer.wrap(src), offset, value);
+    }
+
+    public static boolean matches(ByteBuffer src, int offset, byte[] value){
+        if(offset + value.length > src.capacity()) return false;
         for(int i=offset, n=0; n < value.length; i++, n++){
-            if(src[i] != value[n]) return false;
+            if(src.get(i) != value[n]) return false;
         }
         return true;
     }
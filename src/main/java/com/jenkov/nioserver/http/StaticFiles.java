@@ -0,0 +1,240 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.WriteProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the files below a root directory for GET and HEAD requests, without copying the file content into the Java
+ * heap or into a section of the MessageBuffer:
+ *
+ * - Small files are memory mapped when they are first requested, and kept mapped until the total size of the mapped
+ *   files reaches maxMappedBytes. Their responses are enqueued with WriteProxy.enqueueShared(), as with the
+ *   StaticResponseCache, and written from the page cache.
+ * - All other files are opened for each request and attached to the response with Message.attachFile(), so the
+ *   MessageWriter sends them with FileChannel.transferTo().
+ *
+ * The files are assumed to be static: a mapped file is not mapped again when it changes, and must not be truncated
+ * while it is mapped. Call invalidate() after changing the files.
+ *
+ * 请求路径中的 %XX 会被解码，查询字符串被忽略；解析之后不在根目录下的路径（比如包含 ".."）被当作不存在。目录使用其中的 index.html。
+ */
+public class StaticFiles {
+
+    private static final byte[] CONTENT_LENGTH = "HTTP/1.1 200 OK\r\nContent-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE   = "\r\nContent-Type: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADERS_END    = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static class MappedFile {
+        final Message headers;
+        final Message body;
+
+        MappedFile(Message headers, Message body) {
+            this.headers = headers;
+            this.body    = body;
+        }
+    }
+
+    private final Path rootDirectory;
+    private final int  maxMappedFileSize;
+    private final long maxMappedBytes;
+
+    // 已经映射的文件，以相对于根目录的路径为键
+    private final ConcurrentHashMap<Path, MappedFile> mappedFiles = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+
+    public StaticFiles(Path rootDirectory) {
+        this(rootDirectory, 64 * 1024, 64L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxMappedFileSize the size of the largest file that is memory mapped. 0 disables memory mapping.
+     * @param maxMappedBytes    the total size of all memory mapped files.
+     */
+    public StaticFiles(Path rootDirectory, int maxMappedFileSize, long maxMappedBytes) {
+        this.rootDirectory     = rootDirectory.toAbsolutePath().normalize();
+        this.maxMappedFileSize = maxMappedFileSize;
+        this.maxMappedBytes    = maxMappedBytes;
+    }
+
+    /**
+     * Enqueues the response for the file requested by the given GET or HEAD request, if there is such a file.
+     *
+     * @param src         the buffer holding the request, i.e. request.sharedBuffer.
+     * @param httpHeaders the parsed request, i.e. request.metaData.
+     * @return false if the request is not a GET or HEAD request, or if the requested file does not exist - the caller
+     * then sends a response of its own.
+     */
+    public boolean respond(ByteBuffer src, HttpHeaders httpHeaders, long socketId, WriteProxy writeProxy) throws IOException {
+        boolean head = httpHeaders.httpMethod == HttpHeaders.HTTP_METHOD_HEAD;
+        if(httpHeaders.httpMethod != HttpHeaders.HTTP_METHOD_GET && !head){
+            return false;
+        }
+        Path path = resolve(src, httpHeaders.uriStartIndex, httpHeaders.uriEndIndex);
+        if(path == null){
+            return false;
+        }
+
+        MappedFile mappedFile = this.mappedFiles.get(path);
+        if(mappedFile == null){
+            Path file = this.rootDirectory.resolve(path);
+            if(Files.isDirectory(file)){
+                file = file.resolve("index.html");
+            }
+            if(!Files.isRegularFile(file)){
+                return false;
+            }
+            mappedFile = map(path, file);
+            if(mappedFile == null){
+                return respondWithFile(file, head, socketId, writeProxy);
+            }
+        }
+
+        // 同一个 socket 的响应由同一个线程依次入队，响应头和文件内容之间不会插入其它响应
+        writeProxy.enqueueShared(socketId, mappedFile.headers);
+        if(!head){
+            writeProxy.enqueueShared(socketId, mappedFile.body);
+        }
+        return true;
+    }
+
+    /**
+     * Unmaps all files, e.g. after they were changed. Mapped files still being written to sockets stay mapped until
+     * the responses are written.
+     */
+    public void invalidate() {
+        this.mappedFiles.clear();
+        this.mappedBytes.set(0);
+    }
+
+    public int getMappedFiles() {
+        return this.mappedFiles.size();
+    }
+
+    public long getMappedBytes() {
+        return this.mappedBytes.get();
+    }
+
+    private boolean respondWithFile(Path file, boolean head, long socketId, WriteProxy writeProxy) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = fileChannel.size();
+
+        // 响应头很小，每个响应单独创建；文件部分由 MessageWriter 通过 transferTo 写入，写完之后关闭 fileChannel
+        Message response = Message.wrap(ByteBuffer.wrap(headers(file, size)));
+        if(head){
+            fileChannel.close();
+        } else {
+            response.attachFile(fileChannel, 0, size, true);
+        }
+        response.socketId = socketId;
+        if(!writeProxy.enqueue(response)){
+            response.release();
+        }
+        return true;
+    }
+
+    // 文件足够小，并且映射之后不超过 maxMappedBytes 时映射这个文件，否则返回 null
+    private MappedFile map(Path path, Path file) throws IOException {
+        try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = fileChannel.size();
+            if(size > this.maxMappedFileSize || this.mappedBytes.addAndGet(size) > this.maxMappedBytes){
+                if(size <= this.maxMappedFileSize){
+                    this.mappedBytes.addAndGet(-size);
+                }
+                return null;
+            }
+            // 映射在 fileChannel 关闭之后仍然有效
+            MappedByteBuffer body = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            MappedFile mappedFile = new MappedFile(StaticResponseCache.encode(headers(file, size), false), Message.wrap(body));
+
+            MappedFile existing = this.mappedFiles.putIfAbsent(path, mappedFile);
+            if(existing != null){
+                // 另一个线程同时映射了这个文件
+                this.mappedBytes.addAndGet(-size);
+                return existing;
+            }
+            return mappedFile;
+        }
+    }
+
+    // 把请求 URI 的路径部分解析成相对于根目录的路径，不合法或者不在根目录下时返回 null
+    private Path resolve(ByteBuffer src, int startIndex, int endIndex) {
+        int pathEnd = HttpUtil.findNext(src, startIndex, endIndex, (byte) '?');
+        if(pathEnd == -1){
+            pathEnd = endIndex;
+        }
+        if(pathEnd == startIndex || src.get(startIndex) != '/'){
+            return null;
+        }
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(pathEnd - startIndex);
+        for(int index = startIndex + 1; index < pathEnd; index++){
+            int b = src.get(index);
+            if(b == '%'){
+                int high = index + 2 < pathEnd ? Character.digit(src.get(index + 1), 16) : -1;
+                int low  = high >= 0 ? Character.digit(src.get(index + 2), 16) : -1;
+                if(low < 0){
+                    return null;
+                }
+                b = (high << 4) | low;
+                index += 2;
+            }
+            // '\0' 和 '\\' 在不同的文件系统上有特殊含义
+            if(b == 0 || b == '\\'){
+                return null;
+            }
+            decoded.write(b);
+        }
+
+        try{
+            Path path = this.rootDirectory.resolve(new String(decoded.toByteArray(), StandardCharsets.UTF_8)).normalize();
+            return path.startsWith(this.rootDirectory) ? this.rootDirectory.relativize(path) : null;
+        } catch(RuntimeException e){
+            // InvalidPathException
+            return null;
+        }
+    }
+
+    private static byte[] headers(Path file, long size) {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream(128);
+        headers.write(CONTENT_LENGTH, 0, CONTENT_LENGTH.length);
+        byte[] contentLength = Long.toString(size).getBytes(StandardCharsets.US_ASCII);
+        headers.write(contentLength, 0, contentLength.length);
+        headers.write(CONTENT_TYPE, 0, CONTENT_TYPE.length);
+        byte[] contentType = contentType(file.getFileName().toString()).getBytes(StandardCharsets.US_ASCII);
+        headers.write(contentType, 0, contentType.length);
+        headers.write(HEADERS_END, 0, HEADERS_END.length);
+        return headers.toByteArray();
+    }
+
+    static String contentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        switch(dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase()){
+            case "html" :
+            case "htm"  : return "text/html; charset=UTF-8";
+            case "css"  : return "text/css; charset=UTF-8";
+            case "js"   : return "application/javascript; charset=UTF-8";
+            case "json" : return "application/json";
+            case "txt"  : return "text/plain; charset=UTF-8";
+            case "svg"  : return "image/svg+xml";
+            case "png"  : return "image/png";
+            case "jpg"  :
+            case "jpeg" : return "image/jpeg";
+            case "gif"  : return "image/gif";
+            case "ico"  : return "image/x-icon";
+            default     : return "application/octet-stream";
+        }
+    }
+
+}
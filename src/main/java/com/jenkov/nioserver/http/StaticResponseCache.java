@@ -0,0 +1,183 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pre-encoded, immutable responses keyed by request method and path, e.g. "GET" and "/index.html". Each response is
+ * encoded once, into a message created with Message.wrap(), and enqueued to any number of sockets with
+ * WriteProxy.enqueueShared() - no section is allocated and no byte is copied per request.
+ *
+ * Register all responses before the Server is started. find() may then be called by any number of threads at the same
+ * time; it compares the bytes of the request directly and creates no objects.
+ *
+ * 查找使用开放寻址的哈希表：哈希值由请求方法、一个空格以及路径（不包括 '?' 之后的查询字符串）的字节计算出来，和 String.hashCode 一样。
+ */
+public class StaticResponseCache {
+
+    private static class Entry {
+        final int     hash;
+        final byte[]  method;
+        final byte[]  path;
+        final Message response;
+
+        Entry(int hash, byte[] method, byte[] path, Message response) {
+            this.hash     = hash;
+            this.method   = method;
+            this.path     = path;
+            this.response = response;
+        }
+    }
+
+    private final boolean direct;
+
+    // 哈希表的大小是 2 的幂，并且至少是条目数量的两倍。注册时整体替换，find 不需要加锁
+    private volatile Entry[] table = new Entry[16];
+    private int size = 0;
+
+    public StaticResponseCache() {
+        this(false);
+    }
+
+    /**
+     * @param direct if true, the responses are stored in read-only direct ByteBuffers, which the kernel can copy from
+     *               without an extra copy into a temporary direct buffer.
+     */
+    public StaticResponseCache(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Encodes the given response bytes into an immutable message that can be enqueued to many sockets at once.
+     */
+    public static Message encode(byte[] response, boolean direct) {
+        ByteBuffer byteBuffer;
+        if(direct){
+            byteBuffer = ByteBuffer.allocateDirect(response.length);
+            byteBuffer.put(response).flip();
+            byteBuffer = byteBuffer.asReadOnlyBuffer();
+        } else {
+            byteBuffer = ByteBuffer.wrap(response.clone());
+        }
+        return Message.wrap(byteBuffer);
+    }
+
+    /**
+     * Registers the complete response (status line, headers and body) for requests with the given method and path,
+     * replacing any response registered for them before.
+     *
+     * @return the encoded response.
+     */
+    public synchronized Message register(String method, String path, byte[] response) {
+        byte[] methodBytes = method.getBytes(StandardCharsets.US_ASCII);
+        byte[] pathBytes   = path.getBytes(StandardCharsets.UTF_8);
+        Entry entry = new Entry(hash(methodBytes, pathBytes), methodBytes, pathBytes, encode(response, this.direct));
+
+        Entry[] table = this.table;
+        if((this.size + 1) * 2 > table.length){
+            table = new Entry[table.length * 2];
+            for(Entry existing : this.table){
+                if(existing != null){
+                    insert(table, existing);
+                }
+            }
+        } else {
+            table = table.clone();
+        }
+        if(insert(table, entry)){
+            this.size++;
+        }
+        this.table = table;
+        return entry.response;
+    }
+
+    /**
+     * @return the response registered for the method and path of the given request, or null if there is none. The
+     * query string of the request URI is ignored.
+     */
+    public Message find(ByteBuffer src, HttpHeaders httpHeaders) {
+        int methodStart = httpHeaders.methodStartIndex;
+        int methodEnd   = httpHeaders.methodEndIndex;
+        int pathStart   = httpHeaders.uriStartIndex;
+        int pathEnd     = HttpUtil.findNext(src, pathStart, httpHeaders.uriEndIndex, (byte) '?');
+        if(pathEnd == -1){
+            pathEnd = httpHeaders.uriEndIndex;
+        }
+
+        int hash = mix(hash(hash(hash(0, src, methodStart, methodEnd), ' '), src, pathStart, pathEnd));
+
+        Entry[] table = this.table;
+        int mask = table.length - 1;
+        for(int index = hash & mask; table[index] != null; index = (index + 1) & mask){
+            Entry entry = table[index];
+            if(entry.hash == hash && equals(src, methodStart, methodEnd, entry.method) && equals(src, pathStart, pathEnd, entry.path)){
+                return entry.response;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    // 返回 false 表示替换了已有的条目
+    private static boolean insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int index = entry.hash & mask;
+        while(table[index] != null){
+            Entry existing = table[index];
+            if(existing.hash == entry.hash && Arrays.equals(existing.method, entry.method) && Arrays.equals(existing.path, entry.path)){
+                table[index] = entry;
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = entry;
+        return true;
+    }
+
+    private static int hash(byte[] method, byte[] path) {
+        int hash = 0;
+        for(byte b : method){
+            hash = hash(hash, b);
+        }
+        hash = hash(hash, ' ');
+        for(byte b : path){
+            hash = hash(hash, b);
+        }
+        return mix(hash);
+    }
+
+    private static int hash(int hash, ByteBuffer src, int startIndex, int endIndex) {
+        for(int index = startIndex; index < endIndex; index++){
+            hash = hash(hash, src.get(index));
+        }
+        return hash;
+    }
+
+    private static int hash(int hash, int b) {
+        return 31 * hash + b;
+    }
+
+    // 和 HashMap 一样把高位混合到低位，因为只使用哈希值的低位作为下标
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(ByteBuffer src, int startIndex, int endIndex, byte[] value) {
+        if(endIndex - startIndex != value.length){
+            return false;
+        }
+        for(int i=0; i<value.length; i++){
+            if(src.get(startIndex + i) != value[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+
+    @Test
+    public void testLogAndDrain() {
+        List<String> lines = new ArrayList<>();
+        List<EventLog.Event> events = new ArrayList<>();
+        IEventSink sink = event -> {
+            lines.add(event.getLevelName() + " " + event.getTypeName() + " " + event.socketId + " " + event.subject);
+            events.add(event);
+        };
+        EventLog eventLog = new EventLog(sink, EventLog.INFO, 3, false);
+
+        //below the level of the log: discarded.
+        assertFalse(eventLog.log(EventLog.DEBUG, EventLog.SOCKET_CLOSED, 1));
+
+        //the capacity is rounded up to 4, the fifth event is dropped.
+        for(int i=1; i<=4; i++){
+            assertTrue(eventLog.log(EventLog.INFO, EventLog.SOCKET_TIMED_OUT, i, "subject " + i, null));
+        }
+        assertFalse(eventLog.log(EventLog.ERROR, EventLog.SOCKET_TIMED_OUT, 5));
+        assertEquals(1, eventLog.getDroppedEvents());
+
+        assertEquals(4, eventLog.drain());
+        assertEquals("INFO socket timed out 1 subject 1", lines.get(0));
+        assertEquals("INFO socket timed out 4 subject 4", lines.get(3));
+        //the records are reused, and their references cleared once written.
+        assertNull(events.get(0).subject);
+
+        //the ring buffer wraps around.
+        assertTrue(eventLog.log(EventLog.WARN, EventLog.SOCKET_REJECTED, 6));
+        assertEquals(1, eventLog.drain());
+        assertEquals("WARN socket rejected, inbound socket queue full 6 null", lines.get(4));
+        assertSame(events.get(0), events.get(4));
+        assertEquals(0, eventLog.drain());
+    }
+
+    @Test
+    public void testFailingSink() {
+        List<Long> written = new ArrayList<>();
+        IEventSink sink = new IEventSink() {
+            public void write(EventLog.Event event) {
+                written.add(event.socketId);
+            }
+            public void flush() {
+                throw new IllegalStateException("stream closed");
+            }
+        };
+        EventLog eventLog = new EventLog(sink, EventLog.INFO, 4, false);
+
+        //a failing flush does not stop the drain, and later events are still written.
+        assertTrue(eventLog.log(EventLog.INFO, EventLog.SOCKET_TIMED_OUT, 1));
+        assertEquals(1, eventLog.drain());
+        assertTrue(eventLog.log(EventLog.INFO, EventLog.SOCKET_TIMED_OUT, 2));
+        assertEquals(1, eventLog.drain());
+        assertEquals(2, written.size());
+    }
+
+}
@@ -6,7 +6,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by jjenkov on 18-10-2015.
@@ -74,4 +76,137 @@ public class MessageBufferTest {
 
 
     }
+
+
+    @Test
+    public void testReleaseMessage() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        //many more messages than there are small sections - only possible if released sections are reused.
+        for(int i=0; i<10 * 1024; i++){
+            Message message = messageBuffer.getMessage();
+            assertNotNull(message);
+            assertTrue(message.release());
+        }
+
+        assertEquals(10 * 1024, messageBuffer.getAllocatedCount());
+        assertEquals(10 * 1024, messageBuffer.getFreedCount());
+        assertEquals(0, messageBuffer.getMessagesInUse());
+        assertEquals(1024, messageBuffer.getFreeSmallSections());
+
+        Message message = messageBuffer.getMessage();
+        messageBuffer.expandMessage(message);
+        assertEquals(1024, messageBuffer.getFreeSmallSections());
+        assertEquals(127 , messageBuffer.getFreeMediumSections());
+
+        message.release();
+        assertEquals(128 , messageBuffer.getFreeMediumSections());
+        assertEquals(0, messageBuffer.getMessagesInUse());
+    }
+
+
+    @Test
+    public void testGrowAndReleaseIdleSlabs() {
+        MessageBufferConfig config = new MessageBufferConfig()
+                .addSizeClass(4 * 1024, 4, 1, 3)
+                .addSizeClass(16 * 1024, 2, 0, 1)
+                .setSlabIdleTimeout(1000);
+        MessageBuffer messageBuffer = new MessageBuffer(config);
+
+        assertEquals(1, messageBuffer.getAllocatedSlabs(0));
+        assertEquals(0, messageBuffer.getAllocatedSlabs(1));
+
+        Message[] messages = new Message[12];
+        for(int i=0; i<messages.length; i++){
+            messages[i] = messageBuffer.getMessage();
+            assertNotNull(messages[i]);
+        }
+        assertEquals(3, messageBuffer.getAllocatedSlabs(0));
+        assertNull(messageBuffer.getMessage());
+
+        //medium slab is allocated on the first expansion
+        assertTrue(messageBuffer.expandMessage(messages[11]));
+        assertEquals(1, messageBuffer.getAllocatedSlabs(1));
+        assertEquals(16 * 1024, messages[11].capacity);
+        assertFalse(messageBuffer.expandMessage(messages[11]));
+
+        for(int i=0; i<messages.length; i++){
+            messages[i].release();
+        }
+
+        long millis = 1000L * 1000L;
+        assertEquals(0, messageBuffer.releaseIdleSlabs(millis));
+        assertEquals(0, messageBuffer.releaseIdleSlabs(10 * millis));
+        assertEquals(3, messageBuffer.releaseIdleSlabs(1010 * millis));
+
+        //initial slabs are kept
+        assertEquals(1, messageBuffer.getAllocatedSlabs(0));
+        assertEquals(0, messageBuffer.getAllocatedSlabs(1));
+        assertEquals(4, messageBuffer.getFreeSections(0));
+        assertEquals(0, messageBuffer.getMessagesInUse());
+
+        for(int i=0; i<messages.length; i++){
+            assertNotNull(messageBuffer.getMessage());
+        }
+    }
+
+    @Test
+    public void testGetMessageWithCapacity() {
+        MessageBufferConfig config = new MessageBufferConfig()
+                .addSizeClass(4 * 1024, 4, 1, 1)
+                .addSizeClass(16 * 1024, 1, 1, 1);
+        MessageBuffer messageBuffer = new MessageBuffer(config);
+
+        assertEquals(0, messageBuffer.getSizeClassIndex(100));
+        assertEquals(1, messageBuffer.getSizeClassIndex(5000));
+        assertEquals(1, messageBuffer.getSizeClassIndex(1024 * 1024));
+
+        Message large = messageBuffer.getMessage(5000);
+        assertEquals(16 * 1024, large.capacity);
+        assertEquals(0, messageBuffer.getAvailablePercent());
+
+        //the large size class is exhausted, so a smaller section is handed out.
+        Message small = messageBuffer.getMessage(5000);
+        assertEquals(4 * 1024, small.capacity);
+        assertEquals(3, messageBuffer.getAvailableSections(0));
+
+        large.release();
+        small.release();
+        assertEquals(100, messageBuffer.getAvailablePercent());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        //each size class may grow to 4 slabs, but all slabs together to 24KB only.
+        MessageBufferConfig config = new MessageBufferConfig()
+                .addSizeClass(4 * 1024, 1, 1, 4)
+                .addSizeClass(8 * 1024, 1, 1, 4)
+                .setMaxBytes(24 * 1024);
+        MessageBuffer messageBuffer = new MessageBuffer(config);
+        assertEquals(12 * 1024, messageBuffer.getSlabBytes());
+
+        Message large = messageBuffer.getMessage(8 * 1024);
+        Message small = messageBuffer.getMessage();
+        Message small2 = messageBuffer.getMessage();
+        assertEquals(16 * 1024, messageBuffer.getSlabBytes());
+        //no 8KB slab fits into the 8KB left, once another 4KB slab is allocated.
+        assertEquals(1, messageBuffer.getAvailableSections(1));
+        Message small3 = messageBuffer.getMessage();
+        assertEquals(0, messageBuffer.getAvailableSections(1));
+        assertEquals(0, messageBuffer.getAvailablePercent());
+
+        //the last 4KB fit one more small slab only.
+        Message small4 = messageBuffer.getMessage(8 * 1024);
+        assertEquals(4 * 1024, small4.capacity);
+        assertEquals(24 * 1024, messageBuffer.getSlabBytes());
+        assertNull(messageBuffer.getMessage());
+
+        large.release();
+        small.release();
+        small2.release();
+        small3.release();
+        small4.release();
+        assertEquals(24 * 1024, messageBuffer.getSlabBytes());
+        assertEquals(0, messageBuffer.getSlabAllocationFailures());
+    }
 }
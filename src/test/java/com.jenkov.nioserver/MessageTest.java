@@ -6,7 +6,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
 
@@ -28,19 +30,19 @@ public class MessageTest {
         int written = message.writeToMessage(byteBuffer);
         assertEquals(4096, written);
         assertEquals(4096, message.length);
-        assertSame(messageBuffer.smallMessageBuffer, message.sharedArray);
+        assertSame(messageBuffer.getSlab(0, 0), message.sharedArray);
 
         fill(byteBuffer, 124 * 1024);
         written = message.writeToMessage(byteBuffer);
         assertEquals(124 * 1024, written);
         assertEquals(128 * 1024, message.length);
-        assertSame(messageBuffer.mediumMessageBuffer, message.sharedArray);
+        assertSame(messageBuffer.getSlab(1, 0), message.sharedArray);
 
         fill(byteBuffer, (1024-128) * 1024);
         written = message.writeToMessage(byteBuffer);
         assertEquals(896  * 1024, written);
         assertEquals(1024 * 1024, message.length);
-        assertSame(messageBuffer.largeMessageBuffer, message.sharedArray);
+        assertSame(messageBuffer.getSlab(2, 0), message.sharedArray);
 
         fill(byteBuffer, 1);
         written = message.writeToMessage(byteBuffer);
@@ -48,6 +50,63 @@ public class MessageTest {
 
     }
 
+    @Test
+    public void testDirectMessageBuffer() {
+        MessageBuffer messageBuffer = new MessageBuffer(MessageBufferConfig.defaultConfig().setDirect(true));
+
+        Message message = messageBuffer.getMessage();
+        assertNull(message.sharedArray);
+        assertTrue(message.sharedBuffer.isDirect());
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
+        fill(byteBuffer, 4096);
+        assertEquals(4096, message.writeToMessage(byteBuffer));
+
+        //expands from the 4KB to the 128KB section
+        assertEquals(3, message.writeToMessage(new byte[]{1, 2, 3}));
+        assertEquals(4099, message.length);
+        assertEquals(128 * 1024, message.capacity);
+
+        assertEquals((byte) 127, message.getByte(127));
+        assertEquals((byte) 3, message.getByte(4098));
+
+        byte[] dest = new byte[10];
+        assertEquals(5, message.readFromMessage(4094, dest, 0, 10));
+        assertEquals((byte) (4094 % 128), dest[0]);
+        assertEquals((byte) 1, dest[2]);
+        assertEquals((byte) 3, dest[4]);
+
+        ByteBuffer out = ByteBuffer.allocate(8192);
+        assertEquals(4099, message.writeToByteBuffer(out));
+        assertEquals(4099, out.position());
+    }
+
+    @Test
+    public void testRetainRelease() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        Message message = messageBuffer.getMessage();
+        assertEquals(1, message.referenceCount());
+
+        message.retain();
+        assertEquals(2, message.referenceCount());
+
+        assertFalse(message.release());
+        assertEquals(1, messageBuffer.getMessagesInUse());
+
+        assertTrue(message.release());
+        assertEquals(0, messageBuffer.getMessagesInUse());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseTwice() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        Message message = messageBuffer.getMessage();
+        message.release();
+        message.release();
+    }
+
     private void fill(ByteBuffer byteBuffer, int length){
         byteBuffer.clear();
         for(int i=0; i<length; i++){
@@ -55,4 +114,68 @@ public class MessageTest {
         }
         byteBuffer.flip();
     }
+    @Test
+    public void testSliceSharesSection() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        Message message = messageBuffer.getMessage();
+        message.writeToMessage(new byte[]{'a', 'b', 'c', 'd', 'e'});
+
+        Message slice = message.slice(1, 3);
+        assertEquals(3, slice.length);
+        assertEquals('b', slice.getByte(0));
+        assertEquals('d', slice.getByte(2));
+        assertSame(message.sharedBuffer, slice.sharedBuffer);
+        assertEquals(2, message.referenceCount());
+
+        //a slice cannot grow into the bytes following it.
+        assertEquals(-1, slice.writeToMessage(new byte[]{'x'}));
+
+        assertFalse(message.release());
+        assertEquals(1, messageBuffer.getMessagesInUse());
+        assertEquals('c', slice.getByte(1));
+
+        assertTrue(slice.release());
+        assertEquals(0, messageBuffer.getMessagesInUse());
+    }
+
+    @Test
+    public void testCompact() {
+        MessageBuffer messageBuffer = new MessageBuffer(MessageBufferConfig.defaultConfig().setDirect(true));
+
+        Message message = messageBuffer.getMessage();
+        message.writeToMessage(new byte[]{'a', 'b', 'c', 'd', 'e'});
+        message.compact(3);
+
+        assertEquals(2, message.length);
+        assertEquals('d', message.getByte(0));
+        assertEquals('e', message.getByte(1));
+    }
+
+    @Test
+    public void testWrapSharedByManySockets() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{'a', 'b', 'c'}).flip();
+        Message response = Message.wrap(direct.asReadOnlyBuffer());
+        assertEquals(3, response.length);
+
+        //an immutable response cannot be written to.
+        assertEquals(-1, response.writeToMessage(new byte[]{'x'}));
+
+        //each socket gets its own slice and view, without references to the shared response.
+        Message first  = response.slice(0, response.length);
+        Message second = response.slice(0, response.length);
+        first.socketId  = 1;
+        second.socketId = 2;
+        assertNotSame(first.sectionView(), second.sectionView());
+        first.sectionView().position(3);
+        assertEquals(0, second.sectionView().position());
+        assertEquals('c', second.getByte(2));
+        assertEquals(1, response.referenceCount());
+
+        assertTrue(first.release());
+        assertTrue(second.release());
+        assertEquals('a', response.getByte(0));
+    }
+
 }
@@ -0,0 +1,114 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageWriterTest {
+
+    @Test
+    public void testGatheringWrite() throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            MessageWriter messageWriter = new MessageWriter();
+            Socket socket = new Socket(server);
+
+            messageWriter.enqueue(message(messageBuffer, "HTTP/1.1 200 OK\r\n\r\n"));
+            messageWriter.enqueue(message(messageBuffer, "abc"));
+            messageWriter.enqueue(message(messageBuffer, "defg"));
+
+            //all three small messages go out in one gathering write.
+            messageWriter.write(socket);
+            assertTrue(messageWriter.isEmpty());
+            assertEquals(0, messageBuffer.getMessagesInUse());
+
+            ByteBuffer received = ByteBuffer.allocate(1024);
+            while(received.position() < 26){
+                client.read(received);
+            }
+            assertEquals("HTTP/1.1 200 OK\r\n\r\nabcdefg", new String(received.array(), 0, received.position(), "UTF-8"));
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testFileWrite() throws IOException {
+        //larger than the socket buffers, so the file is transferred over several write() calls.
+        byte[] content = new byte[4 * 1024 * 1024 + 17];
+        for(int i=0; i<content.length; i++){
+            content[i] = (byte) (i * 31);
+        }
+        Path file = Files.createTempFile("MessageWriterTest", ".bin");
+        Files.write(file, content);
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        client.configureBlocking(false);
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            MessageWriter messageWriter = new MessageWriter();
+            Socket socket = new Socket(server);
+
+            FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            messageWriter.enqueue(message(messageBuffer, "head").attachFile(fileChannel, 1, content.length - 1, true));
+            messageWriter.enqueue(message(messageBuffer, "tail"));
+
+            ByteBuffer received = ByteBuffer.allocate(content.length + 7);
+            messageWriter.write(socket);
+            assertFalse(messageWriter.isEmpty());
+            while(!messageWriter.isEmpty() || received.hasRemaining()){
+                client.read(received);
+                messageWriter.write(socket);
+            }
+            assertEquals(0, messageBuffer.getMessagesInUse());
+            assertFalse(fileChannel.isOpen());
+
+            byte[] bytes = received.array();
+            assertEquals("head", new String(bytes, 0, 4, "UTF-8"));
+            for(int i=1; i<content.length; i++){
+                if(bytes[i + 3] != content[i]){
+                    assertEquals("byte " + i, content[i], bytes[i + 3]);
+                }
+            }
+            assertEquals("tail", new String(bytes, content.length + 3, 4, "UTF-8"));
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+            Files.delete(file);
+        }
+    }
+
+    private Message message(MessageBuffer messageBuffer, String content) throws IOException {
+        Message message = messageBuffer.getMessage();
+        message.writeToMessage(content.getBytes("UTF-8"));
+        return message;
+    }
+}
@@ -0,0 +1,37 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReceiveSizePredictorTest {
+
+    @Test
+    public void testRecord() {
+        ReceiveSizePredictor predictor = new ReceiveSizePredictor(4096, 1024 * 1024);
+        assertEquals(4096, predictor.getPredictedSize());
+
+        //grows right away.
+        predictor.record(4096);
+        assertEquals(8192, predictor.getPredictedSize());
+        predictor.record(300 * 1024);
+        assertEquals(300 * 1024, predictor.getPredictedSize());
+        predictor.record(4 * 1024 * 1024);
+        assertEquals(1024 * 1024, predictor.getPredictedSize());
+
+        //shrinks only after two small reads in a row.
+        predictor.record(100);
+        assertEquals(1024 * 1024, predictor.getPredictedSize());
+        predictor.record(600 * 1024);
+        predictor.record(100);
+        assertEquals(1024 * 1024, predictor.getPredictedSize());
+        predictor.record(100);
+        assertEquals(512 * 1024, predictor.getPredictedSize());
+
+        for(int i=0; i<100; i++){
+            predictor.record(100);
+        }
+        assertEquals(4096, predictor.getPredictedSize());
+    }
+
+}
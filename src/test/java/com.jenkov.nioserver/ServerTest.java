@@ -0,0 +1,45 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ServerTest {
+
+    @Test
+    public void testStartFailsOnPortInUse() throws Exception {
+        ServerSocketChannel portInUse = ServerSocketChannel.open();
+        portInUse.bind(new InetSocketAddress(0));
+        int tcpPort = ((InetSocketAddress) portInUse.getLocalAddress()).getPort();
+        ObjectName mbeanName = new ObjectName("com.jenkov.nioserver:type=Server,port=" + tcpPort);
+
+        ServerConfig config = new ServerConfig();
+        config.jmxEnabled = true;
+        Server server = new Server(tcpPort, new HttpMessageReaderFactory(), (request, writeProxy) -> {}, config);
+        try {
+            //the second attempt fails on the bind again, not on the MBean left over from the first one.
+            for(int attempt=0; attempt<2; attempt++){
+                try {
+                    server.start();
+                    fail("the port is in use");
+                } catch(IOException e){
+                    assertNull(e.getCause());
+                }
+                assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(mbeanName));
+                assertNull(server.getSocketProcessors());
+            }
+        } finally {
+            portInUse.close();
+        }
+    }
+
+}
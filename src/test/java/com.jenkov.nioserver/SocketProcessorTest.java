@@ -0,0 +1,275 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SocketProcessorTest {
+
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testConnectionClose() throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        SocketProcessor socketProcessor = createSocketProcessor(new ServerConfig(), requests);
+
+        //the request after the Connection: close request is ignored.
+        String received = exchange(socketProcessor,
+                "GET / HTTP/1.1\r\nConnection: close\r\n\r\nGET /ignored HTTP/1.1\r\n\r\n");
+        assertEquals(new String(RESPONSE, StandardCharsets.UTF_8), received);
+        assertEquals(1, requests.get());
+        assertEquals(0, socketProcessor.getSocketCount());
+
+        ProcessorMetrics metrics = socketProcessor.getMetrics();
+        assertEquals(1, metrics.get(ProcessorMetrics.SOCKETS_OPENED));
+        assertEquals(1, metrics.get(ProcessorMetrics.SOCKETS_CLOSED));
+        assertEquals(1, metrics.get(ProcessorMetrics.MESSAGES_READ));
+        assertEquals(1, metrics.get(ProcessorMetrics.MESSAGES_WRITTEN));
+        assertEquals(0, metrics.getWriteQueueDepth());
+        assertEquals(RESPONSE.length, metrics.get(ProcessorMetrics.BYTES_WRITTEN));
+        assertTrue(metrics.get(ProcessorMetrics.BYTES_READ) >= 38);
+        assertTrue(metrics.get(ProcessorMetrics.CYCLES) >= metrics.get(ProcessorMetrics.SELECTS));
+    }
+
+    @Test
+    public void testIdleTimeout() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.idleTimeoutMillis = 200;
+        AtomicInteger requests = new AtomicInteger();
+        SocketProcessor socketProcessor = createSocketProcessor(config, requests);
+
+        //a keep-alive request is answered, then the idle connection is closed by the server.
+        long start = System.nanoTime();
+        String received = exchange(socketProcessor, "GET / HTTP/1.1\r\n\r\n");
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(new String(RESPONSE, StandardCharsets.UTF_8), received);
+        assertEquals(1, requests.get());
+        assertEquals(0, socketProcessor.getSocketCount());
+        assertTrue("closed after " + elapsedMillis + " ms", elapsedMillis >= 200);
+    }
+
+    @Test
+    public void testAccept() throws IOException {
+        SocketProcessor socketProcessor = createSocketProcessor(new ServerConfig(), new AtomicInteger());
+        ServerSocketChannel serverSocketChannel = SocketAccepter.listen(0, 16, false);
+        socketProcessor.addSocketAccepter(new SocketAccepter(serverSocketChannel, socketProcessor));
+
+        SocketChannel[] clients = new SocketChannel[3];
+        try {
+            //all pending connections are accepted in one cycle, without going through the inbound socket queue.
+            for(int i=0; i<clients.length; i++){
+                clients[i] = SocketChannel.open(serverSocketChannel.getLocalAddress());
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while(socketProcessor.getSocketCount() < clients.length && System.currentTimeMillis() < deadline){
+                socketProcessor.executeCycle();
+            }
+            assertEquals(clients.length, socketProcessor.getSocketCount());
+            assertEquals(clients.length, socketProcessor.getMetrics().get(ProcessorMetrics.SOCKETS_OPENED));
+        } finally {
+            for(SocketChannel client : clients){
+                if(client != null){
+                    client.close();
+                }
+            }
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testBufferPressure() throws IOException {
+        //both sections are held, so the socket cannot get a receive buffer.
+        MessageBuffer readMessageBuffer = new MessageBuffer(new MessageBufferConfig().addSizeClass(4 * MessageBuffer.KB, 2, 1, 1));
+        Message held = readMessageBuffer.getMessage();
+        Message alsoHeld = readMessageBuffer.getMessage();
+        AtomicInteger requests = new AtomicInteger();
+        SocketProcessor socketProcessor = new SocketProcessor(new ArrayBlockingQueue<>(16), readMessageBuffer, new MessageBuffer(),
+                new HttpMessageReaderFactory(), (request, writeProxy) -> {
+                    requests.incrementAndGet();
+                    writeProxy.enqueue(request.socketId, RESPONSE);
+                }, new ServerConfig());
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        try {
+            socketProcessor.addSocket(new Socket(serverSocketChannel.accept()));
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8)));
+            client.configureBlocking(false);
+
+            //no section is available, so the request is left in the receive buffer of the kernel.
+            ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+            long deadline = System.currentTimeMillis() + 200;
+            while(System.currentTimeMillis() < deadline){
+                socketProcessor.executeCycle();
+                assertEquals(0, client.read(byteBuffer));
+            }
+            assertEquals(0, requests.get());
+            assertEquals(1, socketProcessor.getMetrics().get(ProcessorMetrics.READS_PAUSED));
+
+            //once a section is released, reading resumes and the request is answered.
+            held.release();
+            deadline = System.currentTimeMillis() + 10000;
+            while(client.read(byteBuffer) != -1 && System.currentTimeMillis() < deadline){
+                socketProcessor.executeCycle();
+            }
+            byteBuffer.flip();
+            assertEquals(new String(RESPONSE, StandardCharsets.UTF_8), StandardCharsets.UTF_8.decode(byteBuffer).toString());
+            assertEquals(1, requests.get());
+
+            //the receive buffer was given back after the request was parsed.
+            alsoHeld.release();
+            assertEquals(0, readMessageBuffer.getMessagesInUse());
+        } finally {
+            client.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testStalledReadTimesOut() throws IOException {
+        //the only large section is held, so a receive buffer which fills up cannot expand.
+        MessageBuffer readMessageBuffer = new MessageBuffer(new MessageBufferConfig()
+                .addSizeClass(4 * MessageBuffer.KB, 4, 1, 1)
+                .addSizeClass(16 * MessageBuffer.KB, 1, 1, 1));
+        Message held = readMessageBuffer.getMessage(16 * MessageBuffer.KB);
+        ServerConfig config = new ServerConfig();
+        config.readTimeoutMillis = 300;
+        //no buffer pressure, so reading is not paused because of it.
+        config.bufferLowWatermarkPercent  = 0;
+        config.bufferHighWatermarkPercent = 0;
+        SocketProcessor socketProcessor = new SocketProcessor(new ArrayBlockingQueue<>(16), readMessageBuffer, new MessageBuffer(),
+                new HttpMessageReaderFactory(), (request, writeProxy) -> {}, config);
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        try {
+            socketProcessor.addSocket(new Socket(serverSocketChannel.accept()));
+            //6KB of unterminated headers: 4KB fill the receive buffer, the rest stays readable.
+            StringBuilder headers = new StringBuilder("GET / HTTP/1.1\r\n");
+            while(headers.length() < 6 * 1024){
+                headers.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+            }
+            client.write(ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.UTF_8)));
+
+            long start = System.nanoTime();
+            long deadline = System.currentTimeMillis() + 10000;
+            do {
+                socketProcessor.executeCycle();
+            } while((socketProcessor.getSocketCount() > 0 || socketProcessor.getMetrics().get(ProcessorMetrics.SOCKETS_OPENED) == 0)
+                    && System.currentTimeMillis() < deadline);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(0, socketProcessor.getSocketCount());
+            assertEquals(1, socketProcessor.getMetrics().get(ProcessorMetrics.SOCKETS_TIMED_OUT));
+            assertTrue("closed after " + elapsedMillis + " ms", elapsedMillis >= 300 && elapsedMillis < 5000);
+            //reading was paused while the socket made no progress, instead of spinning on OP_READ.
+            long selects = socketProcessor.getSelectCount();
+            assertTrue(selects + " selects", selects < 1000);
+
+            held.release();
+            assertEquals(0, readMessageBuffer.getMessagesInUse());
+        } finally {
+            client.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testConnectionReset() throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        SocketProcessor socketProcessor = createSocketProcessor(new ServerConfig(), requests);
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel reset  = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        try {
+            socketProcessor.addSocket(new Socket(serverSocketChannel.accept()));
+            socketProcessor.addSocket(new Socket(serverSocketChannel.accept()));
+            reset.write(ByteBuffer.wrap("GET / HTTP/1.1\r\nHost: a".getBytes(StandardCharsets.UTF_8)));
+            socketProcessor.executeCycle();
+            socketProcessor.executeCycle();
+            assertEquals(2, socketProcessor.getSocketCount());
+
+            //closing with SO_LINGER 0 sends a RST, so the next read on the server side fails with ECONNRESET.
+            reset.setOption(StandardSocketOptions.SO_LINGER, 0);
+            reset.close();
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8)));
+            client.configureBlocking(false);
+
+            ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+            long deadline = System.currentTimeMillis() + 10000;
+            while((byteBuffer.position() < RESPONSE.length || socketProcessor.getSocketCount() > 1) && System.currentTimeMillis() < deadline){
+                socketProcessor.executeCycle();
+                client.read(byteBuffer);
+            }
+
+            //the reset connection is closed and the other connection is still served.
+            assertEquals(RESPONSE.length, byteBuffer.position());
+            assertEquals(1, requests.get());
+            assertEquals(1, socketProcessor.getSocketCount());
+            assertEquals(1, socketProcessor.getMetrics().get(ProcessorMetrics.SOCKETS_CLOSED));
+        } finally {
+            reset.close();
+            client.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    private static SocketProcessor createSocketProcessor(ServerConfig config, AtomicInteger requests) throws IOException {
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            requests.incrementAndGet();
+            Message response = writeProxy.getMessage();
+            response.socketId = request.socketId;
+            response.writeToMessage(RESPONSE);
+            writeProxy.enqueue(response);
+        };
+        return new SocketProcessor(new ArrayBlockingQueue<>(16), new MessageBuffer(), new MessageBuffer(),
+                new HttpMessageReaderFactory(), messageProcessor, config);
+    }
+
+    // sends the request and returns everything received until the server closes the connection.
+    private static String exchange(SocketProcessor socketProcessor, String request) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        try {
+            socketProcessor.addSocket(new Socket(serverSocketChannel.accept()));
+            client.write(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+            client.configureBlocking(false);
+
+            StringBuilder received = new StringBuilder();
+            ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+            long deadline = System.currentTimeMillis() + 10000;
+            while(System.currentTimeMillis() < deadline){
+                socketProcessor.executeCycle();
+                int bytesRead = client.read(byteBuffer);
+                if(bytesRead == -1){
+                    break;
+                }
+                byteBuffer.flip();
+                received.append(StandardCharsets.UTF_8.decode(byteBuffer));
+                byteBuffer.clear();
+            }
+            return received.toString();
+        } finally {
+            client.close();
+            serverSocketChannel.close();
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+
+public class SocketRequestQueueTest {
+
+    @Test
+    public void testRequestsProcessedInOrder() throws InterruptedException {
+        MessageBuffer readBuffer  = new MessageBuffer();
+        MessageBuffer writeBuffer = new MessageBuffer();
+        WriteProxy writeProxy = new WriteProxy(writeBuffer, new LinkedBlockingQueue<>());
+
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        IMessageProcessor messageProcessor = (request, proxy) -> {
+            //yield to give a second worker thread the chance to process the next request out of order.
+            Thread.yield();
+            processed.add(request.getByte(0) & 0xFF);
+        };
+
+        ExecutorService executor = MessageProcessorExecutors.fixedThreadPool(4);
+        SocketRequestQueue requestQueue = new SocketRequestQueue(executor, messageProcessor, writeProxy);
+
+        for(int i=0; i<200; i++){
+            Message request = readBuffer.getMessage();
+            request.writeToMessage(new byte[]{(byte) i});
+            requestQueue.submit(request);
+            request.release();
+        }
+
+        //the queue re-submits itself to the executor after every 16 requests, so wait for the requests instead of
+        //shutting the executor down.
+        long deadline = System.currentTimeMillis() + 10000;
+        while(readBuffer.getMessagesInUse() > 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        executor.shutdown();
+
+        assertEquals(200, processed.size());
+        for(int i=0; i<200; i++){
+            assertEquals(i, (int) processed.get(i));
+        }
+        assertEquals(0, readBuffer.getMessagesInUse());
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SocketTableTest {
+
+    @Test
+    public void testStaleIdIsNotFound() {
+        SocketTable socketTable = new SocketTable(2);
+        Socket first  = new Socket();
+        Socket second = new Socket();
+        Socket third  = new Socket();
+
+        socketTable.add(first);
+        socketTable.add(second);
+        //grows past the initial capacity.
+        socketTable.add(third);
+        assertEquals(3, socketTable.size());
+        assertSame(first,  socketTable.get(first.socketId));
+        assertSame(second, socketTable.get(second.socketId));
+        assertSame(third,  socketTable.get(third.socketId));
+        assertNull(socketTable.get(0));
+
+        long staleId = second.socketId;
+        socketTable.remove(second);
+        assertNull(socketTable.get(staleId));
+
+        //the new socket reuses the slot, under a new generation.
+        Socket reused = new Socket();
+        socketTable.add(reused);
+        assertEquals((int) staleId, (int) reused.socketId);
+        assertTrue(reused.socketId != staleId);
+        assertSame(reused, socketTable.get(reused.socketId));
+        assertNull(socketTable.get(staleId));
+
+        //removing a socket twice does not free its slot twice.
+        socketTable.remove(second);
+        assertEquals(3, socketTable.size());
+    }
+
+    @Test
+    public void testSocketSet() {
+        SocketSet socketSet = new SocketSet(1, 1);
+        SocketSet otherSet  = new SocketSet(2, 1);
+        Socket first  = new Socket();
+        Socket second = new Socket();
+
+        assertTrue(socketSet.add(first));
+        assertFalse(socketSet.add(first));
+        assertTrue(socketSet.add(second));
+        assertTrue(otherSet.add(first));
+        assertEquals(2, socketSet.size());
+
+        //removed and added again in the same cycle: taken once.
+        assertTrue(socketSet.remove(first));
+        assertFalse(socketSet.contains(first));
+        assertTrue(otherSet.contains(first));
+        socketSet.add(first);
+
+        int taken = 0;
+        for(int i=0; i<socketSet.length(); i++){
+            if(socketSet.take(i) != null){
+                taken++;
+            }
+        }
+        assertEquals(2, taken);
+        assertTrue(socketSet.isEmpty());
+        socketSet.clear();
+        assertEquals(0, socketSet.length());
+        assertTrue(otherSet.contains(first));
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 100;
+
+    @Test
+    public void testExpire() {
+        TimingWheel timingWheel = new TimingWheel(TICK, 8, 0);
+        Socket early = new Socket();
+        Socket late  = new Socket();
+        Socket nextRound = new Socket();
+
+        timingWheel.schedule(early, 250);
+        timingWheel.schedule(late, 500);
+        //same bucket as early, but one round later.
+        timingWheel.schedule(nextRound, 250 + 8 * TICK);
+        assertEquals(3, timingWheel.size());
+
+        List<Socket> expired = new ArrayList<>();
+        timingWheel.expire(299, expired);
+        assertTrue(expired.isEmpty());
+
+        timingWheel.expire(300, expired);
+        assertEquals(1, expired.size());
+        assertTrue(expired.get(0) == early);
+
+        //rescheduling replaces the previous timeout.
+        timingWheel.schedule(late, 700);
+        expired.clear();
+        timingWheel.expire(600, expired);
+        assertTrue(expired.isEmpty());
+
+        timingWheel.cancel(late);
+        assertEquals(1, timingWheel.size());
+
+        //more than a whole round passes at once.
+        timingWheel.expire(5000, expired);
+        assertEquals(1, expired.size());
+        assertTrue(expired.get(0) == nextRound);
+        assertEquals(0, timingWheel.size());
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.MessageBufferConfig;
+import com.jenkov.nioserver.Socket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpMessageReaderTest {
+
+    @Test
+    public void testPipelinedRequests() throws IOException, InterruptedException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+            Socket socket = new Socket(server);
+            //no receive buffer is taken before data arrives.
+            assertEquals(0, messageBuffer.getMessagesInUse());
+
+            //100 pipelined requests, the last one split in the middle of its headers.
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<100; i++){
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            String partialRequest = "POST /100 HTTP/1.1\r\nContent-Length: 5\r\n";
+            requests.append(partialRequest);
+            writeFully(client, requests.toString());
+
+            List<Message> messages = readMessages(messageReader, socket, 100);
+            assertEquals(100, messages.size());
+            for(int i=0; i<100; i++){
+                assertEquals("GET /" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n", toString(messages.get(i)));
+            }
+
+            //the requests are still held, so the rest of the partial request is appended behind them.
+            writeFully(client, "\r\nhello");
+            List<Message> lastMessages = readMessages(messageReader, socket, 1);
+            assertEquals(partialRequest + "\r\nhello", toString(lastMessages.get(0)));
+
+            for(Message message : messages){
+                message.release();
+            }
+            lastMessages.get(0).release();
+            //all data has been parsed, so the receive buffer was given back with the last request.
+            assertFalse(messageReader.isMessageInProgress());
+            assertEquals(0, messageBuffer.getMessagesInUse());
+            messageReader.dispose();
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testChunkedBody() throws IOException, InterruptedException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+            Socket socket = new Socket(server);
+
+            //the chunk-size line is split between two writes.
+            writeFully(client, "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5;name=value\r\nhello\r\n1");
+            List<Message> messages = readMessages(messageReader, socket, 2);
+            HttpHeaders httpHeaders = (HttpHeaders) messages.get(0).metaData;
+            assertTrue(httpHeaders.chunked);
+            assertTrue(httpHeaders.bodyStreamed);
+            assertEquals("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n", toString(messages.get(0)));
+            assertEquals("hello", toString(messages.get(1)));
+            assertFalse(((HttpBodyPart) messages.get(1).metaData).last);
+
+            writeFully(client, "1\r\n 1234567890123456\r\n0\r\nTrailer: value\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+            messages.addAll(readMessages(messageReader, socket, 3));
+            assertEquals(" 1234567890123456", toString(messages.get(2)));
+            HttpBodyPart lastPart = (HttpBodyPart) messages.get(3).metaData;
+            assertEquals(0, messages.get(3).length);
+            assertTrue(lastPart.last);
+            assertFalse(lastPart.aborted);
+            assertSame(httpHeaders, lastPart.httpHeaders);
+            assertEquals("GET / HTTP/1.1\r\n\r\n", toString(messages.get(4)));
+
+            //malformed chunk size: the body is aborted and the connection closed.
+            writeFully(client, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n");
+            messages.addAll(readMessages(messageReader, socket, 2));
+            HttpBodyPart abortedPart = (HttpBodyPart) messages.get(6).metaData;
+            assertTrue(abortedPart.last);
+            assertTrue(abortedPart.aborted);
+            assertTrue(socket.endOfStreamReached);
+
+            for(Message message : messages){
+                message.release();
+            }
+            messageReader.dispose();
+            assertEquals(0, messageBuffer.getMessagesInUse());
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testLargeBodyIsStreamed() throws Exception {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+            Socket socket = new Socket(server);
+
+            //a body 3 times larger than the largest section of the MessageBuffer.
+            int contentLength = 3 * 1024 * 1024;
+            Thread writer = new Thread(() -> {
+                try {
+                    writeFully(client, "POST /upload HTTP/1.1\r\nContent-Length: " + contentLength + "\r\n\r\n");
+                    byte[] body = new byte[64 * 1024];
+                    for(int written = 0; written < contentLength; written += body.length){
+                        for(int i=0; i<body.length; i++){
+                            body[i] = (byte) (written + i);
+                        }
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(body);
+                        while(byteBuffer.hasRemaining()){
+                            client.write(byteBuffer);
+                        }
+                    }
+                } catch(IOException e){
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+
+            List<Message> messages = readMessages(messageReader, socket, 1);
+            HttpHeaders httpHeaders = (HttpHeaders) messages.get(0).metaData;
+            assertTrue(httpHeaders.bodyStreamed);
+            assertEquals(contentLength, httpHeaders.contentLength);
+            assertEquals(httpHeaders.bodyStartIndex - messages.get(0).offset, messages.get(0).length);
+            messages.get(0).release();
+
+            //the parts are released as they are processed, so the reader never holds more than its receive buffer.
+            long bodyBytes = 0;
+            boolean last = false;
+            long deadline = System.currentTimeMillis() + 10000;
+            while(!last && System.currentTimeMillis() < deadline){
+                messageReader.read(socket, null);
+                for(Message part : messageReader.getMessages()){
+                    assertTrue(messageBuffer.getMessagesInUse() <= 1 + messageReader.getMessages().size());
+                    for(int i=0; i<part.length; i++){
+                        assertEquals((byte) (bodyBytes + i), part.getByte(i));
+                    }
+                    bodyBytes += part.length;
+                    last = ((HttpBodyPart) part.metaData).last;
+                    part.release();
+                }
+                messageReader.getMessages().clear();
+            }
+            writer.join();
+            assertTrue(last);
+            assertEquals(contentLength, bodyBytes);
+
+            messageReader.dispose();
+            assertEquals(0, messageBuffer.getMessagesInUse());
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testInvalidContentLength() throws IOException, InterruptedException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+            Socket socket = new Socket(server);
+
+            //only the request before the invalid one is handed out, and its body is not parsed as a request.
+            writeFully(client, "GET / HTTP/1.1\r\n\r\nPOST / HTTP/1.1\r\nContent-Length: -1\r\n\r\nGET /smuggled HTTP/1.1\r\n\r\n");
+            List<Message> messages = readMessages(messageReader, socket, 1);
+            assertEquals(1, messages.size());
+            assertEquals("GET / HTTP/1.1\r\n\r\n", toString(messages.get(0)));
+            assertTrue(socket.closeAfterResponses);
+            messageReader.read(socket, null);
+            assertTrue(messageReader.getMessages().isEmpty());
+
+            messages.get(0).release();
+            messageReader.dispose();
+            assertEquals(0, messageBuffer.getMessagesInUse());
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    @Test
+    public void testHeaderOverflow() throws IOException, InterruptedException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel server = serverSocketChannel.accept();
+        server.configureBlocking(false);
+
+        try {
+            MessageBuffer messageBuffer = new MessageBuffer(new MessageBufferConfig()
+                    .addSizeClass(1024, 4, 1, 1)
+                    .addSizeClass(4 * 1024, 4, 1, 1));
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+            Socket socket = new Socket(server);
+
+            //8KB of headers without the terminating empty line never fit into the largest (4KB) section.
+            StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+            while(request.length() < 8 * 1024){
+                request.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+            }
+            writeFully(client, request.toString());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while(!socket.closeAfterResponses && System.currentTimeMillis() < deadline){
+                messageReader.read(socket, null);
+                Thread.sleep(1);
+            }
+            assertTrue(socket.closeAfterResponses);
+            assertTrue(messageReader.getMessages().isEmpty());
+            //the full receive buffer was given back.
+            assertEquals(0, messageBuffer.getMessagesInUse());
+            messageReader.dispose();
+        } finally {
+            client.close();
+            server.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    private static void writeFully(SocketChannel client, String data) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+        while(byteBuffer.hasRemaining()){
+            client.write(byteBuffer);
+        }
+    }
+
+    private static List<Message> readMessages(HttpMessageReader messageReader, Socket socket, int count) throws IOException, InterruptedException {
+        List<Message> messages = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(messages.size() < count && System.currentTimeMillis() < deadline){
+            messageReader.read(socket, null);
+            messages.addAll(messageReader.getMessages());
+            messageReader.getMessages().clear();
+            Thread.sleep(1);
+        }
+        return messages;
+    }
+
+    private static String toString(Message message) {
+        byte[] bytes = new byte[message.length];
+        message.readFromMessage(0, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
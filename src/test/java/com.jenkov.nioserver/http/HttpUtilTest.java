@@ -4,7 +4,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Created by jjenkov on 19-10-2015.
@@ -87,6 +89,221 @@ public class HttpUtilTest {
 
     }
 
+    @Test
+    public void testFindNextAtEveryPosition() {
+        //the SWAR scan reads 8 bytes at a time - check every offset of the match relative to the start index, and
+        //that bytes before the start index and after the end index are ignored.
+        for(int startIndex = 1; startIndex < 9; startIndex++){
+            for(int matchIndex = startIndex; matchIndex < 40; matchIndex++){
+                byte[] source = new byte[41];
+                Arrays.fill(source, (byte) 'a');
+                source[startIndex - 1] = ':';
+                source[40] = ':';
+                source[matchIndex] = ':';
+
+                Assert.assertEquals(matchIndex, HttpUtil.findNext(source, startIndex, 40, (byte) ':'));
+            }
+        }
+        byte[] noMatch = "abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(-1, HttpUtil.findNext(noMatch, 0, noMatch.length, (byte) ':'));
+        //0x80 bytes must not be mistaken for a match.
+        byte[] highBytes = new byte[]{(byte) 0x80, (byte) 0xFF, (byte) 0x81, 0x3B, 0x3A, 0, 0, 0, 0, 0};
+        Assert.assertEquals(4, HttpUtil.findNext(highBytes, 0, highBytes.length, (byte) ':'));
+    }
+
+    @Test
+    public void testParseHttpRequestInSegments() {
+        String httpRequest =
+                "POST /orders HTTP/1.1\r\n" +
+                "Host: www.example.com\r\n" +
+                "Content-Length: 11\r\n" +
+                "\r\nhello world";
+        byte[] source = httpRequest.getBytes(StandardCharsets.UTF_8);
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        //the request arrives one byte at a time.
+        for(int endIndex = 1; endIndex < source.length; endIndex++){
+            Assert.assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, endIndex, httpHeaders));
+            Assert.assertTrue(httpHeaders.headerScanOffset <= endIndex);
+        }
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        Assert.assertEquals(11, httpHeaders.contentLength);
+        Assert.assertEquals(source.length - 11, httpHeaders.bodyStartIndex);
+        Assert.assertEquals(0, httpHeaders.headerScanOffset);
+    }
+
+    @Test
+    public void testParsePhases() {
+        String headers =
+                "PUT /upload HTTP/1.1\r\n" +
+                "Content-Length: 100000\r\n" +
+                "\r\n";
+        byte[] source = new byte[headers.length() + 100000];
+        byte[] headerBytes = headers.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(headerBytes, 0, source, 0, headerBytes.length);
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, 10, httpHeaders));
+        Assert.assertEquals(HttpHeaders.PARSE_REQUEST_LINE, httpHeaders.parsePhase);
+
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, 30, httpHeaders));
+        Assert.assertEquals(HttpHeaders.PARSE_HEADERS, httpHeaders.parsePhase);
+        Assert.assertEquals(HttpHeaders.HTTP_METHOD_PUT, httpHeaders.httpMethod);
+
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, headerBytes.length + 1, httpHeaders));
+        Assert.assertEquals(HttpHeaders.PARSE_BODY, httpHeaders.parsePhase);
+        Assert.assertEquals(100000, httpHeaders.contentLength);
+        Assert.assertEquals(headerBytes.length, httpHeaders.bodyStartOffset);
+
+        //the body is skipped by length - the zero bytes in it are never looked at.
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, source.length - 1, httpHeaders));
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        Assert.assertEquals(headerBytes.length, httpHeaders.bodyStartIndex);
+        Assert.assertEquals(HttpHeaders.PARSE_REQUEST_LINE, httpHeaders.parsePhase);
+    }
+
+    @Test
+    public void testHeaderIndex() {
+        String httpRequest =
+                "GET /api/items?id=7 HTTP/1.1\r\n" +
+                "Host: www.example.com\r\n" +
+                "connection:   Keep-Alive \r\n" +
+                "CONTENT-LENGTH: 3\r\n" +
+                "X-Empty:\r\n" +
+                "\r\nabc";
+        //the request starts at index 5 of the buffer, like a request in the middle of a receive buffer.
+        byte[] requestBytes = httpRequest.getBytes(StandardCharsets.UTF_8);
+        byte[] source = new byte[requestBytes.length + 5];
+        System.arraycopy(requestBytes, 0, source, 5, requestBytes.length);
+        ByteBuffer src = ByteBuffer.wrap(source);
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        //arrives in two parts, split inside a header line.
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(src, 5, 60, httpHeaders));
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(src, 5, source.length, httpHeaders));
+
+        Assert.assertEquals(HttpHeaders.HTTP_METHOD_GET, httpHeaders.httpMethod);
+        Assert.assertEquals("GET", string(source, httpHeaders.methodStartIndex, httpHeaders.methodEndIndex));
+        Assert.assertEquals("/api/items?id=7", string(source, httpHeaders.uriStartIndex, httpHeaders.uriEndIndex));
+        Assert.assertEquals("HTTP/1.1", string(source, httpHeaders.versionStartIndex, httpHeaders.versionEndIndex));
+        Assert.assertEquals("www.example.com", string(source, httpHeaders.hostStartIndex, httpHeaders.hostEndIndex));
+        Assert.assertTrue(httpHeaders.uriStartsWith(src, "/api/"));
+        Assert.assertFalse(httpHeaders.uriEquals(src, "/api/items"));
+
+        Assert.assertEquals(4, httpHeaders.headerCount);
+        Assert.assertEquals(3, httpHeaders.contentLength);
+        Assert.assertEquals(3, httpHeaders.getHeaderValueAsLong(src, "Content-Length"));
+        Assert.assertTrue(httpHeaders.headerValueEquals(src, "Connection", "keep-alive"));
+        Assert.assertFalse(httpHeaders.headerValueEquals(src, "Connection", "close"));
+
+        int header = httpHeaders.findHeader(src, "CONNECTION");
+        Assert.assertEquals(1, header);
+        Assert.assertEquals("Keep-Alive", string(source, httpHeaders.getValueStartIndex(header), httpHeaders.getValueEndIndex(header)));
+
+        header = httpHeaders.findHeader(src, "x-empty");
+        Assert.assertEquals(httpHeaders.getValueStartIndex(header), httpHeaders.getValueEndIndex(header));
+        Assert.assertEquals(-1, httpHeaders.findHeader(src, "Cookie"));
+    }
+
+    @Test
+    public void testStreamedBody() {
+        byte[] source = ("POST / HTTP/1.1\r\nContent-Length: 1000\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer src = ByteBuffer.wrap(source);
+
+        //a body which does not fit into maxBufferedRequestSize ends the request at the end of its headers.
+        HttpHeaders httpHeaders = new HttpHeaders();
+        Assert.assertEquals(-1, HttpUtil.parseHttpRequest(src, 0, source.length, httpHeaders, 1041));
+        httpHeaders = new HttpHeaders();
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(src, 0, source.length, httpHeaders, 1040));
+        Assert.assertTrue(httpHeaders.bodyStreamed);
+        Assert.assertEquals(1000, httpHeaders.contentLength);
+        Assert.assertEquals(httpHeaders.bodyStartIndex, httpHeaders.bodyEndIndex);
+
+        //chunked bodies are always streamed.
+        source = ("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        httpHeaders = new HttpHeaders();
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        Assert.assertTrue(httpHeaders.chunked);
+        Assert.assertTrue(httpHeaders.bodyStreamed);
+        Assert.assertEquals(0, httpHeaders.contentLength);
+    }
+
+    @Test
+    public void testInvalidContentLength() {
+        //the body would otherwise be parsed as the next pipelined request.
+        for(String contentLength : new String[]{"-5", "5x", "", "99999999999999999999"}){
+            byte[] source = ("POST / HTTP/1.1\r\nContent-Length: " + contentLength + "\r\n\r\nGET /smuggled HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+            HttpHeaders httpHeaders = new HttpHeaders();
+            Assert.assertEquals(HttpUtil.INVALID_REQUEST, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+            Assert.assertTrue(httpHeaders.invalid);
+        }
+
+        Assert.assertFalse(parse("POST / HTTP/1.1\r\nContent-Length: 0\r\n\r\n").invalid);
+
+        //a repeated Content-Length must not replace the first one.
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 50\r\n\r\n");
+        HttpHeaders httpHeaders = parse("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n12345");
+        Assert.assertFalse(httpHeaders.invalid);
+        Assert.assertEquals(5, httpHeaders.contentLength);
+
+        //Content-Length together with Transfer-Encoding, in either order.
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n");
+    }
+
+    @Test
+    public void testTransferEncoding() {
+        //a later Transfer-Encoding header does not clear chunked, and its final coding must still be chunked.
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: identity\r\nContent-Length: 5\r\n\r\n");
+        //a final coding other than chunked does not fall back to Content-Length.
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nContent-Length: 5\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+        //only the whole coding counts.
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding:\r\n\r\n");
+
+        HttpHeaders httpHeaders = parse("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: CHUNKED ,\r\n\r\n");
+        Assert.assertTrue(httpHeaders.chunked);
+        Assert.assertFalse(httpHeaders.invalid);
+    }
 
+    private static void assertInvalid(String request) {
+        byte[] source = request.getBytes(StandardCharsets.UTF_8);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        Assert.assertEquals(HttpUtil.INVALID_REQUEST, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        Assert.assertTrue(httpHeaders.invalid);
+    }
+
+    @Test
+    public void testMissingHost() {
+        byte[] requestBytes = "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] source = new byte[requestBytes.length + 5];
+        System.arraycopy(requestBytes, 0, source, 5, requestBytes.length);
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        //a request in the middle of a receive buffer without a Host header keeps the empty 0/0 range.
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(source, 5, source.length, httpHeaders));
+        Assert.assertEquals(0, httpHeaders.hostStartIndex);
+        Assert.assertEquals(0, httpHeaders.hostEndIndex);
+    }
+
+    @Test
+    public void testKeepAlive() {
+        Assert.assertTrue(parse("GET / HTTP/1.1\r\n\r\n").keepAlive);
+        Assert.assertFalse(parse("GET / HTTP/1.1\r\nConnection: Upgrade, close\r\n\r\n").keepAlive);
+        Assert.assertFalse(parse("GET / HTTP/1.0\r\n\r\n").keepAlive);
+        Assert.assertTrue(parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").keepAlive);
+    }
+
+    private static HttpHeaders parse(String request) {
+        byte[] source = request.getBytes(StandardCharsets.UTF_8);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        Assert.assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        return httpHeaders;
+    }
+
+    private static String string(byte[] source, int startIndex, int endIndex) {
+        return new String(source, startIndex, endIndex - startIndex, StandardCharsets.UTF_8);
+    }
 
 }
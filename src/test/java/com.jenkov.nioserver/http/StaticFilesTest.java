@@ -0,0 +1,80 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.WriteProxy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StaticFilesTest {
+
+    @Test
+    public void testRespond() throws IOException {
+        Path root = Files.createTempDirectory("StaticFilesTest");
+        Path secret = Files.createTempFile("StaticFilesTest", ".txt");
+        Files.write(root.resolve("index.html"), "<html/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("large file.bin"), new byte[100]);
+
+        BlockingQueue<Message> writeQueue = new ArrayBlockingQueue<>(16);
+        WriteProxy writeProxy = new WriteProxy(new MessageBuffer(), writeQueue);
+        //files of up to 10 bytes are mapped.
+        StaticFiles staticFiles = new StaticFiles(root, 10, 1024);
+
+        try {
+            assertTrue(respond(staticFiles, writeProxy, "GET /?x=1 HTTP/1.1\r\n\r\n"));
+            assertEquals(2, writeQueue.size());
+            assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 7\r\nContent-Type: text/html; charset=UTF-8\r\n\r\n", toString(writeQueue.poll()));
+            assertEquals("<html/>", toString(writeQueue.poll()));
+            assertEquals(1, staticFiles.getMappedFiles());
+            assertEquals(7, staticFiles.getMappedBytes());
+
+            //too large to be mapped: the file is attached to the response.
+            assertTrue(respond(staticFiles, writeProxy, "GET /large%20file.bin HTTP/1.1\r\n\r\n"));
+            Message response = writeQueue.poll();
+            assertEquals(100, response.fileCount());
+            assertTrue(toString(response).startsWith("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n"));
+            response.release();
+            assertEquals(1, staticFiles.getMappedFiles());
+
+            assertTrue(respond(staticFiles, writeProxy, "HEAD /index.html HTTP/1.1\r\n\r\n"));
+            assertEquals(1, writeQueue.size());
+            writeQueue.clear();
+
+            assertFalse(respond(staticFiles, writeProxy, "GET /missing.html HTTP/1.1\r\n\r\n"));
+            assertFalse(respond(staticFiles, writeProxy, "GET /../" + secret.getFileName() + " HTTP/1.1\r\n\r\n"));
+            assertFalse(respond(staticFiles, writeProxy, "GET /%2e%2e/" + secret.getFileName() + " HTTP/1.1\r\n\r\n"));
+            assertFalse(respond(staticFiles, writeProxy, "POST /index.html HTTP/1.1\r\n\r\n"));
+            assertEquals(0, writeQueue.size());
+        } finally {
+            Files.delete(root.resolve("index.html"));
+            Files.delete(root.resolve("large file.bin"));
+            Files.delete(root);
+            Files.delete(secret);
+        }
+    }
+
+    private static boolean respond(StaticFiles staticFiles, WriteProxy writeProxy, String request) throws IOException {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        HttpUtil.parseHttpRequest(bytes, 0, bytes.length, httpHeaders);
+        return staticFiles.respond(ByteBuffer.wrap(bytes), httpHeaders, 1, writeProxy);
+    }
+
+    private static String toString(Message message) {
+        byte[] bytes = new byte[message.length];
+        message.readFromMessage(0, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.Message;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StaticResponseCacheTest {
+
+    @Test
+    public void testFind() {
+        StaticResponseCache responseCache = new StaticResponseCache(true);
+        for(int i=0; i<100; i++){
+            responseCache.register("GET", "/" + i, ("response " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Message index = responseCache.register("GET", "/index.html", "index".getBytes(StandardCharsets.UTF_8));
+        //registering the same method and path again replaces the response.
+        Message replaced = responseCache.register("GET", "/index.html", "new index".getBytes(StandardCharsets.UTF_8));
+        assertEquals(101, responseCache.size());
+
+        assertSame(replaced, find(responseCache, "GET /index.html?v=2 HTTP/1.1\r\n\r\n"));
+        assertEquals("response 42", toString(find(responseCache, "GET /42 HTTP/1.1\r\n\r\n")));
+        assertNull(find(responseCache, "POST /index.html HTTP/1.1\r\n\r\n"));
+        assertNull(find(responseCache, "GET /index.htm HTTP/1.1\r\n\r\n"));
+        assertEquals(5, index.length);
+    }
+
+    private static Message find(StaticResponseCache responseCache, String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        HttpHeaders httpHeaders = new HttpHeaders();
+        HttpUtil.parseHttpRequest(bytes, 0, bytes.length, httpHeaders);
+        return responseCache.find(ByteBuffer.wrap(bytes), httpHeaders);
+    }
+
+    private static String toString(Message message) {
+        byte[] bytes = new byte[message.length];
+        message.readFromMessage(0, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}